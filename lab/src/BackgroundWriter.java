@@ -0,0 +1,91 @@
+package simpledb;
+
+/**
+ * BackgroundWriter is an optional daemon thread that keeps the number of
+ * dirty pages in a BufferPool low, so that eviction almost always finds a
+ * clean page and never has to write one out while a query waits.
+ * <p>
+ * Every interval it checks the fraction of dirty pages in the pool. Once it
+ * is above the target ratio it asks the pool to write out a batch of the
+ * coldest dirty pages, repeating until the ratio drops below the target or
+ * there is nothing left it may write.
+ *
+ * @see BufferPool#startBackgroundWriter
+ */
+public class BackgroundWriter extends Thread {
+
+    private final BufferPool pool;
+    private final double targetDirtyRatio;
+    private final int batchSize;
+    private final long intervalMillis;
+    private volatile boolean running;
+    private volatile long pagesWritten;
+    private final Object sleeper = new Object();
+
+    /**
+     * @param pool the pool to clean
+     * @param targetDirtyRatio fraction of the pool (0..1) that may stay dirty
+     * @param batchSize the maximum number of pages written per batch
+     * @param intervalMillis how long to sleep between two checks
+     */
+    public BackgroundWriter(BufferPool pool, double targetDirtyRatio, int batchSize, long intervalMillis) {
+        super("simpledb-background-writer");
+        if (targetDirtyRatio < 0 || targetDirtyRatio > 1) {
+            throw new IllegalArgumentException("targetDirtyRatio must be between 0 and 1");
+        }
+        this.pool = pool;
+        this.targetDirtyRatio = targetDirtyRatio;
+        this.batchSize = Math.max(1, batchSize);
+        this.intervalMillis = Math.max(1, intervalMillis);
+        this.running = true;
+        this.pagesWritten = 0;
+        setDaemon(true);
+    }
+
+    /** @return the number of pages written by this thread so far */
+    public long getPagesWritten() {
+        return pagesWritten;
+    }
+
+    /**
+     * Ask the thread to stop and wait until it has. The thread is woken up
+     * rather than interrupted, since an interrupt during a FileChannel write
+     * would close the channel of the table being written.
+     */
+    public void shutdown() {
+        synchronized (sleeper) {
+            running = false;
+            sleeper.notifyAll();
+        }
+        try {
+            join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            try {
+                int allowed = (int) (pool.getNumPages() * targetDirtyRatio);
+                while (running && pool.countDirtyPages() > allowed) {
+                    int written = pool.writeColdDirtyPages(batchSize);
+                    pagesWritten += written;
+                    if (written == 0) {
+                        break;
+                    }
+                }
+                synchronized (sleeper) {
+                    if (running) {
+                        sleeper.wait(intervalMillis);
+                    }
+                }
+            } catch (InterruptedException e) {
+                return;
+            } catch (Exception e) {
+                Debug.log("background writer: " + e);
+            }
+        }
+    }
+}
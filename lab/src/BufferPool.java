@@ -2,11 +2,17 @@ package simpledb;
 
 import java.io.*;
 
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
-import java.util.LinkedList;
-import java.util.Random;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntFunction;
 
 /**
  * BufferPool manages the reading and writing of pages into memory from
@@ -29,21 +35,117 @@ public class BufferPool {
      other classes. BufferPool should use the numPages argument to the
      constructor instead. */
     public static final int DEFAULT_PAGES = 50;
-    private int numPages;
-    private ConcurrentHashMap<PageId, Page> pages;
-    private LockManager lockManager;
+
+    /** Upper bound on the number of shards of the page table. */
+    public static final int MAX_SHARDS = 64;
 
     /**
-     * Creates a BufferPool that caches up to numPages pages.
+     * One stripe of the page table. Everything in a shard -- the resident
+     * pages, their pin counts and the replacement state -- is guarded by the
+     * shard's own monitor.
+     */
+    private static class Shard {
+        final HashMap<PageId, Page> pages = new HashMap<>();
+        final HashMap<PageId, Integer> pinCounts = new HashMap<>();
+        /** pages loaded by read-ahead that nobody has requested yet */
+        final HashSet<PageId> prefetched = new HashSet<>();
+        final EvictionPolicy policy;
+        /** bumped whenever a page leaves the shard, so a prefetch can tell its read may be stale */
+        long removals = 0;
+
+        Shard(EvictionPolicy policy) {
+            this.policy = policy;
+        }
+
+        void pin(PageId pid) {
+            pinCounts.merge(pid, 1, Integer::sum);
+        }
+
+        boolean isPinned(PageId pid) {
+            return pinCounts.containsKey(pid);
+        }
+
+        /** @return true if the page was prefetched and never requested */
+        boolean remove(PageId pid) {
+            pages.remove(pid);
+            pinCounts.remove(pid);
+            policy.pageRemoved(pid);
+            removals++;
+            return prefetched.remove(pid);
+        }
+    }
+
+    private final int numPages;
+    private final Shard[] shards;
+    /** pages resident in all shards, plus frames reserved by pending reads */
+    private final AtomicInteger residentPages;
+    private final LockManager lockManager;
+    private BackgroundWriter backgroundWriter;
+    private volatile ReadAhead readAhead;
+    private volatile boolean recordLocking;
+    private final VersionStore versionStore;
+    private volatile boolean snapshotReads;
+    /** transactions declared read-only by {@link #beginReadOnly} */
+    private final Set<TransactionId> readOnly = ConcurrentHashMap.newKeySet();
+    /**
+     * the image logged for each page written out with changes that are not
+     * committed yet, which the page's next record is logged against
+     */
+    private final ConcurrentHashMap<PageId, Page> stolenImages = new ConcurrentHashMap<>();
+    /**
+     * the pins each transaction holds, so that the pins of a scan that is
+     * never closed are dropped when its transaction completes
+     */
+    private final ConcurrentHashMap<TransactionId, HashMap<PageId, Integer>> pinsByTid = new ConcurrentHashMap<>();
+
+    /**
+     * Creates a BufferPool that caches up to numPages pages, using the 2Q
+     * replacement policy.
      *
      * @param numPages maximum number of pages in this buffer pool.
      */
     public BufferPool(int numPages) {
+        this(numPages, TwoQEvictionPolicy::new);
+    }
+
+    /**
+     * Creates a BufferPool that caches up to numPages pages, with one shard
+     * per available processor.
+     *
+     * @param numPages maximum number of pages in this buffer pool.
+     * @param policyFactory builds the replacement policy from the number of
+     *     pages, e.g. ClockEvictionPolicy::new
+     */
+    public BufferPool(int numPages, IntFunction<EvictionPolicy> policyFactory) {
+        this(numPages, Runtime.getRuntime().availableProcessors(), policyFactory);
+    }
+
+    /**
+     * Creates a BufferPool that caches up to numPages pages.
+     *
+     * @param numPages maximum number of pages in this buffer pool.
+     * @param numShards the number of independently latched stripes of the page
+     *     table; capped by numPages and MAX_SHARDS
+     * @param policyFactory builds the replacement policy of one shard from the
+     *     number of pages that shard is expected to hold
+     */
+    public BufferPool(int numPages, int numShards, IntFunction<EvictionPolicy> policyFactory) {
         // some code goes here
         this.numPages = numPages;
-        this.pages = new ConcurrentHashMap<>();
+        int n = Math.max(1, Math.min(Math.min(numShards, MAX_SHARDS), numPages));
+        this.shards = new Shard[n];
+        int pagesPerShard = (numPages + n - 1) / n;
+        for (int i = 0; i < n; i++) {
+            this.shards[i] = new Shard(policyFactory.apply(pagesPerShard));
+        }
+        this.residentPages = new AtomicInteger(0);
         this.lockManager = new LockManager();
+        this.versionStore = new VersionStore();
+    }
 
+    /** @return the maximum number of pages in this buffer pool */
+    public int getNumPages() {
+        return numPages;
     }
 
     public static int getPageSize() {
@@ -78,25 +180,539 @@ public class BufferPool {
     public Page getPage(TransactionId tid, PageId pid, Permissions perm)
             throws TransactionAbortedException, DbException {
         // some code goes here
-        if (this.pages.size() >= numPages) {
-            this.evictPage();
+        Long snapshot = snapshotOf(tid);
+        if (snapshot != null) {
+            return readVersion(pid, perm, snapshot);
         }
+        checkWritable(tid, perm);
+        acquireLock(tid, pid, perm);
+        return fetchPage(pid, false);
+    }
 
+    /**
+     * Retrieve the specified page like {@link #getPage}, but abort if the
+     * lock cannot be acquired within timeoutMillis.
+     *
+     * @param tid the ID of the transaction requesting the page
+     * @param pid the ID of the requested page
+     * @param perm the requested permissions on the page
+     * @param timeoutMillis how long to wait for the lock, in ms; 0 to wait forever
+     * @throws TransactionAbortedException if the lock was not acquired in time
+     */
+    public Page getPage(TransactionId tid, PageId pid, Permissions perm, long timeoutMillis)
+            throws TransactionAbortedException, DbException {
+        Long snapshot = snapshotOf(tid);
+        if (snapshot != null) {
+            return readVersion(pid, perm, snapshot);
+        }
+        checkWritable(tid, perm);
+        try {
+            this.lockManager.acquire(tid, pid, perm, timeoutMillis);
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+        return fetchPage(pid, false);
+    }
+
+    /**
+     * Retrieve the specified page like {@link #getPage} and pin it, so that it
+     * cannot be evicted until {@link #unpinPage} is called once for every
+     * call to pinPage, or tid completes. Used by operators that keep
+     * iterating over a page.
+     *
+     * @param tid the ID of the transaction requesting the page
+     * @param pid the ID of the requested page
+     * @param perm the requested permissions on the page
+     */
+    public Page pinPage(TransactionId tid, PageId pid, Permissions perm)
+            throws TransactionAbortedException, DbException {
+        if (snapshotOf(tid) != null) {
+            throw new DbException("snapshot transactions read page versions, which cannot be pinned");
+        }
+        checkWritable(tid, perm);
+        acquireLock(tid, pid, perm);
+        Page page = fetchPage(pid, true);
+        HashMap<PageId, Integer> pins = pinsByTid.computeIfAbsent(tid, t -> new HashMap<>());
+        synchronized (pins) {
+            pins.merge(pid, 1, Integer::sum);
+        }
+        return page;
+    }
+
+    /**
+     * Drop one of the pins tid holds on the specified page. Once the pin
+     * count drops to zero the page may be evicted again. Pins that tid
+     * does not hold, such as those already dropped when it completed, are
+     * ignored.
+     *
+     * @param tid the ID of the transaction that pinned the page
+     * @param pid the ID of the page to unpin
+     */
+    public void unpinPage(TransactionId tid, PageId pid) {
+        HashMap<PageId, Integer> pins = pinsByTid.get(tid);
+        if (pins == null) {
+            return;
+        }
+        synchronized (pins) {
+            Integer held = pins.get(pid);
+            if (held == null) {
+                return;
+            }
+            if (held <= 1) {
+                pins.remove(pid);
+            } else {
+                pins.put(pid, held - 1);
+            }
+        }
+        unpin(pid, 1);
+    }
+
+    /** Drops n pins on the specified page from its shard. */
+    private void unpin(PageId pid, int n) {
+        Shard shard = shardFor(pid);
+        synchronized (shard) {
+            Integer count = shard.pinCounts.get(pid);
+            if (count == null) {
+                return;
+            }
+            if (count <= n) {
+                shard.pinCounts.remove(pid);
+            } else {
+                shard.pinCounts.put(pid, count - n);
+            }
+        }
+    }
+
+    /** Drops every pin tid still holds, e.g. those of scans it never closed. */
+    private void releasePins(TransactionId tid) {
+        HashMap<PageId, Integer> pins = pinsByTid.remove(tid);
+        if (pins == null) {
+            return;
+        }
+        synchronized (pins) {
+            for (Map.Entry<PageId, Integer> e : pins.entrySet()) {
+                unpin(e.getKey(), e.getValue());
+            }
+            pins.clear();
+        }
+    }
+
+    /**
+     * Retrieve the specified page after taking only an IS (READ_ONLY) or IX
+     * (READ_WRITE) lock on it. The caller must lock every record it reads
+     * or writes with {@link #lockRecord}, and change the page only through
+     * the latched HeapPage methods.
+     *
+     * @param tid the ID of the transaction requesting the page
+     * @param pid the ID of the requested page
+     * @param perm whether records of the page will be read or written
+     * @see #setRecordLocking
+     */
+    public Page getPageForRecords(TransactionId tid, PageId pid, Permissions perm)
+            throws TransactionAbortedException, DbException {
+        Long snapshot = snapshotOf(tid);
+        if (snapshot != null) {
+            return readVersion(pid, perm, snapshot);
+        }
+        checkWritable(tid, perm);
+        try {
+            this.lockManager.acquireIntent(tid, pid, perm, this.lockManager.getLockTimeout());
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+        return fetchPage(pid, false);
+    }
+
+    /**
+     * Lock a single record for reading or writing, waiting if needed. Also
+     * takes the intention locks on the record's page and table.
+     *
+     * @param tid the ID of the transaction locking the record
+     * @param rid the record to lock
+     * @param perm READ_ONLY for an S lock, READ_WRITE for an X lock
+     */
+    public void lockRecord(TransactionId tid, RecordId rid, Permissions perm)
+            throws TransactionAbortedException {
+        try {
+            this.lockManager.lockRecord(tid, rid, perm, this.lockManager.getLockTimeout());
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * X-lock a record if that is possible without waiting; used to choose
+     * the slot of a new record.
+     *
+     * @return true if tid now holds a lock allowing it to write the record
+     */
+    boolean tryLockRecord(TransactionId tid, RecordId rid) {
+        return this.lockManager.tryLockRecord(tid, rid);
+    }
+
+    /** @return true if any transaction holds a lock on the record */
+    public boolean isRecordLocked(RecordId rid) {
+        return this.lockManager.isLocked(rid);
+    }
+
+    /**
+     * Switch between page locks and record locks for HeapFile reads and
+     * writes. With record locks, transactions writing different records of
+     * the same page run concurrently, which helps small, hot tables.
+     * <p>
+     * The log still holds page images, so a page written by several
+     * transactions at once is kept consistent as follows: the page's before
+     * image always is its last committed image, a commit logs that image
+     * with only the committing transaction's records copied in, and an
+     * abort copies the transaction's records back from it. Until all its
+     * record writers are done, a page is never evicted, and flushing it
+     * writes the committed image.
+     * <p>
+     * Only switch while no transaction is running.
+     */
+    public void setRecordLocking(boolean recordLocking) {
+        this.recordLocking = recordLocking;
+    }
+
+    /** @return true if HeapFiles lock records rather than pages */
+    public boolean isRecordLocking() {
+        return recordLocking;
+    }
+
+    /**
+     * Switch snapshot reads (MVCC) on or off. While they are on, commits
+     * keep the images they replace in a {@link VersionStore} for as long
+     * as a snapshot may read them, and {@link #beginSnapshot} starts
+     * read-only transactions that read the committed state as of their
+     * start without taking any locks, so they neither wait for writers nor
+     * make writers wait.
+     * <p>
+     * Only switch while no transaction is running.
+     */
+    public void setSnapshotReads(boolean snapshotReads) {
+        this.snapshotReads = snapshotReads;
+    }
+
+    /** @return true if snapshot transactions can be started */
+    public boolean isSnapshotReads() {
+        return snapshotReads;
+    }
+
+    /** @return the page versions kept for snapshot transactions */
+    public VersionStore getVersionStore() {
+        return versionStore;
+    }
+
+    /**
+     * Make tid a read-only snapshot transaction. Its reads through getPage
+     * see the database as of the last finished commit and take no locks;
+     * asking for READ_WRITE fails. {@link #transactionComplete} ends the
+     * snapshot.
+     *
+     * @throws IllegalStateException if snapshot reads are off
+     */
+    public void beginSnapshot(TransactionId tid) {
+        if (!snapshotReads) {
+            throw new IllegalStateException("snapshot reads are off");
+        }
+        versionStore.beginSnapshot(tid);
+    }
+
+    /** @return true if tid is a snapshot transaction */
+    public boolean isSnapshot(TransactionId tid) {
+        return snapshotOf(tid) != null;
+    }
+
+    private Long snapshotOf(TransactionId tid) {
+        return snapshotReads && tid != null ? versionStore.getSnapshot(tid) : null;
+    }
+
+    /** @return the committed image of a page as of snapshot timestamp ts */
+    private Page readVersion(PageId pid, Permissions perm, long ts) throws DbException {
+        if (perm.equals(Permissions.READ_WRITE)) {
+            throw new DbException("snapshot transactions are read-only");
+        }
+        // the current committed image first: a commit stores the version
+        // it replaces before the page's before image moves on
+        Page committed = fetchPage(pid, false).getBeforeImage();
+        byte[] version = versionStore.lookup(pid, ts);
+        if (version == null) {
+            return committed;
+        }
+        try {
+            return new HeapPage((HeapPageId) pid, ByteBuffer.wrap(version).asReadOnlyBuffer());
+        } catch (IOException e) {
+            throw new DbException("could not read version of page " + pid + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Make tid a declared read-only transaction: asking for READ_WRITE or
+     * changing tuples fails, and {@link #transactionComplete} only releases
+     * its locks. Transactions that take no write locks are committed the
+     * same way without being declared.
+     */
+    public void beginReadOnly(TransactionId tid) {
+        readOnly.add(tid);
+    }
+
+    /** @return true if tid was declared read-only */
+    public boolean isReadOnly(TransactionId tid) {
+        return readOnly.contains(tid);
+    }
+
+    private void checkWritable(TransactionId tid, Permissions perm) throws DbException {
+        if (perm.equals(Permissions.READ_WRITE) && tid != null && readOnly.contains(tid)) {
+            throw new DbException("transaction " + tid.getId() + " is read-only");
+        }
+    }
+
+    private void acquireLock(TransactionId tid, PageId pid, Permissions perm)
+            throws TransactionAbortedException {
         try {
             this.lockManager.acquire(tid, pid, perm);
         } catch (InterruptedException e) {
             e.printStackTrace();
         }
+    }
+
+    private Shard shardFor(PageId pid) {
+        int h = pid.hashCode();
+        h ^= (h >>> 16);
+        return shards[(h & 0x7fffffff) % shards.length];
+    }
+
+    /** Return the resident copy of a page, or null, without touching the replacement state. */
+    private Page peekPage(PageId pid) {
+        Shard shard = shardFor(pid);
+        synchronized (shard) {
+            return shard.pages.get(pid);
+        }
+    }
+
+    /**
+     * Look a page up in its shard and read it from disk on a miss. The read
+     * happens outside of the shard latch; if another thread loaded the same
+     * page in the meantime its copy wins.
+     */
+    private Page fetchPage(PageId pid, boolean pin) throws DbException {
+        ReadAhead ra = readAhead;
+        Page page = lookupOrLoad(pid, pin, ra);
+        if (ra != null) {
+            ra.pageRequested(pid);
+        }
+        return page;
+    }
+
+    private Page lookupOrLoad(PageId pid, boolean pin, ReadAhead ra) throws DbException {
+        Shard shard = shardFor(pid);
+        synchronized (shard) {
+            Page page = shard.pages.get(pid);
+            if (page != null) {
+                shard.policy.pageAccessed(pid);
+                if (pin) {
+                    shard.pin(pid);
+                }
+                if (shard.prefetched.remove(pid) && ra != null) {
+                    ra.prefetchHit(pid);
+                }
+                return page;
+            }
+        }
 
-        if (!this.pages.containsKey(pid)){
-            int tableId = pid.getTableId();
-            Catalog catalog = Database.getCatalog();
-            Page page = catalog.getDatabaseFile(tableId).readPage(pid);
+        reserveFrame();
+        Page page;
+        try {
+            page = Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid);
+        } catch (UncheckedIOException e) {
+            // a damaged page that could not be repaired
+            residentPages.decrementAndGet();
+            throw new DbException("could not read page " + pid, e.getCause());
+        } catch (RuntimeException e) {
+            residentPages.decrementAndGet();
+            throw e;
+        }
+        if (page == null) {
+            residentPages.decrementAndGet();
+            throw new DbException("could not read page " + pid);
+        }
 
-            this.pages.put(pid, page);
+        synchronized (shard) {
+            Page cached = shard.pages.get(pid);
+            if (cached != null) {
+                residentPages.decrementAndGet();
+                shard.policy.pageAccessed(pid);
+                page = cached;
+            } else {
+                shard.pages.put(pid, page);
+                shard.policy.pageAdmitted(pid);
+            }
+            if (pin) {
+                shard.pin(pid);
+            }
             return page;
         }
-        return this.pages.get(pid);
+    }
+
+    /**
+     * Claim room for one more page, evicting pages until the pool is below
+     * its capacity.
+     */
+    private void reserveFrame() throws DbException {
+        while (residentPages.incrementAndGet() > numPages) {
+            residentPages.decrementAndGet();
+            evictPage();
+        }
+    }
+
+    /**
+     * Load a page into the pool on behalf of read-ahead. Only clean pages
+     * are evicted to make room; if there are none, or the page is already
+     * resident, nothing happens.
+     *
+     * @return true if the page was loaded
+     */
+    boolean prefetchPage(PageId pid) {
+        Shard shard = shardFor(pid);
+        long removals;
+        synchronized (shard) {
+            if (shard.pages.containsKey(pid)) {
+                return false;
+            }
+            removals = shard.removals;
+        }
+        while (residentPages.incrementAndGet() > numPages) {
+            residentPages.decrementAndGet();
+            if (!evictCleanPage()) {
+                return false;
+            }
+        }
+        Page page = null;
+        try {
+            page = Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid);
+        } catch (RuntimeException e) {
+            page = null;
+        }
+        synchronized (shard) {
+            // a removal in between may have been a discard of this page, whose
+            // on-disk image we may have read half-rewritten
+            if (page == null || shard.pages.containsKey(pid) || shard.removals != removals) {
+                residentPages.decrementAndGet();
+                return false;
+            }
+            shard.pages.put(pid, page);
+            shard.policy.pageAdmitted(pid);
+            shard.prefetched.add(pid);
+            return true;
+        }
+    }
+
+    /**
+     * Turn on asynchronous read-ahead for sequential scans. Does nothing if
+     * it is already on.
+     *
+     * @param maxWindow the largest number of pages to read ahead of a scan
+     * @param numThreads the number of threads issuing the reads
+     * @see ReadAhead
+     */
+    public synchronized void enableReadAhead(int maxWindow, int numThreads) {
+        if (readAhead == null) {
+            readAhead = new ReadAhead(this, maxWindow, numThreads);
+        }
+    }
+
+    /** Turn read-ahead off, if it is on. */
+    public synchronized void disableReadAhead() {
+        if (readAhead != null) {
+            readAhead.shutdown();
+            readAhead = null;
+        }
+    }
+
+    /** @return the read-ahead of this pool with its counters, or null if it is off */
+    public ReadAhead getReadAhead() {
+        return readAhead;
+    }
+
+    /**
+     * Choose how lock waits that would deadlock are resolved.
+     *
+     * @see LockManager.DeadlockPolicy
+     */
+    public void setDeadlockPolicy(LockManager.DeadlockPolicy policy) {
+        this.lockManager.setDeadlockPolicy(policy);
+    }
+
+    /** @return the current deadlock policy of the pool's lock manager */
+    public LockManager.DeadlockPolicy getDeadlockPolicy() {
+        return this.lockManager.getDeadlockPolicy();
+    }
+
+    /**
+     * Set how long a lock request may wait before its transaction is
+     * aborted with a TransactionAbortedException.
+     *
+     * @param timeoutMillis the timeout in ms; 0 to wait forever
+     */
+    public void setLockTimeout(long timeoutMillis) {
+        this.lockManager.setLockTimeout(timeoutMillis);
+    }
+
+    /**
+     * Lock a whole table, so that the pages of the table are read or
+     * written without taking page locks. Used by scans of large tables.
+     *
+     * @param tid the ID of the transaction locking the table
+     * @param tableId the table to lock
+     * @param perm READ_ONLY for a shared table lock, READ_WRITE for an exclusive one
+     */
+    public void lockTable(TransactionId tid, int tableId, Permissions perm)
+            throws TransactionAbortedException {
+        LockManager.LockMode mode = perm.equals(Permissions.READ_WRITE) ? LockManager.LockMode.X
+                : LockManager.LockMode.S;
+        try {
+            this.lockManager.lockTable(tid, tableId, mode, this.lockManager.getLockTimeout());
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Set how many page locks a transaction may hold on one table before
+     * they are escalated to a single table lock.
+     *
+     * @param pages the threshold; 0 to never escalate
+     */
+    public void setLockEscalationThreshold(int pages) {
+        this.lockManager.setEscalationThreshold(pages);
+    }
+
+    /** @return the page lock escalation threshold; 0 if escalation is off */
+    public int getLockEscalationThreshold() {
+        return this.lockManager.getEscalationThreshold();
+    }
+
+    /** @return the lock contention counters of this pool; see {@link LockStats#snapshot} */
+    public LockStats getLockStats() {
+        return this.lockManager.getStats();
+    }
+
+    /** Stop the background writer, read-ahead and deadlock detector threads of this pool. */
+    public void stopBackgroundThreads() {
+        stopBackgroundWriter();
+        disableReadAhead();
+        this.lockManager.shutdown();
+    }
+
+    /** Remove a page from its shard, which the caller has latched. */
+    private void dropPage(Shard shard, PageId pid) {
+        if (shard.remove(pid)) {
+            ReadAhead ra = readAhead;
+            if (ra != null) {
+                ra.prefetchWasted(pid);
+            }
+        }
+        residentPages.decrementAndGet();
     }
 
     /**
@@ -108,7 +724,7 @@ public class BufferPool {
      * @param tid the ID of the transaction requesting the unlock
      * @param pid the ID of the page to unlock
      */
-    public synchronized void releasePage(TransactionId tid, PageId pid) {
+    public void releasePage(TransactionId tid, PageId pid) {
         // some code goes here
         // not necessary for lab1|lab2
         this.lockManager.release(tid, pid);
@@ -143,22 +759,134 @@ public class BufferPool {
             throws IOException {
         // some code goes here
         // not necessary for lab1|lab2
-        HashSet<PageId> pagesToRecover = this.lockManager.transactions.get(tid);
+        if (snapshotReads && versionStore.endSnapshot(tid)) {
+            // snapshot transactions hold no locks and changed nothing
+            return;
+        }
+        // pins are counted by page, so dropping them before an abort swaps
+        // in the before images leaves nothing pinned for good
+        releasePins(tid);
+        boolean declaredReadOnly = readOnly.remove(tid);
+        Set<PageId> pagesToRecover = this.lockManager.getLockedPages(tid);
         if (pagesToRecover == null){
             return;
         }
+        if (declaredReadOnly || !this.lockManager.holdsWriteLocks(tid)) {
+            // nothing to log or roll back, even on pages another
+            // transaction's commit left dirty
+            this.lockManager.releaseAll(tid);
+            return;
+        }
+        long commitTs = commit && snapshotReads ? versionStore.beginCommit() : 0;
+        try {
+            completePages(tid, pagesToRecover, commit, commitTs);
+        } finally {
+            if (commitTs != 0) {
+                versionStore.endCommit();
+            }
+        }
+        this.lockManager.releaseAll(tid);
+    }
+
+    /**
+     * Commits or rolls back the pages tid locked, logging the committed
+     * images. With snapshot reads on, commitTs is the commit timestamp and
+     * the images replaced are stored as versions; otherwise it is 0.
+     */
+    private void completePages(TransactionId tid, Set<PageId> pagesToRecover, boolean commit, long commitTs)
+            throws IOException {
         for (PageId pid: pagesToRecover){
-            if (this.pages.containsKey(pid)){
-                Page page = this.pages.get(pid);
-                Database.getLogFile().logWrite(tid, page.getBeforeImage(), page);
-                Database.getLogFile().force();
+            Page page = peekPage(pid);
+            Page stolen = stolenImages.remove(pid);
+            if (snapshotReads && !commit) {
+                // rolled back by the log already
+                versionStore.pageRolledBack(pid);
+            }
+            LockManager.LockMode pageLock = this.lockManager.getPageLock(tid, pid);
+            if (pageLock == LockManager.LockMode.IS || pageLock == LockManager.LockMode.IX) {
+                // written under record locks: other transactions may have
+                // changes on the page that are not committed yet
+                if (page instanceof HeapPage) {
+                    completeRecords(tid, (HeapPage) page, commit, commitTs);
+                }
+                continue;
+            }
+            if (page == null || page.isDirty() == null){
+                // pages that were only read, or already written out (and
+                // logged) by the pool, need nothing but a new before image
+                if (commitTs != 0) {
+                    versionStore.addStolenVersion(pid, commitTs);
+                }
+                if (page != null && commit){
+                    page.setBeforeImage();
+                }
+                continue;
+            }
+            if (commit){
+                Page before = page.getBeforeImage();
+                if (commitTs != 0 && tid.equals(page.isDirty())) {
+                    versionStore.addVersion(pid, before, commitTs);
+                }
+                page.setLSN(Database.getLogFile().logWrite(tid, stolen != null ? stolen : before, page));
                 page.setBeforeImage();
-                if(!commit){
-                    this.pages.replace(pid, page.getBeforeImage());
+            } else if (tid.equals(page.isDirty())) {
+                // the before image may be newer than the disk (committed
+                // pages stay dirty until written out), so it stays dirty;
+                // its committed changes may not be forced yet (locks are
+                // released before the COMMIT record), so it keeps the page
+                // LSN, which is at least that of their last record
+                Page before = page.getBeforeImage();
+                before.setLSN(page.getLSN());
+                before.markDirty(true, tid);
+                if (before instanceof HeapPage) {
+                    // the aborted changes may have used up free slots
+                    ((HeapPage) before).noteFreeSpace();
+                }
+                Shard shard = shardFor(pid);
+                synchronized (shard) {
+                    shard.pages.replace(pid, page, before);
                 }
             }
         }
-        this.lockManager.releaseAll(tid);
+        // no force here: the COMMIT record written next is forced with
+        // these records, shared with other commits (see GroupCommit)
+    }
+
+    /**
+     * Commits or rolls back the records of page that tid changed under
+     * record locks. The before image of the page is its last committed
+     * image: a commit logs it with tid's records copied in and makes that
+     * the new before image, an abort copies tid's records back from it.
+     */
+    private void completeRecords(TransactionId tid, HeapPage page, boolean commit, long commitTs)
+            throws IOException {
+        List<RecordId> rids = this.lockManager.getExclusiveRecords(tid, page.getId());
+        if (rids.isEmpty()) {
+            return;
+        }
+        // the latch orders concurrent commits of the page's writers
+        page.latch.lock();
+        try {
+            HeapPage before = page.getBeforeImage();
+            if (commit) {
+                HeapPage after = new HeapPage(page.getId(), before.getPageData());
+                for (RecordId rid : rids) {
+                    after.copySlot(page, rid.getTupleNumber());
+                }
+                page.setLSN(Database.getLogFile().logWrite(tid, before, after));
+                if (commitTs != 0) {
+                    versionStore.addVersion(page.getId(), before, commitTs);
+                }
+                page.setBeforeImage(after);
+                return;
+            }
+            for (RecordId rid : rids) {
+                page.copySlot(before, rid.getTupleNumber());
+            }
+            page.noteFreeSpace();
+        } finally {
+            page.latch.unlock();
+        }
     }
 
 
@@ -181,18 +909,59 @@ public class BufferPool {
             throws DbException, IOException, TransactionAbortedException {
         // some code goes here
         // not necessary for lab1
+        checkWritable(tid, Permissions.READ_WRITE);
         HeapFile hpFile = (HeapFile) Database.getCatalog().getDatabaseFile(tableId);
         ArrayList<Page> modifiedPagesArr = hpFile.insertTuple(tid, t);
         for (Page pg: modifiedPagesArr){
             pg.markDirty(true, tid);
-            if (this.pages.size() > this.numPages){
-                this.evictPage();
-            }
-            this.pages.put(pg.getId(), pg);
+            this.cachePage(pg);
         }
 
     }
 
+    /**
+     * Add the tuples to the specified table on behalf of transaction tid,
+     * filling one page after the other. Like {@link #insertTuple}, but
+     * each modified page is marked dirty and cached once for the whole
+     * batch.
+     *
+     * @param tid the transaction adding the tuples
+     * @param tableId the table to add the tuples to
+     * @param tuples the tuples to add
+     */
+    public void insertTuples(TransactionId tid, int tableId, Iterable<Tuple> tuples)
+            throws DbException, IOException, TransactionAbortedException {
+        insertTuples(tid, tableId, tuples, false);
+    }
+
+    /**
+     * Add the tuples to the specified table on behalf of transaction tid.
+     * With bulkLoad set and a HeapFile table, tuples that do not fit on the
+     * existing pages are written as full pages directly to the end of the
+     * file with minimal logging; see {@link HeapFile#bulkInsertTuples} for
+     * what that requires of concurrent readers.
+     *
+     * @param tid the transaction adding the tuples
+     * @param tableId the table to add the tuples to
+     * @param tuples the tuples to add
+     * @param bulkLoad whether to write appended pages directly
+     */
+    public void insertTuples(TransactionId tid, int tableId, Iterable<Tuple> tuples, boolean bulkLoad)
+            throws DbException, IOException, TransactionAbortedException {
+        checkWritable(tid, Permissions.READ_WRITE);
+        DbFile file = Database.getCatalog().getDatabaseFile(tableId);
+        ArrayList<Page> modifiedPagesArr;
+        if (bulkLoad && file instanceof HeapFile) {
+            modifiedPagesArr = ((HeapFile) file).bulkInsertTuples(tid, tuples);
+        } else {
+            modifiedPagesArr = file.insertTuples(tid, tuples);
+        }
+        for (Page pg: modifiedPagesArr){
+            pg.markDirty(true, tid);
+            this.cachePage(pg);
+        }
+    }
+
     /**
      * Remove the specified tuple from the buffer pool.
      * Will acquire a write lock on the page the tuple is removed from and any
@@ -210,12 +979,38 @@ public class BufferPool {
             throws DbException, IOException, TransactionAbortedException {
         // some code goes here
         // not necessary for lab1
+        checkWritable(tid, Permissions.READ_WRITE);
         int tableId = t.getRecordId().getPageId().getTableId();
         HeapFile hpFile = (HeapFile) Database.getCatalog().getDatabaseFile(tableId);
         ArrayList<Page> modifiedPagesArr = hpFile.deleteTuple(tid, t);
         for(Page pg: modifiedPagesArr){
             pg.markDirty(true, tid);
-            this.pages.put(pg.getId(), pg);
+            this.cachePage(pg);
+        }
+    }
+
+    /**
+     * Puts a page that was modified outside of getPage into the pool,
+     * replacing any cached version of it and making room if necessary.
+     */
+    private void cachePage(Page page) throws DbException {
+        PageId pid = page.getId();
+        Shard shard = shardFor(pid);
+        synchronized (shard) {
+            if (shard.pages.containsKey(pid)) {
+                shard.pages.put(pid, page);
+                shard.policy.pageAccessed(pid);
+                return;
+            }
+        }
+        reserveFrame();
+        synchronized (shard) {
+            if (shard.pages.put(pid, page) != null) {
+                residentPages.decrementAndGet();
+                shard.policy.pageAccessed(pid);
+            } else {
+                shard.policy.pageAdmitted(pid);
+            }
         }
     }
 
@@ -227,8 +1022,14 @@ public class BufferPool {
     public synchronized void flushAllPages() throws IOException {
         // some code goes here
         // not necessary for lab1
-        for (PageId pid: this.pages.keySet()){
-            this.flushPage(pid);
+        for (Shard shard : shards) {
+            ArrayList<PageId> pids;
+            synchronized (shard) {
+                pids = new ArrayList<>(shard.pages.keySet());
+            }
+            for (PageId pid : pids) {
+                this.flushPage(pid);
+            }
         }
     }
 
@@ -240,10 +1041,15 @@ public class BufferPool {
      Also used by B+ tree files to ensure that deleted pages
      are removed from the cache so they can be reused safely
      */
-    public synchronized void discardPage(PageId pid) {
+    public void discardPage(PageId pid) {
         // some code goes here
         // not necessary for lab1
-        this.pages.remove(pid);
+        Shard shard = shardFor(pid);
+        synchronized (shard) {
+            if (shard.pages.containsKey(pid)) {
+                dropPage(shard, pid);
+            }
+        }
     }
 
     /**
@@ -253,16 +1059,67 @@ public class BufferPool {
     private synchronized  void flushPage(PageId pid) throws IOException {
         // some code goes here
         // not necessary for lab1
-        Page page = pages.get(pid);
-        if (pages.containsKey(pid)){
-            TransactionId dirtier = page.isDirty();
-            if (dirtier != null){
-                Database.getLogFile().logWrite(dirtier, page.getBeforeImage(), page);
-                Database.getLogFile().force();
-                HeapFile f = (HeapFile ) Database.getCatalog().getDatabaseFile(pid.getTableId());
-                f.writePage(page);
-                page.markDirty(false, null);
+        Page page = peekPage(pid);
+        if (page != null){
+            writeOut(page);
+        }
+    }
+
+    /**
+     * Write a dirty page to disk, after the log is on disk up to the page's
+     * LSN. Only changes that are not committed yet need a new log record;
+     * committed ones were logged at commit. Callers hold the pool monitor,
+     * which orders this against LogFile operations that reach back into
+     * the pool.
+     */
+    private void writeOut(Page page) throws IOException {
+        TransactionId dirtier = page.isDirty();
+        if (dirtier != null && lockManager.hasRecordWriters(page.getId())) {
+            // only the committed image, which is logged already, may
+            // reach the disk; the page stays dirty
+            Database.getLogFile().flushTo(page.getLSN());
+            HeapFile f = (HeapFile) Database.getCatalog().getDatabaseFile(page.getId().getTableId());
+            f.writePage(page.getBeforeImage());
+            Database.getLogFile().pageWritten(page.getId());
+            return;
+        }
+        if (dirtier != null){
+            if (!holdsCommittedChanges(page, dirtier)) {
+                if (snapshotReads && lockManager.isExclusivelyLocked(page.getId())) {
+                    // the disk is about to hold changes that are not committed
+                    versionStore.pageStolen(page.getId(), page.getBeforeImage());
+                }
+                logSteal(dirtier, page);
             }
+            Database.getLogFile().flushTo(page.getLSN());
+            HeapFile f = (HeapFile ) Database.getCatalog().getDatabaseFile(page.getId().getTableId());
+            f.writePage(page);
+            Database.getLogFile().pageWritten(page.getId());
+            page.markDirty(false, null);
+        }
+    }
+
+    /**
+     * @return true if the dirty page holds only changes that are logged
+     *         already: its dirtier finished (committed, or aborted and put
+     *         the page back to its committed image) and nobody may be
+     *         changing it
+     */
+    private boolean holdsCommittedChanges(Page page, TransactionId dirtier) {
+        return !lockManager.isExclusivelyLocked(page.getId()) && lockManager.getLockedPages(dirtier) == null;
+    }
+
+    /**
+     * Logs the changes of a page that is about to be written out before its
+     * dirtier finishes, against the image last logged for the page, and
+     * keeps the new image for the page's next record.
+     */
+    private void logSteal(TransactionId dirtier, Page page) throws IOException {
+        Page stolen = stolenImages.get(page.getId());
+        page.setLSN(Database.getLogFile().logWrite(dirtier, stolen != null ? stolen : page.getBeforeImage(), page));
+        if (page instanceof HeapPage) {
+            HeapPage p = (HeapPage) page;
+            stolenImages.put(p.getId(), new HeapPage(p.getId(), p.getPageData()));
         }
     }
 
@@ -271,26 +1128,201 @@ public class BufferPool {
     public synchronized  void flushPages(TransactionId tid) throws IOException {
         // some code goes here
         // not necessary for lab1|lab2
-        for (Page p : this.pages.values()) {
-            if (tid.equals(p.isDirty())) {
-                flushPage(p.getId());
+        for (Shard shard : shards) {
+            ArrayList<Page> dirtied = new ArrayList<>();
+            synchronized (shard) {
+                for (Page p : shard.pages.values()) {
+                    if (tid.equals(p.isDirty())) {
+                        dirtied.add(p);
+                    }
+                }
+            }
+            for (Page p : dirtied) {
+                writeOut(p);
+            }
+        }
+    }
+
+    /**
+     * Start a background thread that writes out cold dirty pages whenever
+     * more than targetDirtyRatio of the pool is dirty. Does nothing if one
+     * is already running.
+     *
+     * @param targetDirtyRatio fraction of the pool (0..1) that may stay dirty
+     * @param batchSize the maximum number of pages written per batch
+     * @param intervalMillis how often the dirty ratio is checked
+     * @see BackgroundWriter
+     */
+    public synchronized void startBackgroundWriter(double targetDirtyRatio, int batchSize, long intervalMillis) {
+        if (backgroundWriter == null) {
+            backgroundWriter = new BackgroundWriter(this, targetDirtyRatio, batchSize, intervalMillis);
+            backgroundWriter.start();
+        }
+    }
+
+    /** Stop the background writer, if one is running. */
+    public void stopBackgroundWriter() {
+        BackgroundWriter writer;
+        synchronized (this) {
+            writer = backgroundWriter;
+            backgroundWriter = null;
+        }
+        if (writer != null) {
+            writer.shutdown();
+        }
+    }
+
+    /** @return the number of dirty pages currently in the pool */
+    int countDirtyPages() {
+        int dirty = 0;
+        for (Shard shard : shards) {
+            synchronized (shard) {
+                for (Page p : shard.pages.values()) {
+                    if (p.isDirty() != null) {
+                        dirty++;
+                    }
+                }
+            }
+        }
+        return dirty;
+    }
+
+    /**
+     * Write out up to max of the coldest dirty pages, in one batch. Pages that
+     * are pinned or that a transaction holds an exclusive lock on are
+     * skipped, since they are still being worked on. The writer takes an S
+     * lock on every page of the batch without waiting, skipping those it
+     * cannot lock, and holds it until the page is written and marked clean,
+     * so that no transaction changes a page between the check and the write
+     * and has its change marked clean without being written. The log is flushed once
+     * up to the highest page LSN of the batch, after logging the pages
+     * that have changes not logged yet, before any page goes to disk, and
+     * the pages are written sorted by table and page number.
+     *
+     * @return the number of pages written
+     */
+    int writeColdDirtyPages(int max) throws IOException {
+        TransactionId writer = new TransactionId();
+        try {
+            return writeColdDirtyPages(writer, max);
+        } finally {
+            lockManager.releaseAll(writer);
+        }
+    }
+
+    private int writeColdDirtyPages(TransactionId writer, int max) throws IOException {
+        int perShard = Math.max(1, (max + shards.length - 1) / shards.length);
+        ArrayList<Page> batch = new ArrayList<>();
+        for (Shard shard : shards) {
+            synchronized (shard) {
+                int taken = 0;
+                for (PageId pid : shard.policy.coldestPages(shard.pages.size())) {
+                    if (taken >= perShard || batch.size() >= max) {
+                        break;
+                    }
+                    Page p = shard.pages.get(pid);
+                    if (p != null && p.isDirty() != null && !shard.isPinned(pid)
+                            && lockManager.tryLockPage(writer, pid)) {
+                        batch.add(p);
+                        taken++;
+                    }
+                }
+            }
+        }
+        if (batch.isEmpty()) {
+            return 0;
+        }
+        batch.sort((a, b) -> {
+            int c = Integer.compare(a.getId().getTableId(), b.getId().getTableId());
+            return c != 0 ? c : Integer.compare(a.getId().getPageNumber(), b.getId().getPageNumber());
+        });
+
+        synchronized (this) {
+            ArrayList<Page> ready = new ArrayList<>();
+            long lsn = 0;
+            for (Page p : batch) {
+                TransactionId dirtier = p.isDirty();
+                if (dirtier != null) {
+                    if (!holdsCommittedChanges(p, dirtier)) {
+                        logSteal(dirtier, p);
+                    }
+                    lsn = Math.max(lsn, p.getLSN());
+                    ready.add(p);
+                }
+            }
+            if (ready.isEmpty()) {
+                return 0;
+            }
+            Database.getLogFile().flushTo(lsn);
+            for (Page p : ready) {
+                DbFile f = Database.getCatalog().getDatabaseFile(p.getId().getTableId());
+                f.writePage(p);
+                Database.getLogFile().pageWritten(p.getId());
+                p.markDirty(false, null);
             }
+            return ready.size();
         }
     }
 
     /**
      * Discards a page from the buffer pool.
-     * Flushes the page to disk to ensure dirty pages are updated on disk.
+     * Every shard is first asked, under its own latch only, for a clean page
+     * that nobody has pinned. Only when there is none is a dirty page flushed
+     * to disk (after its log record) and evicted; that path takes the pool
+     * monitor.
+     *
+     * @throws DbException if every resident page is pinned
      */
-    private synchronized  void evictPage() throws DbException {
+    private void evictPage() throws DbException {
         // some code goes here
         // not necessary for lab1
-        int randomId = (int) (Math.random() * (pages.size()));
-        ArrayList<PageId> arrayList = new ArrayList<>(pages.keySet());
-        PageId pageId = arrayList.get(randomId);
-        try {
-            flushPage(pageId);
-        } catch (IOException ignored) {}
-        pages.remove(pageId);
+        if (!evictCleanPage()) {
+            evictDirtyPage();
+        }
+    }
+
+    /** @return true if a clean, unpinned page was found and evicted */
+    private boolean evictCleanPage() {
+        int start = ThreadLocalRandom.current().nextInt(shards.length);
+        for (int i = 0; i < shards.length; i++) {
+            Shard shard = shards[(start + i) % shards.length];
+            synchronized (shard) {
+                PageId pageId = shard.policy.chooseVictim(pid -> {
+                    Page p = shard.pages.get(pid);
+                    return !shard.isPinned(pid) && (p == null || p.isDirty() == null)
+                            && !lockManager.hasRecordWriters(pid);
+                });
+                if (pageId != null) {
+                    dropPage(shard, pageId);
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private synchronized void evictDirtyPage() throws DbException {
+        int start = ThreadLocalRandom.current().nextInt(shards.length);
+        for (int i = 0; i < shards.length; i++) {
+            Shard shard = shards[(start + i) % shards.length];
+            synchronized (shard) {
+                PageId pageId = shard.policy.chooseVictim(
+                        pid -> !shard.isPinned(pid) && !lockManager.hasRecordWriters(pid));
+                if (pageId == null) {
+                    continue;
+                }
+                Page page = shard.pages.get(pageId);
+                if (page != null) {
+                    try {
+                        writeOut(page);
+                    } catch (IOException e) {
+                        throw new DbException("could not flush page " + pageId + " on eviction: " + e.getMessage());
+                    }
+                }
+                dropPage(shard, pageId);
+                return;
+            }
+        }
+        throw new DbException("no page in the buffer pool can be evicted, all of them are pinned");
     }
 }
@@ -4,6 +4,7 @@ import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 
@@ -65,11 +66,24 @@ public class Catalog extends QueryPlanVisualizer {
      * @param name the name of the table -- may be an empty string.  May not be null.  If a name
      * conflict exists, use the last table to be added as the table for a given name.
      * @param pkeyField the name of the primary key field
+     * @throws UncheckedIOException if the file of a table replaced by this one
+     *    cannot be closed; the new table is added all the same
      */
     public void addTable(DbFile file, String name, String pkeyField) {
         // some code goes here
-        this.dbFilesMap.put(file.getId(), new Table(file, name, pkeyField));
+        Table old = this.dbFilesMap.put(file.getId(), new Table(file, name, pkeyField));
         this.dbNameMap.put(name, file.getId());
+        if (old != null && old.getFile() != file) {
+            closeFile(old.getFile());
+        }
+    }
+
+    private static void closeFile(DbFile file) {
+        try {
+            file.close();
+        } catch (IOException e) {
+            throw new UncheckedIOException("cannot close the file of table " + file.getId(), e);
+        }
     }
 
     public void addTable(DbFile file, String name) {
@@ -151,16 +165,40 @@ public class Catalog extends QueryPlanVisualizer {
         throw new NoSuchElementException();
     }
 
-    /** Delete all tables from the catalog */
+    /**
+     * Delete all tables from the catalog, closing their files
+     * @throws UncheckedIOException if a file cannot be closed, once all
+     *    tables are deleted and all other files closed
+     */
     public void clear() {
         // some code goes here
+        UncheckedIOException failure = null;
+        for (Table table : this.dbFilesMap.values()) {
+            try {
+                closeFile(table.getFile());
+            } catch (UncheckedIOException e) {
+                if (failure == null) {
+                    failure = e;
+                } else {
+                    failure.addSuppressed(e);
+                }
+            }
+        }
         this.dbNameMap.clear();
         this.dbFilesMap.clear();
+        if (failure != null) {
+            throw failure;
+        }
     }
 
     /**
      * Reads the schema from a file and creates the appropriate tables in the database.
+     * <p>
+     * Each line has the format {@code name (field type [pk], ...) [mmap]}.
+     * Tables marked {@code mmap} are read through a {@link MappedHeapFile},
+     * the others through a plain {@link HeapFile}.
      * @param catalogFile
+     * @throws IllegalArgumentException if a table has an unknown storage option
      */
     public void loadSchema(String catalogFile) {
         String line = "";
@@ -200,7 +238,16 @@ public class Catalog extends QueryPlanVisualizer {
                 Type[] typeAr = types.toArray(new Type[0]);
                 String[] namesAr = names.toArray(new String[0]);
                 TupleDesc t = new TupleDesc(typeAr, namesAr);
-                HeapFile tabHf = new HeapFile(new File(baseFolder+"/"+name + ".dat"), t);
+                String storage = line.substring(line.indexOf(")") + 1).trim().toLowerCase();
+                File tabFile = new File(baseFolder+"/"+name + ".dat");
+                HeapFile tabHf;
+                if (storage.isEmpty())
+                    tabHf = new HeapFile(tabFile, t);
+                else if (storage.equals("mmap"))
+                    tabHf = new MappedHeapFile(tabFile, t);
+                else
+                    throw new IllegalArgumentException("Unknown storage option '" + storage
+                            + "' for table " + name + " in " + catalogFile);
                 addTable(tabHf,name,primaryKey);
                 System.out.println("Added table : " + name + " with schema " + t);
             }
@@ -0,0 +1,117 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.function.Predicate;
+
+/**
+ * CLOCK (second chance) replacement. Resident pages sit on a circular list
+ * with a reference bit; a hit only sets the bit, and the clock hand clears
+ * bits as it sweeps until it finds a page whose bit is already clear.
+ * <p>
+ * Newly admitted pages start with a clear bit and are placed right behind
+ * the hand, so a page touched once by a scan is the first to go on the next
+ * full sweep, while pages that are hit again survive it.
+ */
+public class ClockEvictionPolicy implements EvictionPolicy {
+
+    private static class Frame {
+        final PageId pid;
+        boolean referenced;
+        Frame prev;
+        Frame next;
+
+        Frame(PageId pid) {
+            this.pid = pid;
+        }
+    }
+
+    private final HashMap<PageId, Frame> frames;
+    private Frame hand;
+
+    /**
+     * @param capacity the number of pages of the pool, used for sizing only
+     */
+    public ClockEvictionPolicy(int capacity) {
+        this.frames = new HashMap<>(Math.max(16, capacity * 2));
+        this.hand = null;
+    }
+
+    public void pageAdmitted(PageId pid) {
+        if (frames.containsKey(pid)) {
+            pageAccessed(pid);
+            return;
+        }
+        Frame frame = new Frame(pid);
+        frames.put(pid, frame);
+        if (hand == null) {
+            frame.prev = frame;
+            frame.next = frame;
+            hand = frame;
+        } else {
+            // insert just behind the hand, so it is the last frame to be examined
+            frame.next = hand;
+            frame.prev = hand.prev;
+            hand.prev.next = frame;
+            hand.prev = frame;
+        }
+    }
+
+    public void pageAccessed(PageId pid) {
+        Frame frame = frames.get(pid);
+        if (frame != null) {
+            frame.referenced = true;
+        }
+    }
+
+    public void pageRemoved(PageId pid) {
+        Frame frame = frames.remove(pid);
+        if (frame == null) {
+            return;
+        }
+        if (frame.next == frame) {
+            hand = null;
+            return;
+        }
+        frame.prev.next = frame.next;
+        frame.next.prev = frame.prev;
+        if (hand == frame) {
+            hand = frame.next;
+        }
+    }
+
+    public PageId chooseVictim(Predicate<PageId> evictable) {
+        // two sweeps: the first one may only clear reference bits
+        int steps = 2 * frames.size();
+        for (int i = 0; i < steps && hand != null; i++) {
+            Frame frame = hand;
+            hand = hand.next;
+            if (frame.referenced) {
+                frame.referenced = false;
+            } else if (evictable.test(frame.pid)) {
+                return frame.pid;
+            }
+        }
+        return null;
+    }
+
+    public List<PageId> coldestPages(int max) {
+        // what the hand would take in its next sweep, then the referenced pages
+        ArrayList<PageId> cold = new ArrayList<>();
+        ArrayList<PageId> referenced = new ArrayList<>();
+        Frame frame = hand;
+        for (int i = 0; i < frames.size() && cold.size() < max; i++) {
+            if (frame.referenced) {
+                referenced.add(frame.pid);
+            } else {
+                cold.add(frame.pid);
+            }
+            frame = frame.next;
+        }
+        for (int i = 0; i < referenced.size() && cold.size() < max; i++) {
+            cold.add(referenced.get(i));
+        }
+        return cold;
+    }
+}
@@ -56,6 +56,7 @@ public class Database {
      */
     public static BufferPool resetBufferPool(int pages) {
         java.lang.reflect.Field bufferPoolF=null;
+        _instance.get()._bufferpool.stopBackgroundThreads();
         try {
             bufferPoolF = Database.class.getDeclaredField("_bufferpool");
             bufferPoolF.setAccessible(true);
@@ -75,6 +76,9 @@ public class Database {
 
     // reset the database, used for unit tests only.
     public static void reset() {
+        Database old = _instance.get();
+        old._bufferpool.stopBackgroundThreads();
+        old._catalog.clear();
         _instance.set(new Database());
     }
 
@@ -43,6 +43,28 @@ public interface DbFile {
     public ArrayList<Page> insertTuple(TransactionId tid, Tuple t)
         throws DbException, IOException, TransactionAbortedException;
 
+    /**
+     * Inserts the tuples to the file on behalf of transaction, in order.
+     * Implementations should fill one page before moving to the next, so
+     * that each page is looked up and locked once per batch rather than
+     * once per tuple; the default simply inserts one tuple after the other.
+     *
+     * @param tid The transaction performing the update
+     * @param tuples The tuples to add, each updated to reflect where it is
+     *          now stored
+     * @return An ArrayList containing each page that was modified, once
+     * @throws DbException if a tuple cannot be added
+     * @throws IOException if the needed file can't be read/written
+     */
+    public default ArrayList<Page> insertTuples(TransactionId tid, Iterable<Tuple> tuples)
+        throws DbException, IOException, TransactionAbortedException {
+        LinkedHashSet<Page> modified = new LinkedHashSet<>();
+        for (Tuple t : tuples) {
+            modified.addAll(insertTuple(tid, t));
+        }
+        return new ArrayList<>(modified);
+    }
+
     /**
      * Removes the specified tuple from the file on behalf of the specified
      * transaction.
@@ -88,4 +110,13 @@ public interface DbFile {
      * @return TupleDesc of this DbFile.
      */
     public TupleDesc getTupleDesc();
+
+    /**
+     * Releases the file handles held by this DbFile. Called by the Catalog
+     * when the table is removed or replaced.
+     *
+     * @throws IOException if the file can't be closed
+     */
+    public default void close() throws IOException {
+    }
 }
@@ -0,0 +1,68 @@
+package simpledb;
+
+/**
+ * DeadlockDetector is the daemon thread behind the BACKGROUND deadlock
+ * policy of a LockManager. Waiting transactions then never look for
+ * cycles themselves; instead this thread searches the whole wait-for
+ * graph every interval and aborts the youngest waiter of each cycle it
+ * finds.
+ *
+ * @see LockManager.DeadlockPolicy#BACKGROUND
+ */
+public class DeadlockDetector extends Thread {
+
+    private final LockManager lockManager;
+    private final long intervalMillis;
+    private volatile boolean running;
+    private volatile long victims;
+    private final Object sleeper = new Object();
+
+    /**
+     * @param lockManager the lock manager whose waiters are checked
+     * @param intervalMillis how long to sleep between two searches
+     */
+    public DeadlockDetector(LockManager lockManager, long intervalMillis) {
+        super("simpledb-deadlock-detector");
+        this.lockManager = lockManager;
+        this.intervalMillis = Math.max(1, intervalMillis);
+        this.running = true;
+        this.victims = 0;
+        setDaemon(true);
+    }
+
+    /** @return the number of transactions aborted by this thread so far */
+    public long getVictims() {
+        return victims;
+    }
+
+    /** Ask the thread to stop and wait until it has. */
+    public void shutdown() {
+        synchronized (sleeper) {
+            running = false;
+            sleeper.notifyAll();
+        }
+        try {
+            join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            try {
+                victims += lockManager.breakDeadlocks();
+                synchronized (sleeper) {
+                    if (running) {
+                        sleeper.wait(intervalMillis);
+                    }
+                }
+            } catch (InterruptedException e) {
+                return;
+            } catch (Exception e) {
+                Debug.log("deadlock detector: " + e);
+            }
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package simpledb;
+
+import java.util.List;
+import java.util.function.Predicate;
+
+/**
+ * EvictionPolicy decides which resident page the BufferPool gives up when it
+ * needs room for a new one.
+ * <p>
+ * The BufferPool reports every page that enters the pool, every hit on a
+ * resident page and every page that leaves it; each of those calls must only
+ * do a constant amount of bookkeeping, since they sit on the getPage path.
+ * The policy is only asked for a victim when the pool is full.
+ * <p>
+ * Implementations are not thread safe, the BufferPool serializes the calls.
+ *
+ * @see BufferPool
+ */
+public interface EvictionPolicy {
+
+    /**
+     * Called after a page that was not resident has been loaded into the pool.
+     *
+     * @param pid the page that entered the pool
+     */
+    public void pageAdmitted(PageId pid);
+
+    /**
+     * Called when a page that is already resident is requested again.
+     *
+     * @param pid the page that was hit
+     */
+    public void pageAccessed(PageId pid);
+
+    /**
+     * Called after a page has left the pool, either because it was chosen as
+     * a victim or because it was discarded.
+     *
+     * @param pid the page that left the pool
+     */
+    public void pageRemoved(PageId pid);
+
+    /**
+     * Pick the resident page that should be evicted next. The page is not
+     * removed from the policy; the BufferPool calls {@link #pageRemoved}
+     * once it has actually dropped it.
+     *
+     * @param evictable tells whether a candidate may be evicted right now
+     *     (e.g. whether it is clean)
+     * @return the page to evict, or null if no resident page passes
+     *     evictable
+     */
+    public PageId chooseVictim(Predicate<PageId> evictable);
+
+    /**
+     * List resident pages in the order in which they would be evicted,
+     * without changing any replacement state. Used by the background writer
+     * to find dirty pages that are about to be evicted.
+     *
+     * @param max the maximum number of pages to return
+     * @return up to max resident pages, the coldest first
+     */
+    public List<PageId> coldestPages(int max);
+}
@@ -0,0 +1,210 @@
+package simpledb;
+
+import java.io.*;
+import java.util.BitSet;
+
+/**
+ * FreeSpaceMap remembers which pages of a HeapFile may have free slots, so
+ * that an insert can go straight to such a page instead of looking at
+ * every page of the table.
+ * <p>
+ * The map is a hint: a set bit means the page had a free slot when it was
+ * last changed, and callers must check the page itself under a write lock
+ * before relying on it. HeapPage.insertTuple and deleteTuple keep the map
+ * up to date.
+ * <p>
+ * The map is kept in a file next to the table file and is written when the
+ * table is closed. The file records the length and modification time of the
+ * table file it describes and is deleted as soon as the map changes, so a
+ * map that is missing or out of date (e.g. after a crash) is rebuilt by
+ * reading every page once. The map file of a table file in the temporary
+ * directory is deleted when the JVM exits, like the temporary table files
+ * of tests; whoever deletes a table file otherwise should delete its map
+ * with {@link #delete}.
+ *
+ * @see HeapFile#getFreeSpaceMap
+ */
+public class FreeSpaceMap {
+
+    /** suffix appended to the name of the table file */
+    public static final String SUFFIX = ".fsm";
+
+    private final HeapFile hf;
+    private final File file;
+    private final BitSet free;
+    /** page where the next search starts, usually the page last returned */
+    private int cursor;
+    /** true if the map differs from the file next to the table */
+    private boolean dirty;
+
+    /**
+     * Loads the map of a heap file, rebuilding it if there is no valid
+     * saved map.
+     *
+     * @param hf the heap file the map describes
+     */
+    public FreeSpaceMap(HeapFile hf) {
+        this.hf = hf;
+        this.file = new File(hf.getFile().getPath() + SUFFIX);
+        if (isTemporary(hf.getFile())) {
+            this.file.deleteOnExit();
+        }
+        this.free = new BitSet();
+        this.cursor = 0;
+        if (!load()) {
+            rebuild();
+        }
+    }
+
+    /** @return true if tableFile is in the temporary directory */
+    private static boolean isTemporary(File tableFile) {
+        File dir = tableFile.getAbsoluteFile().getParentFile();
+        try {
+            return dir != null && dir.getCanonicalFile().equals(
+                    new File(System.getProperty("java.io.tmpdir")).getCanonicalFile());
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Deletes the saved map of a table file, if there is one. Call when
+     * deleting the table file.
+     */
+    public static void delete(File tableFile) {
+        new File(tableFile.getPath() + SUFFIX).delete();
+    }
+
+    /** @return the file the map is saved in */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Returns a page that may have a free slot, or -1 if no page is known to
+     * have one. Returns the same page until it is marked full, so that
+     * consecutive inserts fill one page after the other.
+     */
+    public synchronized int pageWithSpace() {
+        int pgNo = free.nextSetBit(cursor);
+        if (pgNo < 0) {
+            pgNo = free.nextSetBit(0);
+        }
+        if (pgNo >= 0) {
+            cursor = pgNo;
+        }
+        return pgNo;
+    }
+
+    /**
+     * Returns the first page from pgNo on that may have a free slot, or -1.
+     * Unlike {@link #pageWithSpace} this does not move the insert cursor.
+     */
+    public synchronized int nextPageWithSpace(int pgNo) {
+        return free.nextSetBit(pgNo);
+    }
+
+    /** Records whether page pgNo has a free slot. */
+    public synchronized void setHasSpace(int pgNo, boolean hasSpace) {
+        if (free.get(pgNo) == hasSpace) {
+            return;
+        }
+        free.set(pgNo, hasSpace);
+        if (hasSpace && pgNo < cursor) {
+            cursor = pgNo;
+        }
+        if (!dirty) {
+            // the saved map is out of date from now on
+            dirty = true;
+            file.delete();
+        }
+    }
+
+    /** @return true if page pgNo is known to have a free slot */
+    public synchronized boolean hasSpace(int pgNo) {
+        return free.get(pgNo);
+    }
+
+    /**
+     * Reads every page of the file to find the pages with free slots. Pages
+     * that cannot be read are left out rather than repaired: repair takes
+     * the log's monitor, which must not be waited for under the file's.
+     */
+    private void rebuild() {
+        free.clear();
+        int numPages = hf.numPages();
+        for (int i = 0; i < numPages; i++) {
+            HeapPage page;
+            try {
+                page = hf.readVerifiedPage(new HeapPageId(hf.getId(), i));
+            } catch (IllegalArgumentException | IOException e) {
+                continue;
+            }
+            if (page.getNumEmptySlots() > 0) {
+                free.set(i);
+            }
+        }
+        dirty = true;
+        file.delete();
+    }
+
+    /**
+     * Reads the saved map, if it exists and describes the current table file.
+     * @return true if the map was loaded
+     */
+    private boolean load() {
+        if (!file.exists()) {
+            return false;
+        }
+        File f = hf.getFile();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != BufferPool.getPageSize()
+                    || in.readLong() != f.length()
+                    || in.readLong() != f.lastModified()) {
+                return false;
+            }
+            int words = in.readInt();
+            long[] bits = new long[words];
+            for (int i = 0; i < words; i++) {
+                bits[i] = in.readLong();
+            }
+            free.clear();
+            free.or(BitSet.valueOf(bits));
+            dirty = false;
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Writes the map next to the table file if it changed since it was
+     * loaded. Called when the table file is closed; the table file must not
+     * change afterwards, or the saved map is ignored at the next load.
+     */
+    public synchronized void save() throws IOException {
+        if (!dirty) {
+            return;
+        }
+        File f = hf.getFile();
+        if (!f.exists()) {
+            return;
+        }
+        File tmp = new File(file.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            out.writeInt(BufferPool.getPageSize());
+            out.writeLong(f.length());
+            out.writeLong(f.lastModified());
+            long[] bits = free.toLongArray();
+            out.writeInt(bits.length);
+            for (long word : bits) {
+                out.writeLong(word);
+            }
+        }
+        if (!tmp.renameTo(file)) {
+            tmp.delete();
+            throw new IOException("could not save free space map " + file);
+        }
+        dirty = false;
+    }
+}
@@ -0,0 +1,222 @@
+package simpledb;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * GroupCommit makes the COMMIT records of concurrent transactions durable
+ * with a shared force of the log, so commit throughput is not capped at
+ * one fsync per transaction.
+ * <p>
+ * A committer appends its COMMIT record and then waits in
+ * {@link #awaitDurable} until the log is forced past it. The first waiter
+ * that finds no force in progress becomes the flusher: it waits until
+ * maxBatch committers are waiting or maxDelay has passed, forces
+ * everything appended to the log so far, and wakes every committer that
+ * force covered. Committers arriving meanwhile wait for the next force,
+ * done by one of them. With the default delay of 0 the flusher forces at
+ * once, and batches form only from commits that arrive during a force.
+ * <p>
+ * Any force of the log counts, including the ones LogFile does for aborts
+ * and for pages the BufferPool writes out. Each force that makes COMMIT
+ * records durable counts as a batch of that many commits; batch sizes go
+ * into a histogram whose bucket i counts batches of fewer than 2^i
+ * commits (and at least 2^(i-1)), the last bucket taking all larger ones.
+ *
+ * @see LogFile#getGroupCommit
+ */
+public class GroupCommit {
+
+    public static final int HISTOGRAM_BUCKETS = 16;
+
+    private final LogFile log;
+    private volatile long maxDelayNanos = 0;
+    private volatile int maxBatch = 64;
+
+    // guarded by this
+    /** LSN of the last record known to be durable */
+    private long durable;
+    /** COMMIT records known to be durable */
+    private long durableCommits;
+    /** committers in awaitDurable */
+    private int waiting;
+    private boolean flushing;
+
+    private final LongAdder batches = new LongAdder();
+    private final LongAdder commits = new LongAdder();
+    private final AtomicLongArray batchHistogram = new AtomicLongArray(HISTOGRAM_BUCKETS);
+    private volatile long maxBatchSeen;
+
+    GroupCommit(LogFile log) {
+        this.log = log;
+    }
+
+    /**
+     * Set the window a flusher waits for more committers to join its batch.
+     *
+     * @param maxDelayMicros how long the flusher waits at most, in
+     *        microseconds; 0 to force at once
+     * @param maxBatch the number of waiting committers at which the flusher
+     *        stops waiting
+     */
+    public void setWindow(long maxDelayMicros, int maxBatch) {
+        if (maxDelayMicros < 0 || maxBatch < 1) {
+            throw new IllegalArgumentException("need maxDelayMicros >= 0 and maxBatch >= 1");
+        }
+        this.maxDelayNanos = TimeUnit.MICROSECONDS.toNanos(maxDelayMicros);
+        this.maxBatch = maxBatch;
+    }
+
+    /** @return how long a flusher waits for a batch to fill, in microseconds */
+    public long getMaxDelayMicros() {
+        return TimeUnit.NANOSECONDS.toMicros(maxDelayNanos);
+    }
+
+    /** @return the number of waiting committers that ends a flusher's wait */
+    public int getMaxBatch() {
+        return maxBatch;
+    }
+
+    /**
+     * Wait until the log is durable up to record seq, forcing it if no
+     * other thread is.
+     *
+     * @param seq the LSN of the record
+     */
+    void awaitDurable(long seq) throws IOException {
+        while (true) {
+            synchronized (this) {
+                waiting++;
+                try {
+                    while (durable < seq && flushing) {
+                        if (waiting >= maxBatch) {
+                            notifyAll();
+                        }
+                        wait();
+                    }
+                    if (durable >= seq) {
+                        return;
+                    }
+                    flushing = true;
+                    fillBatch();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("interrupted waiting for the log to be forced");
+                } finally {
+                    waiting--;
+                }
+            }
+            // the force runs without this monitor, so that committers can
+            // append and line up for the next batch meanwhile
+            try {
+                log.forceAppended();
+            } finally {
+                synchronized (this) {
+                    flushing = false;
+                    notifyAll();
+                }
+            }
+        }
+    }
+
+    /** Waits, as the flusher, for the batch to fill or the delay to pass. */
+    private void fillBatch() {
+        long delay = maxDelayNanos;
+        if (delay == 0) {
+            return;
+        }
+        long deadline = System.nanoTime() + delay;
+        long remaining = delay;
+        try {
+            while (waiting < maxBatch && remaining > 0) {
+                TimeUnit.NANOSECONDS.timedWait(this, remaining);
+                remaining = deadline - System.nanoTime();
+            }
+        } catch (InterruptedException e) {
+            // force now: the other committers are waiting for this flusher
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Called by LogFile after every force of the log.
+     *
+     * @param appended the LSN of the last record appended before the force began
+     * @param appendedCommits the number of COMMIT records among them
+     */
+    synchronized void forced(long appended, long appendedCommits) {
+        if (appended > durable) {
+            durable = appended;
+        }
+        long batch = appendedCommits - durableCommits;
+        if (batch > 0) {
+            durableCommits = appendedCommits;
+            batches.increment();
+            commits.add(batch);
+            batchHistogram.incrementAndGet(bucket(batch));
+            if (batch > maxBatchSeen) {
+                maxBatchSeen = batch;
+            }
+        }
+        notifyAll();
+    }
+
+    /** @return true if the log is known to be on disk up to record seq */
+    synchronized boolean isDurable(long seq) {
+        return durable >= seq;
+    }
+
+    /** @return the number of records known to be on disk */
+    synchronized long getDurable() {
+        return durable;
+    }
+
+    /** @return the histogram bucket of a batch of n commits */
+    static int bucket(long n) {
+        int b = 64 - Long.numberOfLeadingZeros(n);
+        return Math.min(b, HISTOGRAM_BUCKETS - 1);
+    }
+
+    /** @return the number of forces that made COMMIT records durable */
+    public long getBatches() {
+        return batches.sum();
+    }
+
+    /** @return the number of COMMIT records made durable */
+    public long getCommits() {
+        return commits.sum();
+    }
+
+    /** @return the average number of commits per batch, or 0 without batches */
+    public double getAverageBatchSize() {
+        long b = batches.sum();
+        return b == 0 ? 0 : (double) commits.sum() / b;
+    }
+
+    /** @return the largest batch so far */
+    public long getMaxBatchSize() {
+        return maxBatchSeen;
+    }
+
+    /** @return a copy of the batch size histogram; see {@link GroupCommit} for the buckets */
+    public long[] getBatchSizeHistogram() {
+        long[] histogram = new long[HISTOGRAM_BUCKETS];
+        for (int i = 0; i < HISTOGRAM_BUCKETS; i++) {
+            histogram[i] = batchHistogram.get(i);
+        }
+        return histogram;
+    }
+
+    /** Sets the batch statistics back to zero. */
+    public void resetStats() {
+        batches.reset();
+        commits.reset();
+        maxBatchSeen = 0;
+        for (int i = 0; i < HISTOGRAM_BUCKETS; i++) {
+            batchHistogram.set(i, 0);
+        }
+    }
+}
@@ -1,6 +1,8 @@
 package simpledb;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.*;
 
 /**
@@ -10,6 +12,26 @@ import java.util.*;
  * closely with HeapPage. The format of HeapPages is described in the HeapPage
  * constructor.
  *
+ * <p>
+ * All I/O goes through one FileChannel that stays open for the lifetime of
+ * the HeapFile, using positional reads and writes so that concurrent
+ * readers do not share a file pointer. The Catalog closes the channel when
+ * the table is removed; it is reopened if the file is used again.
+ *
+ * <p>
+ * When the BufferPool uses record locks, inserts, deletes and scans lock
+ * single records below an intention lock on the page instead of locking
+ * whole pages; see {@link BufferPool#setRecordLocking}.
+ *
+ * <p>
+ * Next to the table file, a file named like it with the suffix
+ * {@link FreeSpaceMap#SUFFIX} holds the pages with free slots. It is
+ * deleted when a change to the table makes it out of date, and written
+ * again by {@link #close}. It is rebuilt if it is missing or stale, so it
+ * may always be deleted. Deleting the table file does not delete it: use
+ * {@link FreeSpaceMap#delete}. For table files in the temporary directory
+ * it is deleted when the JVM exits.
+ *
  * @see simpledb.HeapPage#HeapPage
  * @author Sam Madden
  */
@@ -17,6 +39,8 @@ public class HeapFile implements DbFile {
     private final File f;
     private final TupleDesc td;
     private final int id;
+    private FileChannel channel;
+    private FreeSpaceMap freeSpaceMap;
 
     /**
      * Constructs a heap file backed by the specified file.
@@ -66,37 +90,130 @@ public class HeapFile implements DbFile {
         return this.td;
     }
 
-    // see DbFile.java for javadocs
+    /**
+     * Returns the channel of the backing file, opening it on first use or
+     * again after {@link #close}.
+     */
+    synchronized FileChannel getChannel() throws IOException {
+        if (this.channel == null || !this.channel.isOpen()) {
+            this.channel = new RandomAccessFile(this.f, "rw").getChannel();
+        }
+        return this.channel;
+    }
+
+    /**
+     * Returns the map of pages with free slots, loading or building it on
+     * first use.
+     */
+    public synchronized FreeSpaceMap getFreeSpaceMap() {
+        if (this.freeSpaceMap == null) {
+            this.freeSpaceMap = new FreeSpaceMap(this);
+        }
+        return this.freeSpaceMap;
+    }
+
+    /**
+     * Closes the channel of the backing file and saves the free space map.
+     * Called by the Catalog when the table goes away; a later read or write
+     * reopens it.
+     */
+    public synchronized void close() throws IOException {
+        if (this.freeSpaceMap != null) {
+            this.freeSpaceMap.save();
+        }
+        if (this.channel != null) {
+            this.channel.close();
+            this.channel = null;
+        }
+    }
+
+    /**
+     * Reads a page and checks its checksum, if pages have one; see
+     * {@link HeapPage#setChecksums}. A damaged page is rebuilt from the
+     * log, see {@link LogFile#repairPage}, and written back.
+     *
+     * @throws UncheckedIOException wrapping a PageCorruptedException if the
+     *         page is damaged and the log cannot rebuild it
+     * @see DbFile#readPage
+     */
     public Page readPage(PageId pid) throws IllegalArgumentException {
         // some code goes here
-        int pgSIZE = BufferPool.getPageSize();
-        byte data[];
         try{
-            data = new byte[pgSIZE];
-            RandomAccessFile raf = new RandomAccessFile(this.f, "r");
-            int offset = pid.getPageNumber() * pgSIZE;
-            if (offset + BufferPool.getPageSize() > raf.length()){
-                throw new IllegalArgumentException("page offset too long");
-            }
-            raf.seek(offset);
-            raf.read(data);
-            Page page = new HeapPage((HeapPageId) pid, data);
-            return page;
+            return readVerifiedPage((HeapPageId) pid);
+        } catch (PageCorruptedException e) {
+            return repairPage((HeapPageId) pid, e);
         } catch (IllegalArgumentException | IOException e){
             e.printStackTrace();
         }
         return null;
     }
 
+    /**
+     * Reads page pid from disk, without repairing it. A page the file ends
+     * in the middle of is read padded with zeroes.
+     *
+     * @throws PageCorruptedException if the page fails its checksum
+     */
+    HeapPage readVerifiedPage(HeapPageId pid) throws IOException {
+        int pgSIZE = BufferPool.getPageSize();
+        FileChannel ch = getChannel();
+        long offset = (long) pid.getPageNumber() * pgSIZE;
+        if (offset >= ch.size()){
+            throw new IllegalArgumentException("page offset too long");
+        }
+        // the page keeps the buffer as its image, so it is not reused; it
+        // is allocated zeroed, which pads a page cut short by the end of file
+        ByteBuffer buf = ByteBuffer.allocate(pgSIZE);
+        while (buf.hasRemaining()) {
+            if (ch.read(buf, offset + buf.position()) < 0) {
+                break;
+            }
+        }
+        buf.rewind();
+        if (!HeapPage.checksumValid(buf)) {
+            throw new PageCorruptedException("page " + pid.getPageNumber() + " of " + f + " fails its checksum");
+        }
+        return new HeapPage(pid, buf);
+    }
+
+    /**
+     * Rebuilds a damaged page from the log and writes it back.
+     *
+     * @throws UncheckedIOException if the page cannot be rebuilt
+     */
+    private Page repairPage(HeapPageId pid, PageCorruptedException damage) {
+        Page page;
+        try {
+            page = Database.getLogFile().repairPage(pid);
+            if (page != null) {
+                writePage(page);
+            }
+        } catch (IOException e) {
+            damage.addSuppressed(e);
+            throw new UncheckedIOException(damage);
+        }
+        if (page == null) {
+            throw new UncheckedIOException(new PageCorruptedException(damage.getMessage()
+                    + ", and the log holds no full image to rebuild it from"));
+        }
+        return page;
+    }
+
     // see DbFile.java for javadocs
     public void writePage(Page page) throws IOException {
         // some code goes here
         // not necessary for lab1
-        int offset = page.getId().getPageNumber() * BufferPool.getPageSize();
-        RandomAccessFile raf = new RandomAccessFile(this.f, "rw");
-        raf.seek(offset);
-        raf.write(page.getPageData());
-        raf.close();
+        writePageData(page.getId().getPageNumber(), page.getPageData());
+    }
+
+    /** Writes the image of page pgNo, extending the file if needed. */
+    void writePageData(int pgNo, byte[] data) throws IOException {
+        long offset = (long) pgNo * BufferPool.getPageSize();
+        FileChannel ch = getChannel();
+        ByteBuffer buf = ByteBuffer.wrap(data);
+        while (buf.hasRemaining()) {
+            ch.write(buf, offset + buf.position());
+        }
     }
 
     /**
@@ -104,33 +221,230 @@ public class HeapFile implements DbFile {
      */
     public int numPages() {
         // some code goes here
-        return (int) Math.ceil(this.f.length()/BufferPool.getPageSize());
+        try {
+            return (int) (getChannel().size() / BufferPool.getPageSize());
+        } catch (IOException e) {
+            return (int) (this.f.length() / BufferPool.getPageSize());
+        }
     }
 
     // see DbFile.java for javadocs
     public ArrayList<Page> insertTuple(TransactionId tid, Tuple t)
             throws DbException, IOException, TransactionAbortedException {
         // some code goes here
+        if (Database.getBufferPool().isRecordLocking()) {
+            return insertRecord(tid, t);
+        }
         ArrayList<Page> modifiedPagesArr = new ArrayList<>();
+        HeapPage page = lockPageWithSpace(tid);
+        if (page != null){
+            page.insertTuple(t);
+            modifiedPagesArr.add(page);
+            return modifiedPagesArr;
+        }
 
-        for (int i = 0; i < numPages(); i++){
-            PageId pid = new HeapPageId(getId(),i);
-            HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_ONLY);
-            if(page.getNumEmptySlots()>0){
-                page = (HeapPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_WRITE);
-                page.insertTuple(t);
+        page = appendPage(tid);
+        page.insertTuple(t);
+        modifiedPagesArr.add(page);
+        return modifiedPagesArr;
+    }
+
+    /**
+     * Inserts a tuple under record locks: the tuple goes to the first free
+     * slot that tid can X-lock without waiting, on a page it holds an IX
+     * lock on. Slots freed by transactions that have not committed yet are
+     * skipped, so their deletes can still be rolled back.
+     */
+    private ArrayList<Page> insertRecord(TransactionId tid, Tuple t)
+            throws DbException, IOException, TransactionAbortedException {
+        BufferPool bp = Database.getBufferPool();
+        FreeSpaceMap fsm = getFreeSpaceMap();
+        ArrayList<Page> modifiedPagesArr = new ArrayList<>();
+        int pgNo = fsm.nextPageWithSpace(0);
+        while (true) {
+            HeapPageId pid = new HeapPageId(getId(), pgNo >= 0 ? pgNo : appendEmptyPage());
+            HeapPage page = (HeapPage) bp.getPageForRecords(tid, pid, Permissions.READ_WRITE);
+            if (page.insertTuple(t, slot -> bp.tryLockRecord(tid, new RecordId(pid, slot)))) {
                 modifiedPagesArr.add(page);
-                break;
+                return modifiedPagesArr;
+            }
+            if (pgNo >= 0) {
+                if (page.getNumEmptySlots() == 0) {
+                    fsm.setHasSpace(pgNo, false);
+                }
+                pgNo = fsm.nextPageWithSpace(pgNo + 1);
+            }
+        }
+    }
+
+    /**
+     * Inserts the tuples one page after the other: each page is filled
+     * before the next one is looked up, and pages appended to the file are
+     * locked and filled in the BufferPool like any other page.
+     *
+     * @see DbFile#insertTuples
+     */
+    public ArrayList<Page> insertTuples(TransactionId tid, Iterable<Tuple> tuples)
+            throws DbException, IOException, TransactionAbortedException {
+        return insertTuples(tid, tuples.iterator(), false);
+    }
+
+    /**
+     * Inserts the tuples like {@link #insertTuples(TransactionId, Iterable)},
+     * but once no page of the file has a free slot, writes the remaining
+     * tuples as full pages straight to the end of the file, bypassing the
+     * BufferPool and page-level logging.
+     * <p>
+     * Each run of such pages is preceded by a single forced BULK_APPEND log
+     * record, and the pages are forced to disk before this method returns,
+     * so committing needs no log records for them; if the transaction
+     * aborts, rollback and recovery empty the pages again. The appended
+     * pages are not locked, so other transactions must not read the table
+     * while it is loaded. The last, partially filled page goes through the
+     * BufferPool as usual.
+     *
+     * @return the pages modified through the BufferPool; the pages written
+     *         directly are not included
+     * @see LogFile#logBulkAppend
+     */
+    public ArrayList<Page> bulkInsertTuples(TransactionId tid, Iterable<Tuple> tuples)
+            throws DbException, IOException, TransactionAbortedException {
+        return insertTuples(tid, tuples.iterator(), true);
+    }
+
+    private ArrayList<Page> insertTuples(TransactionId tid, Iterator<Tuple> it, boolean bulk)
+            throws DbException, IOException, TransactionAbortedException {
+        LinkedHashMap<PageId, Page> modified = new LinkedHashMap<>();
+        if (Database.getBufferPool().isRecordLocking()) {
+            while (it.hasNext()) {
+                for (Page page : insertRecord(tid, it.next())) {
+                    page.markDirty(true, tid);
+                    modified.put(page.getId(), page);
+                }
             }
+            return new ArrayList<>(modified.values());
         }
-        if (modifiedPagesArr.isEmpty()){
-            int pgSIZE = BufferPool.getPageSize();
-            HeapPage newPage = new HeapPage(new HeapPageId(getId(), numPages()), new byte[pgSIZE]);
-            newPage.insertTuple(t);
-            this.writePage(newPage);
-            modifiedPagesArr.add(newPage);
+        HeapPage page = null;
+        while (it.hasNext()) {
+            if (page == null || page.getNumEmptySlots() == 0) {
+                page = lockPageWithSpace(tid);
+                if (page == null) {
+                    if (bulk) {
+                        List<Tuple> rest = appendFullPages(tid, it);
+                        if (rest.isEmpty()) {
+                            break;
+                        }
+                        it = rest.iterator();
+                    }
+                    page = appendPage(tid);
+                }
+            }
+            page.insertTuple(it.next());
+            // the next page looked up may evict this one, which must not
+            // be taken for a clean page
+            page.markDirty(true, tid);
+            modified.put(page.getId(), page);
+        }
+        return new ArrayList<>(modified.values());
+    }
+
+    /**
+     * Returns a page with a free slot, locked for writing by tid, or null
+     * if the free space map knows of none. Pages the map wrongly lists are
+     * taken off the map on the way.
+     */
+    private HeapPage lockPageWithSpace(TransactionId tid)
+            throws DbException, TransactionAbortedException {
+        BufferPool bp = Database.getBufferPool();
+        FreeSpaceMap fsm = getFreeSpaceMap();
+
+        int pgNo;
+        while ((pgNo = fsm.pageWithSpace()) >= 0){
+            PageId pid = new HeapPageId(getId(), pgNo);
+            boolean locked = bp.holdsLock(tid, pid);
+            HeapPage page = (HeapPage) bp.getPage(tid, pid, Permissions.READ_WRITE);
+            if(page.getNumEmptySlots()>0){
+                return page;
+            }
+            // the map was out of date; nothing was read from the page, so
+            // the lock taken just for looking at it can go again
+            fsm.setHasSpace(pgNo, false);
+            if (!locked){
+                bp.releasePage(tid, pid);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Adds an empty page to the end of the file and returns it, locked for
+     * writing by tid.
+     */
+    private HeapPage appendPage(TransactionId tid)
+            throws DbException, IOException, TransactionAbortedException {
+        HeapPageId pid = new HeapPageId(getId(), appendEmptyPage());
+        return (HeapPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_WRITE);
+    }
+
+    /** Adds an empty page to the end of the file and returns its number. */
+    private synchronized int appendEmptyPage() throws IOException {
+        int pgNo = numPages();
+        writePageData(pgNo, HeapPage.createEmptyPageData());
+        return pgNo;
+    }
+
+    /** the number of pages written directly per BULK_APPEND log record */
+    static final int BULK_APPEND_PAGES = 64;
+
+    /**
+     * Writes tuples from it as full pages to the end of the file, logging
+     * one BULK_APPEND record per BULK_APPEND_PAGES pages.
+     *
+     * @return the tuples left over that do not fill a page
+     */
+    private List<Tuple> appendFullPages(TransactionId tid, Iterator<Tuple> it) throws IOException {
+        int perPage = HeapPage.getNumTuples(td, BufferPool.getPageSize());
+        ArrayList<Tuple> pending = new ArrayList<>(perPage);
+        ArrayList<byte[]> pages = new ArrayList<>();
+        while (it.hasNext()) {
+            pending.add(it.next());
+            if (pending.size() == perPage) {
+                pages.add(HeapPage.createPageData(td, BufferPool.getPageSize(), pending));
+                pending.clear();
+                if (pages.size() == BULK_APPEND_PAGES) {
+                    writeBulkPages(tid, pages);
+                    pages.clear();
+                }
+            }
+        }
+        if (!pages.isEmpty()) {
+            writeBulkPages(tid, pages);
+        }
+        return pending;
+    }
+
+    /**
+     * Writes full page images to a range of new pages at the end of the
+     * file: the range is reserved, logged and forced to the log, and then
+     * the pages are written and forced to disk.
+     */
+    private void writeBulkPages(TransactionId tid, List<byte[]> pages) throws IOException {
+        int first;
+        synchronized (this) {
+            first = numPages();
+            // reserve the range so that concurrent appends go behind it
+            writePageData(first + pages.size() - 1, HeapPage.createEmptyPageData());
+        }
+        Database.getLogFile().logBulkAppend(tid, getId(), first, pages.size());
+        for (int i = 0; i < pages.size(); i++) {
+            writePageData(first + i, pages.get(i));
+        }
+        getChannel().force(false);
+        // a scan may have cached a page of the range before it was written
+        BufferPool bp = Database.getBufferPool();
+        for (int i = 0; i < pages.size(); i++) {
+            bp.discardPage(new HeapPageId(getId(), first + i));
         }
-        return modifiedPagesArr;
     }
 
     // see DbFile.java for javadocs
@@ -138,8 +452,15 @@ public class HeapFile implements DbFile {
             TransactionAbortedException {
         // some code goes here
         ArrayList<Page> modifiedPagesArr = new ArrayList<>();
+        BufferPool bp = Database.getBufferPool();
         PageId pid = t.getRecordId().getPageId();
-        HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_WRITE);
+        HeapPage page;
+        if (bp.isRecordLocking()) {
+            page = (HeapPage) bp.getPageForRecords(tid, pid, Permissions.READ_WRITE);
+            bp.lockRecord(tid, t.getRecordId(), Permissions.READ_WRITE);
+        } else {
+            page = (HeapPage) bp.getPage(tid, pid, Permissions.READ_WRITE);
+        }
         page.deleteTuple(t);
         modifiedPagesArr.add(page);
         return modifiedPagesArr;
@@ -151,6 +472,12 @@ public class HeapFile implements DbFile {
         return new HeapFileIterator(tid);
     }
 
+    /**
+     * Iterates over the tuples of the file page by page. The page currently
+     * being iterated over is pinned in the BufferPool, so it cannot be
+     * evicted under the iterator. The pin belongs to the iterator's
+     * transaction, so one never closed is unpinned when that completes.
+     */
     private class HeapFileIterator implements DbFileIterator {
         private int curPgNum = 0;
         private HeapPageId pid;
@@ -165,15 +492,60 @@ public class HeapFile implements DbFile {
         }
 
         public void openByPgNum(int pgNum) throws DbException, TransactionAbortedException {
+            unpinCurrentPage();
             this.curPgNum = pgNum;
             this.pid = new HeapPageId(getId(), curPgNum);
-            this.curPg = (HeapPage) Database.getBufferPool().getPage(this.tid,
+            if (Database.getBufferPool().isSnapshot(this.tid)) {
+                // a version of the page, which nobody else changes
+                this.it = ((HeapPage) Database.getBufferPool().getPage(this.tid, pid, Permissions.READ_ONLY)).iterator();
+                return;
+            }
+            if (Database.getBufferPool().isRecordLocking()) {
+                this.it = readRecords();
+                return;
+            }
+            this.curPg = (HeapPage) Database.getBufferPool().pinPage(this.tid,
                     pid, Permissions.READ_ONLY);
             this.it = curPg.iterator();
         }
 
+        /**
+         * Reads the tuples of the current page under record S locks. Copies
+         * of the tuples are returned, so the page is not pinned.
+         */
+        private Iterator<Tuple> readRecords() throws DbException, TransactionAbortedException {
+            BufferPool bp = Database.getBufferPool();
+            HeapPage page = (HeapPage) bp.getPageForRecords(this.tid, pid, Permissions.READ_ONLY);
+            ArrayList<Tuple> tuples = new ArrayList<>();
+            for (int i = 0; i < page.getNumSlots(); i++) {
+                RecordId rid = new RecordId(pid, i);
+                // an empty slot that is locked may hold a delete that is not
+                // committed yet, and a used one an insert
+                if (page.isSlotUsed(i) || bp.isRecordLocked(rid)) {
+                    bp.lockRecord(this.tid, rid, Permissions.READ_ONLY);
+                    Tuple t = page.getTuple(i);
+                    if (t != null) {
+                        tuples.add(t);
+                    }
+                }
+            }
+            return tuples.iterator();
+        }
+
+        private void unpinCurrentPage() {
+            if (this.curPg != null) {
+                Database.getBufferPool().unpinPage(this.tid, this.pid);
+                this.curPg = null;
+            }
+        }
+
         @Override
         public void open() throws DbException, TransactionAbortedException {
+            // a scan that would escalate anyway locks the whole table up front
+            int threshold = Database.getBufferPool().getLockEscalationThreshold();
+            if (threshold > 0 && numPages() > threshold && !Database.getBufferPool().isSnapshot(this.tid)) {
+                Database.getBufferPool().lockTable(this.tid, getId(), Permissions.READ_ONLY);
+            }
             openByPgNum(0);
             this.statusOpen = true;
         }
@@ -189,6 +561,8 @@ public class HeapFile implements DbFile {
                     if (this.it.hasNext())
                         return true;
                 }
+                // exhausted, nothing left to read from the last page
+                unpinCurrentPage();
             }
             return false;
         }
@@ -209,12 +583,11 @@ public class HeapFile implements DbFile {
 
         @Override
         public void close() {
+            unpinCurrentPage();
             this.curPgNum = 0;
             this.pid = null;
-            this.curPg = null;
             this.it = null;
             this.statusOpen = false;
         }
     }
 }
-
@@ -2,6 +2,7 @@ package simpledb;
 
 import java.io.*;
 import java.util.ArrayList;
+import java.util.Arrays;
 
 /**
  * HeapFileEncoder reads a comma delimited text file or accepts
@@ -26,29 +27,39 @@ public class HeapFileEncoder {
    * @param outFile The output file to write data to
    * @param npagebytes The number of bytes per page in the output file
    * @param numFields the number of fields in each input tuple
-   * @throws IOException if the temporary/output file can't be opened
+   * @throws IOException if the output file can't be opened
    */
   public static void convert(ArrayList<ArrayList<Integer>> tuples, File outFile, int npagebytes, int numFields) throws IOException {
-      File tempInput = File.createTempFile("tempTable", ".txt");
-      tempInput.deleteOnExit();
-      BufferedWriter bw = new BufferedWriter(new FileWriter(tempInput));
-      for (ArrayList<Integer> tuple : tuples) {
-          int writtenFields = 0;
-          for (Integer field : tuple) {
-              writtenFields++;
-              if (writtenFields > numFields) {
-                  throw new RuntimeException("Tuple has more than " + numFields + " fields: (" +
+      Type[] ts = new Type[numFields];
+      Arrays.fill(ts, Type.INT_TYPE);
+      TupleDesc td = new TupleDesc(ts);
+      int nrecords = HeapPage.getNumTuples(td, npagebytes);
+
+      // the pages are encoded directly, one full page at a time
+      try (OutputStream os = new BufferedOutputStream(new FileOutputStream(outFile))) {
+          ArrayList<Tuple> page = new ArrayList<>(nrecords);
+          int npages = 0;
+          for (ArrayList<Integer> tuple : tuples) {
+              if (tuple.size() != numFields) {
+                  throw new RuntimeException("Tuple has " + tuple.size() + " fields instead of " + numFields + ": (" +
                           Utility.listToString(tuple) + ")");
               }
-              bw.write(String.valueOf(field));
-              if (writtenFields < numFields) {
-                  bw.write(',');
+              Tuple t = new Tuple(td);
+              for (int i = 0; i < numFields; i++) {
+                  t.setField(i, new IntField(tuple.get(i)));
               }
+              page.add(t);
+              if (page.size() == nrecords) {
+                  os.write(HeapPage.createPageData(td, npagebytes, page));
+                  page.clear();
+                  npages++;
+              }
+          }
+          // an empty file still gets one empty page
+          if (!page.isEmpty() || npages == 0) {
+              os.write(HeapPage.createPageData(td, npagebytes, page));
           }
-          bw.write('\n');
       }
-      bw.close();
-      convert(tempInput, outFile, npagebytes, numFields);
   }
 
   public static void convert(File inFile, File outFile, int npagebytes, int numFields) throws IOException {
@@ -93,7 +104,7 @@ public class HeapFileEncoder {
       for (int i = 0; i < numFields ; i++) {
           nrecbytes += typeAr[i].getLen();
       }
-      int nrecords = (npagebytes * 8) /  (nrecbytes * 8 + 1);  //floor comes for free
+      int nrecords = (HeapPage.getUsableSize(npagebytes) * 8) /  (nrecbytes * 8 + 1);  //floor comes for free
       
     //  per record, we need one bit; there are nrecords per page, so we need
     // nrecords bits, i.e., ((nrecords/32)+1) integers.
@@ -202,11 +213,15 @@ public class HeapFileEncoder {
             for (i=0; i<(npagebytes - (recordcount * nrecbytes + nheaderbytes)); i++)
                 pageStream.writeByte(0);
             
-            // write header and body to file
+            // write header and body to file, with the checksum if pages
+            // have one
             headerStream.flush();
-            headerBAOS.writeTo(os);
             pageStream.flush();
-            pageBAOS.writeTo(os);
+            byte[] pageBytes = new byte[npagebytes];
+            System.arraycopy(headerBAOS.toByteArray(), 0, pageBytes, 0, nheaderbytes);
+            System.arraycopy(pageBAOS.toByteArray(), 0, pageBytes, nheaderbytes, npagebytes - nheaderbytes);
+            HeapPage.setChecksum(pageBytes);
+            os.write(pageBytes);
             
             // reset header and body for next page
             headerBAOS = new ByteArrayOutputStream(nheaderbytes);
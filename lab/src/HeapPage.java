@@ -2,6 +2,10 @@ package simpledb;
 
 import java.util.*;
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.IntPredicate;
+import java.util.zip.CRC32C;
 
 /**
  * Each instance of HeapPage stores data for one page of HeapFiles and
@@ -13,16 +17,95 @@ import java.io.*;
  */
 public class HeapPage implements Page {
 
+    /** bytes of the checksum trailer at the end of a page, when pages have one */
+    static final int CHECKSUM_SIZE = 4;
+    private static volatile boolean checksums = false;
+
     private HeapPageId pid;
     private TupleDesc td;
-    private byte header[];
-    private Tuple tuples[];
     private int numSlots;
+    private int headerSize;
+    private int tupleSize;
+    /** byte offset of each field within a slot */
+    private int fieldOffsets[];
+    /**
+     * The page image in its on-disk format: the header followed by the
+     * slots. May be a read-only view, e.g. of a mapped file, until the
+     * page is first changed.
+     */
+    private ByteBuffer data;
+    /** tuples handed out for each slot, decoded lazily from data */
+    private SlotTuple tuples[];
+    /** number of empty slots, or -1 until it is first counted */
+    private int numEmptySlots = -1;
+    /** no slot before this one is empty */
+    private int firstFreeSlot = 0;
     private TransactionId tid;
     private boolean isDirty;
+    /** LSN of the last log record of this page's contents; 0 if none */
+    private volatile long lsn;
 
+    /**
+     * Snapshot of the page image taken when the page is first changed after
+     * setBeforeImage; null while the page is unchanged, in which case the
+     * before image is the current image. Never modified once taken.
+     */
     byte[] oldData;
-    private final Byte oldDataLock=new Byte((byte)0);
+    private final Object oldDataLock = new Object();
+
+    /**
+     * Latch held while a tuple is inserted or deleted, or a slot is copied.
+     * Page locks already keep writers apart; the latch is for transactions
+     * that write different records of the page under record locks; it is
+     * reentrant, so callers may hold it across several such calls.
+     */
+    final ReentrantLock latch = new ReentrantLock();
+
+    /**
+     * A tuple of this page that decodes its fields from the page image
+     * when they are first asked for, so that scans only pay for the fields
+     * they look at. The page materializes all fields of a tuple before it
+     * changes or drops the tuple's slot.
+     */
+    private static final class SlotTuple extends Tuple {
+        private static final long serialVersionUID = 1L;
+
+        private transient ByteBuffer data;
+        private final int offset;
+        private final int fieldOffsets[];
+
+        SlotTuple(TupleDesc td, RecordId rid, ByteBuffer data, int offset, int fieldOffsets[]) {
+            super(td);
+            setRecordId(rid);
+            this.data = data;
+            this.offset = offset;
+            this.fieldOffsets = fieldOffsets;
+        }
+
+        @Override
+        public Field getField(int i) throws NoSuchElementException {
+            Field f = super.getField(i);
+            ByteBuffer buf = this.data;
+            if (f == null && buf != null) {
+                f = getTupleDesc().getFieldType(i).parse(buf, offset + fieldOffsets[i]);
+                super.setField(i, f);
+            }
+            return f;
+        }
+
+        /** decode all remaining fields and detach from the page image */
+        void materialize() {
+            for (int i = 0; i < numFields(); i++) {
+                getField(i);
+            }
+            this.data = null;
+        }
+
+        private Object writeReplace() {
+            materialize();
+            return this;
+        }
+    }
 
     /**
      * Create a HeapPage from a set of bytes of data read from disk.
@@ -36,30 +119,50 @@ public class HeapPage implements Page {
      * <p>
      *      ceiling(no. tuple slots / 8)
      * <p>
+     * If pages have checksums (see {@link #setChecksums}), the last
+     * {@value #CHECKSUM_SIZE} bytes of the page are the CRC32C of the bytes
+     * before them, and the slots are counted over the bytes before them.
+     * <p>
+     * The page keeps its own copy of the bytes; tuples are decoded from it
+     * only when they are read.
      * @see Database#getCatalog
      * @see Catalog#getTupleDesc
      * @see BufferPool#getPageSize()
      */
     public HeapPage(HeapPageId id, byte[] data) throws IOException {
+        this(id, ByteBuffer.wrap(Arrays.copyOf(data, BufferPool.getPageSize())));
+    }
+
+    /**
+     * Create a HeapPage from a buffer holding the page in the format
+     * described above, from its current position. Nothing is decoded up
+     * front. A writable buffer is taken over by the page, so the caller
+     * must not reuse it; a read-only buffer, such as a slice of a mapped
+     * file, is used as is until the page is first changed and copied then.
+     *
+     * @see MappedHeapFile
+     */
+    HeapPage(HeapPageId id, ByteBuffer data) throws IOException {
         this.pid = id;
         this.td = Database.getCatalog().getTupleDesc(id.getTableId());
         this.numSlots = getNumTuples();
-        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
-
-        // allocate and read the header slots of this page
-        header = new byte[getHeaderSize()];
-        for (int i=0; i<header.length; i++)
-            header[i] = dis.readByte();
-
-        tuples = new Tuple[numSlots];
-        try{
-            // allocate and read the actual records of this page
-            for (int i=0; i<tuples.length; i++)
-                tuples[i] = readNextTuple(dis,i);
-        }catch(NoSuchElementException e){
-            e.printStackTrace();
+        this.headerSize = getHeaderSize();
+        this.tupleSize = td.getSize();
+        this.fieldOffsets = new int[td.numFields()];
+        for (int j=1; j<fieldOffsets.length; j++)
+            fieldOffsets[j] = fieldOffsets[j-1] + td.getFieldType(j-1).getLen();
+
+        int len = BufferPool.getPageSize();
+        ByteBuffer buf = data.slice();
+        if (buf.remaining() < len) {
+            // short pages are padded with zeroes, i.e. empty slots
+            byte[] padded = new byte[len];
+            buf.get(padded, 0, buf.remaining());
+            buf = ByteBuffer.wrap(padded);
         }
-        dis.close();
+        buf.limit(len);
+        this.data = buf.slice();
+        this.tuples = new SlotTuple[numSlots];
 
         setBeforeImage();
     }
@@ -69,7 +172,85 @@ public class HeapPage implements Page {
     */
     private int getNumTuples() {
         // some code goes here
-        return (int) Math.floor((BufferPool.getPageSize() * 8) /(td.getSize() * 8 + 1 ));
+        return getNumTuples(td, BufferPool.getPageSize());
+    }
+
+    /**
+     * @return the number of tuple slots on a page of pageSize bytes holding
+     *         tuples of the given schema
+     */
+    static int getNumTuples(TupleDesc td, int pageSize) {
+        return (int) Math.floor((getUsableSize(pageSize) * 8) /(td.getSize() * 8 + 1 ));
+    }
+
+    /**
+     * @return the bytes of a page of pageSize bytes that hold the header and
+     *         the slots: all of them, or all but the checksum trailer
+     */
+    static int getUsableSize(int pageSize) {
+        return checksums ? pageSize - CHECKSUM_SIZE : pageSize;
+    }
+
+    /**
+     * Sets whether pages end with a CRC32C checksum trailer, which
+     * {@link #getPageData} fills in and {@link HeapFile#readPage} checks, so
+     * that torn or damaged pages are found when they are read instead of
+     * being taken for data. The trailer takes the room of some slots, so
+     * this changes the format of every table file: like the page size, it
+     * must be set before any table is created or opened, and stay the same
+     * for the files of a database. Off by default. Pages of all zeroes pass
+     * the check; see {@link #checksumValid}.
+     */
+    public static void setChecksums(boolean on) {
+        checksums = on;
+    }
+
+    /** @return true if pages end with a checksum trailer */
+    public static boolean hasChecksums() {
+        return checksums;
+    }
+
+    /**
+     * Fills in the checksum trailer of a page image, if pages have one. The
+     * CRC32C is computed with the processor's CRC instructions where the JVM
+     * has them.
+     */
+    static void setChecksum(byte[] page) {
+        if (!checksums) {
+            return;
+        }
+        CRC32C crc = new CRC32C();
+        crc.update(page, 0, page.length - CHECKSUM_SIZE);
+        ByteBuffer.wrap(page).putInt(page.length - CHECKSUM_SIZE, (int) crc.getValue());
+    }
+
+    /**
+     * Checks the checksum trailer of the page image between the position
+     * and the limit of page, if pages have one. A page of zeroes, as files
+     * are extended with, has no trailer and passes. So a torn write that
+     * leaves a whole page zeroed is not detected; one that zeroes only
+     * part of a page is.
+     *
+     * @return false if the page is damaged
+     */
+    static boolean checksumValid(ByteBuffer page) {
+        if (!checksums) {
+            return true;
+        }
+        ByteBuffer body = page.duplicate();
+        int end = body.limit() - CHECKSUM_SIZE;
+        body.limit(end);
+        CRC32C crc = new CRC32C();
+        crc.update(body);
+        if (page.getInt(end) == (int) crc.getValue()) {
+            return true;
+        }
+        for (int i = page.position(); i < page.limit(); i++) {
+            if (page.get(i) != 0) {
+                return false;
+            }
+        }
+        return true;
     }
 
     /**
@@ -92,8 +273,14 @@ public class HeapPage implements Page {
             synchronized(oldDataLock)
             {
                 oldDataRef = oldData;
+                if (oldDataRef == null) {
+                    // a writer takes the snapshot under this lock before it
+                    // changes anything, so this copy has no changes in it
+                    oldDataRef = getPageData();
+                }
             }
-            return new HeapPage(pid,oldDataRef);
+            // the snapshot is immutable, so the page can use it without a copy
+            return new HeapPage(pid, ByteBuffer.wrap(oldDataRef).asReadOnlyBuffer());
         } catch (IOException e) {
             e.printStackTrace();
             //should never happen -- we parsed it OK before!
@@ -102,11 +289,41 @@ public class HeapPage implements Page {
         return null;
     }
 
+    /**
+     * Makes the current image the before image. This only drops the
+     * snapshot; the next change takes a new one.
+     */
     public void setBeforeImage() {
         synchronized(oldDataLock)
         {
-        oldData = getPageData().clone();
+        oldData = null;
+        }
+    }
+
+    /**
+     * Makes image the before image. Used when the current image holds
+     * changes of other transactions that are not committed yet.
+     */
+    void setBeforeImage(HeapPage image) {
+        byte[] bytes = image.getPageData();
+        synchronized(oldDataLock)
+        {
+        oldData = bytes;
+        }
+    }
+
+    /**
+     * Called before the page image changes: takes the before image
+     * snapshot if this is the first change since setBeforeImage, and makes
+     * the image writable.
+     */
+    private void beforeChange() {
+        synchronized(oldDataLock)
+        {
+        if (oldData == null)
+            oldData = getPageData();
         }
+        ensureWritable();
     }
 
     /**
@@ -117,38 +334,41 @@ public class HeapPage implements Page {
         return this.pid;
     }
 
+    /** @return the offset of slot i in the page image */
+    private int slotOffset(int i) {
+        return headerSize + i * tupleSize;
+    }
+
+    /** @return the tuple stored in used slot i */
+    private Tuple tupleAt(int i) {
+        SlotTuple t = tuples[i];
+        if (t == null) {
+            t = new SlotTuple(td, new RecordId(pid, i), data, slotOffset(i), fieldOffsets);
+            tuples[i] = t;
+        }
+        return t;
+    }
+
     /**
-     * Suck up tuples from the source file.
+     * Called before slot i of the page image changes: the tuple handed out
+     * for the slot, if any, must keep its old values.
      */
-    private Tuple readNextTuple(DataInputStream dis, int slotId) throws NoSuchElementException {
-        // if associated bit is not set, read forward to the next tuple, and
-        // return null.
-        if (!isSlotUsed(slotId)) {
-            for (int i=0; i<td.getSize(); i++) {
-                try {
-                    dis.readByte();
-                } catch (IOException e) {
-                    throw new NoSuchElementException("error reading empty tuple");
-                }
-            }
-            return null;
+    private void releaseSlot(int i) {
+        SlotTuple t = tuples[i];
+        if (t != null) {
+            t.materialize();
+            tuples[i] = null;
         }
+    }
 
-        // read fields in the tuple
-        Tuple t = new Tuple(td);
-        RecordId rid = new RecordId(pid, slotId);
-        t.setRecordId(rid);
-        try {
-            for (int j=0; j<td.numFields(); j++) {
-                Field f = td.getFieldType(j).parse(dis);
-                t.setField(j, f);
-            }
-        } catch (java.text.ParseException e) {
-            e.printStackTrace();
-            throw new NoSuchElementException("parsing error!");
+    /** Makes the page image writable, copying it if it is a read-only view. */
+    private void ensureWritable() {
+        if (data.isReadOnly()) {
+            ByteBuffer copy = ByteBuffer.allocate(data.capacity());
+            copy.put(data.duplicate());
+            copy.clear();
+            data = copy;
         }
-
-        return t;
     }
 
     /**
@@ -163,64 +383,12 @@ public class HeapPage implements Page {
      * @return A byte array correspond to the bytes of this page.
      */
     public byte[] getPageData() {
-        int len = BufferPool.getPageSize();
-        ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
-        DataOutputStream dos = new DataOutputStream(baos);
-
-        // create the header of the page
-        for (int i=0; i<header.length; i++) {
-            try {
-                dos.writeByte(header[i]);
-            } catch (IOException e) {
-                // this really shouldn't happen
-                e.printStackTrace();
-            }
-        }
-
-        // create the tuples
-        for (int i=0; i<tuples.length; i++) {
-
-            // empty slot
-            if (!isSlotUsed(i)) {
-                for (int j=0; j<td.getSize(); j++) {
-                    try {
-                        dos.writeByte(0);
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
-
-                }
-                continue;
-            }
-
-            // non-empty slot
-            for (int j=0; j<td.numFields(); j++) {
-                Field f = tuples[i].getField(j);
-                try {
-                    f.serialize(dos);
-
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-            }
-        }
-
-        // padding
-        int zerolen = BufferPool.getPageSize() - (header.length + td.getSize() * tuples.length); //- numSlots * td.getSize();
-        byte[] zeroes = new byte[zerolen];
-        try {
-            dos.write(zeroes, 0, zerolen);
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-
-        try {
-            dos.flush();
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-
-        return baos.toByteArray();
+        byte[] bytes = new byte[data.capacity()];
+        ByteBuffer buf = data.duplicate();
+        buf.clear();
+        buf.get(bytes);
+        setChecksum(bytes);
+        return bytes;
     }
 
     /**
@@ -237,6 +405,39 @@ public class HeapPage implements Page {
         return new byte[len]; //all 0
     }
 
+    /**
+     * Static method to generate the bytes of a page of pageSize bytes
+     * holding the given tuples in its first slots, without building a
+     * HeapPage. Used to write whole pages at once when loading a table.
+     *
+     * @param td the schema of the tuples
+     * @param pageSize the page size of the file the page is written to
+     * @param tuples the tuples to store, at most
+     *        {@link #getNumTuples(TupleDesc, int)} of them
+     * @return the page image, in the format read by the HeapPage constructor
+     */
+    static byte[] createPageData(TupleDesc td, int pageSize, List<Tuple> tuples) {
+        int slots = getNumTuples(td, pageSize);
+        if (tuples.size() > slots) {
+            throw new IllegalArgumentException("only " + slots + " tuples fit on a page");
+        }
+        int header = (int) Math.ceil(slots / 8.0);
+        ByteBuffer buf = ByteBuffer.wrap(new byte[pageSize]);
+        int offset = header;
+        for (int i = 0; i < tuples.size(); i++) {
+            Tuple t = tuples.get(i);
+            int fieldOffset = offset;
+            for (int j = 0; j < td.numFields(); j++) {
+                t.getField(j).serialize(buf, fieldOffset);
+                fieldOffset += td.getFieldType(j).getLen();
+            }
+            buf.put(i / 8, (byte) (buf.get(i / 8) | (1 << (i % 8))));
+            offset += td.getSize();
+        }
+        setChecksum(buf.array());
+        return buf.array();
+    }
+
     /**
      * Delete the specified tuple from the page; the corresponding header bit should be updated to reflect
      *   that it is no longer stored on any page.
@@ -248,16 +449,25 @@ public class HeapPage implements Page {
         // some code goes here
         // not necessary for lab1
         int tid = t.getRecordId().getTupleNumber();
-        if(!isSlotUsed(tid)){
-            throw new DbException("tuple slot is already empty");
-        } else if (!t.getRecordId().getPageId().equals(this.pid)){
-            throw new DbException("this tuple is not on this page");
-        } else {
-            markSlotUsed(tid, false);
-            this.tuples[tid] = null;
+        latch.lock();
+        try {
+            if(!isSlotUsed(tid)){
+                throw new DbException("tuple slot is already empty");
+            } else if (!t.getRecordId().getPageId().equals(this.pid)){
+                throw new DbException("this tuple is not on this page");
+            } else {
+                beforeChange();
+                releaseSlot(tid);
+                markSlotUsed(tid, false);
+                firstFreeSlot = Math.min(firstFreeSlot, tid);
+                int offset = slotOffset(tid);
+                for (int i = 0; i < tupleSize; i++)
+                    data.put(offset + i, (byte) 0);
+                noteFreeSpace();
+            }
+        } finally {
+            latch.unlock();
         }
-
-
     }
 
     /**
@@ -270,17 +480,175 @@ public class HeapPage implements Page {
     public void insertTuple(Tuple t) throws DbException {
         // some code goes here
         // not necessary for lab1
-        if (getNumEmptySlots() == 0){
+        if (!insertTuple(t, slot -> true)){
             throw new DbException("this page is full");
         }
-        for (int i = 0; i < this.numSlots; i++) {
-            if (!isSlotUsed(i)) {
+    }
+
+    /**
+     * Adds the specified tuple to the first empty slot of the page that
+     * canUse accepts. With record locks, canUse locks the slot for the
+     * inserting transaction, so that a slot freed by a transaction that
+     * has not committed yet is not taken.
+     *
+     * @param t The tuple to add.
+     * @param canUse called with the number of each empty slot, under the latch
+     * @return false if no empty slot was accepted
+     */
+    boolean insertTuple(Tuple t, IntPredicate canUse) {
+        latch.lock();
+        try {
+            if (getNumEmptySlots() == 0) {
+                return false;
+            }
+            boolean skipped = false;
+            for (int i = firstFreeSlot; i < this.numSlots; i++) {
+                if (isSlotUsed(i)) {
+                    continue;
+                }
+                if (!canUse.test(i)) {
+                    skipped = true;
+                    continue;
+                }
+                beforeChange();
+                releaseSlot(i);
+                int offset = slotOffset(i);
+                for (int j = 0; j < td.numFields(); j++)
+                    t.getField(j).serialize(data, offset + fieldOffsets[j]);
                 markSlotUsed(i, true);
                 t.setRecordId(new RecordId(this.pid, i));
-                this.tuples[i] = t;
-                break;
+                if (!skipped) {
+                    firstFreeSlot = i + 1;
+                }
+                noteFreeSpace();
+                return true;
+            }
+            return false;
+        } finally {
+            latch.unlock();
+        }
+    }
+
+    /**
+     * Makes slot i of this page a copy of slot i of another image of the
+     * page: used or empty, with the same tuple. Used to commit or roll back
+     * the records one transaction changed on a page others change, too.
+     * The free space map is not updated.
+     */
+    void copySlot(HeapPage from, int i) {
+        latch.lock();
+        try {
+            beforeChange();
+            releaseSlot(i);
+            boolean used = from.isSlotUsed(i);
+            markSlotUsed(i, used);
+            if (!used) {
+                firstFreeSlot = Math.min(firstFreeSlot, i);
+            }
+            int offset = slotOffset(i);
+            for (int j = 0; j < tupleSize; j++)
+                data.put(offset + j, from.data.get(offset + j));
+        } finally {
+            latch.unlock();
+        }
+    }
+
+    /** @return a copy of the bytes of slot i, or null if the slot is empty */
+    byte[] getSlotData(int i) {
+        latch.lock();
+        try {
+            if (!isSlotUsed(i)) {
+                return null;
+            }
+            byte[] bytes = new byte[tupleSize];
+            ByteBuffer slot = data.duplicate();
+            slot.position(slotOffset(i));
+            slot.get(bytes);
+            return bytes;
+        } finally {
+            latch.unlock();
+        }
+    }
+
+    /**
+     * Makes slot i hold the given bytes, or empties it if bytes is null.
+     * Used to redo and undo the slot changes of delta log records. The
+     * free space map is not updated.
+     */
+    void setSlotData(int i, byte[] bytes) {
+        latch.lock();
+        try {
+            beforeChange();
+            releaseSlot(i);
+            markSlotUsed(i, bytes != null);
+            if (bytes == null) {
+                firstFreeSlot = Math.min(firstFreeSlot, i);
+                return;
+            }
+            ByteBuffer slot = data.duplicate();
+            slot.position(slotOffset(i));
+            slot.put(bytes);
+        } finally {
+            latch.unlock();
+        }
+    }
+
+    /**
+     * @return the slots whose contents differ between this image of the
+     *         page and another one: used in one and empty in the other, or
+     *         used in both with different bytes
+     */
+    List<Integer> changedSlots(HeapPage other) {
+        ArrayList<Integer> changed = new ArrayList<>();
+        for (int i = 0; i < numSlots; i++) {
+            boolean used = isSlotUsed(i);
+            if (used != other.isSlotUsed(i)) {
+                changed.add(i);
+            } else if (used) {
+                int offset = slotOffset(i);
+                for (int j = 0; j < tupleSize; j++) {
+                    if (data.get(offset + j) != other.data.get(offset + j)) {
+                        changed.add(i);
+                        break;
+                    }
+                }
             }
         }
+        return changed;
+    }
+
+    /**
+     * @return a copy of the tuple in slot i, detached from the page, or
+     *         null if the slot is empty
+     */
+    Tuple getTuple(int i) {
+        latch.lock();
+        try {
+            if (!isSlotUsed(i)) {
+                return null;
+            }
+            SlotTuple t = new SlotTuple(td, new RecordId(pid, i), data, slotOffset(i), fieldOffsets);
+            t.materialize();
+            return t;
+        } finally {
+            latch.unlock();
+        }
+    }
+
+    /** @return the number of tuple slots on this page */
+    int getNumSlots() {
+        return numSlots;
+    }
+
+    /**
+     * Tells the free space map of this page's file whether the page has a
+     * free slot. Pages of files that are not HeapFiles have no map.
+     */
+    void noteFreeSpace() {
+        DbFile file = Database.getCatalog().getDatabaseFile(pid.getTableId());
+        if (file instanceof HeapFile) {
+            ((HeapFile) file).getFreeSpaceMap().setHasSpace(pid.getPageNumber(), getNumEmptySlots() > 0);
+        }
     }
 
     /**
@@ -298,6 +666,14 @@ public class HeapPage implements Page {
         this.isDirty = dirty;
     }
 
+    public long getLSN() {
+        return lsn;
+    }
+
+    public void setLSN(long lsn) {
+        this.lsn = lsn;
+    }
+
     /**
      * Returns the tid of the transaction that last dirtied this page, or null if the page is not dirty
      */
@@ -312,11 +688,14 @@ public class HeapPage implements Page {
      */
     public int getNumEmptySlots() {
         // some code goes here
-        int NumEmptySlots = 0;
-        for (int i = 0; i < this.numSlots; i++){
-            NumEmptySlots += (isSlotUsed(i) ? 0:1);
+        if (numEmptySlots < 0) {
+            int NumEmptySlots = 0;
+            for (int i = 0; i < this.numSlots; i++){
+                NumEmptySlots += (isSlotUsed(i) ? 0:1);
+            }
+            numEmptySlots = NumEmptySlots;
         }
-        return NumEmptySlots;
+        return numEmptySlots;
     }
 
     /**z
@@ -324,9 +703,7 @@ public class HeapPage implements Page {
      */
     public boolean isSlotUsed(int i) {
         // some code goes here
-        byte headerbyte = header[i/8];
-        int bit = headerbyte >> (i%8);
-        return (bit & 1) != 0;
+        return ((data.get(i / 8) >> (i % 8)) & 1) != 0;
     }
 
     /**
@@ -336,10 +713,14 @@ public class HeapPage implements Page {
         // some code goes here
         // not necessary for lab1
         if(isSlotUsed(i) != value ) {
+            byte headerbyte = data.get(i / 8);
             if (value) {
-                header[i / 8] = (byte) (header[i / 8] | (1 << (i % 8)));
+                data.put(i / 8, (byte) (headerbyte | (1 << (i % 8))));
             } else{
-                header[i / 8] = (byte) (header[i / 8] &~ (1 << (i % 8)));
+                data.put(i / 8, (byte) (headerbyte &~ (1 << (i % 8))));
+            }
+            if (numEmptySlots >= 0) {
+                numEmptySlots += value ? -1 : 1;
             }
         }
     }
@@ -350,25 +731,31 @@ public class HeapPage implements Page {
      */
     public Iterator<Tuple> iterator() {
         // some code goes here
-        Iterator<Tuple> it = new Iterator<Tuple>(){
-            private int curIndex = 0;
-            private int numEmptySlot = getNumEmptySlots();
-            private int numSlot = getNumTuples() - numEmptySlot;
+        return new Iterator<Tuple>(){
+            private int nextSlot = nextUsedSlot(0);
+
+            private int nextUsedSlot(int from) {
+                while (from < numSlots && !isSlotUsed(from)) {
+                    from++;
+                }
+                return from;
+            }
 
             @Override
             public boolean hasNext() {
-                return curIndex < numSlot;
+                return nextSlot < numSlots;
             }
 
             @Override
             public Tuple next() {
-                while(!isSlotUsed(curIndex)){
-                    curIndex++;
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
                 }
-                return tuples[curIndex++];
+                Tuple t = tupleAt(nextSlot);
+                nextSlot = nextUsedSlot(nextSlot + 1);
+                return t;
             }
         };
-        return it;
     }
 }
 
@@ -1,6 +1,7 @@
 package simpledb;
 
 import java.io.IOException;
+import java.util.ArrayList;
 
 /**
  * Inserts tuples read from the child operator into the tableId specified in the
@@ -9,12 +10,15 @@ import java.io.IOException;
 public class Insert extends Operator {
 
     private static final long serialVersionUID = 1L;
+    /** number of child tuples handed to the BufferPool at once */
+    static final int BATCH_SIZE = 4096;
     private TransactionId tid;
     private OpIterator child;
     private int tableId;
     private TupleDesc td;
     private int numAdded;
     private boolean isCalled;
+    private boolean bulkLoad;
 
     /**
      * Constructor.
@@ -31,7 +35,21 @@ public class Insert extends Operator {
      */
     public Insert(TransactionId t, OpIterator child, int tableId)
             throws DbException {
+        this(t, child, tableId, false);
+    }
+
+    /**
+     * Constructor for an insert that may write whole new pages directly to
+     * the table file, for loading large amounts of data.
+     *
+     * @param bulkLoad
+     *            whether to use the bulk-load mode of the BufferPool
+     * @see BufferPool#insertTuples(TransactionId, int, Iterable, boolean)
+     */
+    public Insert(TransactionId t, OpIterator child, int tableId, boolean bulkLoad)
+            throws DbException {
         // some code goes here
+        this.bulkLoad = bulkLoad;
         this.tid = t;
         this.child = child;
         this.tableId = tableId;
@@ -78,7 +96,7 @@ public class Insert extends Operator {
      * @return A 1-field tuple containing the number of inserted records, or
      *         null if called more than once.
      * @see Database#getBufferPool
-     * @see BufferPool#insertTuple
+     * @see BufferPool#insertTuples
      */
     protected Tuple fetchNext() throws TransactionAbortedException, DbException {
         // some code goes here
@@ -86,11 +104,15 @@ public class Insert extends Operator {
             return null;
         }
         this.isCalled = true;
+        ArrayList<Tuple> batch = new ArrayList<>(BATCH_SIZE);
         while (this.child.hasNext()){
-            Tuple tupleToInsert = this.child.next();
+            batch.clear();
+            while (batch.size() < BATCH_SIZE && this.child.hasNext()){
+                batch.add(this.child.next());
+            }
             try{
-                Database.getBufferPool().insertTuple(this.tid, this.tableId, tupleToInsert);
-                this.numAdded += 1;
+                Database.getBufferPool().insertTuples(this.tid, this.tableId, batch, this.bulkLoad);
+                this.numAdded += batch.size();
             } catch (IOException e){break;}
         }
         Tuple countTuple = new Tuple(this.td);
@@ -0,0 +1,123 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Predicate;
+
+/**
+ * LRU-K replacement (O'Neil, O'Neil and Weikum). The victim is the page
+ * whose K-th most recent reference lies furthest in the past; pages with
+ * fewer than K references count as infinitely old and are evicted first,
+ * oldest last reference first. A single sequential scan therefore never
+ * pushes out pages that are referenced repeatedly.
+ * <p>
+ * Recording a reference is O(K); the history of recently evicted pages is
+ * retained for a while so that a page that comes straight back does not
+ * start over with an empty history. Choosing a victim walks the resident
+ * pages.
+ */
+public class LRUKEvictionPolicy implements EvictionPolicy {
+
+    public static final int DEFAULT_K = 2;
+
+    private final int k;
+    private long clock;
+    /** last K reference times of every resident page, most recent first, 0 = never */
+    private final HashMap<PageId, long[]> history;
+    /** histories of pages that were evicted recently */
+    private final LinkedHashMap<PageId, long[]> retained;
+
+    public LRUKEvictionPolicy(int capacity) {
+        this(capacity, DEFAULT_K);
+    }
+
+    /**
+     * @param capacity the number of pages of the pool, also bounds the
+     *     number of retained histories of evicted pages
+     * @param k the number of references to remember per page
+     */
+    public LRUKEvictionPolicy(int capacity, int k) {
+        if (k < 1) {
+            throw new IllegalArgumentException("k must be at least 1");
+        }
+        final int retainedLimit = Math.max(1, capacity);
+        this.k = k;
+        this.clock = 0;
+        this.history = new HashMap<>(Math.max(16, capacity * 2));
+        this.retained = new LinkedHashMap<PageId, long[]>() {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<PageId, long[]> eldest) {
+                return size() > retainedLimit;
+            }
+        };
+    }
+
+    public void pageAdmitted(PageId pid) {
+        long[] times = retained.remove(pid);
+        if (times == null) {
+            times = history.get(pid);
+        }
+        if (times == null) {
+            times = new long[k];
+        }
+        history.put(pid, times);
+        reference(times);
+    }
+
+    public void pageAccessed(PageId pid) {
+        long[] times = history.get(pid);
+        if (times != null) {
+            reference(times);
+        }
+    }
+
+    public void pageRemoved(PageId pid) {
+        long[] times = history.remove(pid);
+        if (times != null) {
+            retained.put(pid, times);
+        }
+    }
+
+    public PageId chooseVictim(Predicate<PageId> evictable) {
+        PageId victim = null;
+        long victimKth = Long.MAX_VALUE;
+        long victimLast = Long.MAX_VALUE;
+        for (Map.Entry<PageId, long[]> e : history.entrySet()) {
+            long[] times = e.getValue();
+            long kth = times[k - 1];
+            long last = times[0];
+            if (kth > victimKth || (kth == victimKth && last >= victimLast)) {
+                continue;
+            }
+            if (evictable.test(e.getKey())) {
+                victim = e.getKey();
+                victimKth = kth;
+                victimLast = last;
+            }
+        }
+        return victim;
+    }
+
+    private void reference(long[] times) {
+        System.arraycopy(times, 0, times, 1, k - 1);
+        times[0] = ++clock;
+    }
+
+    public List<PageId> coldestPages(int max) {
+        ArrayList<Map.Entry<PageId, long[]>> entries = new ArrayList<>(history.entrySet());
+        entries.sort((a, b) -> {
+            int c = Long.compare(a.getValue()[k - 1], b.getValue()[k - 1]);
+            return c != 0 ? c : Long.compare(a.getValue()[0], b.getValue()[0]);
+        });
+        ArrayList<PageId> cold = new ArrayList<>();
+        for (int i = 0; i < entries.size() && i < max; i++) {
+            cold.add(entries.get(i).getKey());
+        }
+        return cold;
+    }
+}
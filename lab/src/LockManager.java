@@ -2,231 +2,1064 @@ package simpledb;
 
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 
+/**
+ * LockManager keeps the locks of the BufferPool: table locks in the five
+ * modes of {@link LockMode}, and shared (S) or exclusive (X) page locks.
+ * <p>
+ * Locks are hierarchical. Before locking a page a transaction takes the
+ * matching intention lock on its table (IS for S, IX for X) unless its
+ * table lock already covers the page, in which case no page lock is taken
+ * at all. A transaction that holds more than the escalation threshold of
+ * page locks on one table tries to trade them for a single S or X table
+ * lock; if that lock cannot be granted at once it keeps its page locks.
+ * Scans of tables larger than the threshold take the table S lock up
+ * front; see {@link #lockTable}.
+ * <p>
+ * Below the page level, S and X locks on single records can be taken
+ * with {@link #lockRecord}. The page is then locked in IS or IX mode, so
+ * transactions writing different records of a page do not block each
+ * other; see {@link BufferPool#setRecordLocking} for how the pool keeps
+ * such pages recoverable.
+ * <p>
+ * The lock tables are concurrent maps from RecordId, PageId or table id to a lock
+ * head, and each head has its own latch, so transactions locking
+ * different pages never contend. Requests that cannot be granted wait in
+ * a FIFO queue on the head; a release grants the requests at the front of
+ * the queue that have become compatible and wakes only those. Lock
+ * conversions go to the front of the queue, ahead of new requests.
+ * <p>
+ * A waiting transaction records in waitForGraph the transactions it waits
+ * for: the holders of the lock and the requests queued ahead of it that
+ * conflict with its own. How deadlocks are handled depends on the
+ * {@link DeadlockPolicy}; the default is DETECT. As a last resort a
+ * request can also be given a timeout, after which it is aborted.
+ * <p>
+ * Waits, conversions, escalations and aborted requests are counted in a
+ * {@link LockStats}.
+ */
 public class LockManager {
-    public HashMap<PageId, LocksOnPage> locks;
-    public HashMap<TransactionId, HashSet<PageId>> transactions;
-    public HashMap<TransactionId, HashSet<TransactionId>> waitForGraph;
+    /** how often a waiting transaction checks its deadlock policy again */
+    static final long RECHECK_MILLIS = 100;
+    /** default interval of the BACKGROUND deadlock detector */
+    public static final long DEFAULT_DETECT_INTERVAL_MILLIS = 50;
+    /** default number of page locks on one table above which they are escalated */
+    public static final int DEFAULT_ESCALATION_THRESHOLD = 256;
 
-    class LocksOnPage{
-        private TransactionId exclusiveLock;
-        private HashSet<TransactionId> sharedLocks;
+    /**
+     * Lock modes. Record locks are S or X; table and page locks may also
+     * be intention locks: IS and IX announce S and X locks further down,
+     * and SIX is an S lock combined with IX.
+     */
+    public enum LockMode {
+        IS, IX, S, SIX, X;
 
-        LocksOnPage(){
-            this.exclusiveLock = null;
-            this.sharedLocks = new HashSet<>();
+        private static final boolean[][] COMPATIBLE = {
+            //            IS     IX     S      SIX    X
+            /* IS  */ { true,  true,  true,  true,  false },
+            /* IX  */ { true,  true,  false, false, false },
+            /* S   */ { true,  false, true,  false, false },
+            /* SIX */ { true,  false, false, false, false },
+            /* X   */ { false, false, false, false, false },
+        };
+
+        /** @return true if two transactions may hold this mode and other at once */
+        public boolean compatibleWith(LockMode other) {
+            return COMPATIBLE[ordinal()][other.ordinal()];
         }
 
-        public Boolean hasExclusiveLock(){
-            return this.exclusiveLock != null;
+        /** @return true if holding this mode grants everything other does */
+        public boolean covers(LockMode other) {
+            switch (this) {
+                case X:
+                    return true;
+                case SIX:
+                    return other != X;
+                case S:
+                    return other == S || other == IS;
+                case IX:
+                    return other == IX || other == IS;
+                default:
+                    return other == IS;
+            }
         }
 
-        public Boolean hasSharedLocks(){
-            return this.sharedLocks.isEmpty();
+        /** @return the weakest mode covering both this mode and other, which may be null */
+        public LockMode join(LockMode other) {
+            if (other == null || covers(other)) {
+                return this;
+            }
+            if (other.covers(this)) {
+                return other;
+            }
+            // S and IX
+            return SIX;
         }
+    }
+
+    /**
+     * How the LockManager deals with deadlocks. Transaction age is given by
+     * TransactionId.getId(): lower ids are older.
+     */
+    public enum DeadlockPolicy {
+        /**
+         * A transaction about to wait, and every RECHECK_MILLIS while it
+         * waits, searches the wait-for graph from itself and aborts if it
+         * finds a path back to itself. Only the waiter's own part of the
+         * graph is visited.
+         */
+        DETECT,
+        /**
+         * Waiters never search the graph; a DeadlockDetector thread finds
+         * the cycles periodically and aborts the youngest waiter of each.
+         */
+        BACKGROUND,
+        /**
+         * Prevention: a transaction may only wait for younger ones; if it
+         * would wait for an older one it aborts instead.
+         */
+        WAIT_DIE,
+        /**
+         * Prevention: a transaction that would wait for younger ones
+         * aborts them ("wounds" them) and waits for their locks; a younger
+         * transaction waits for older ones. A wounded transaction is
+         * aborted at once if it is waiting, otherwise at its next lock
+         * request.
+         */
+        WOUND_WAIT
+    }
+
+    public final ConcurrentHashMap<PageId, LockHead> locks;
+    /** record locks, taken below IS or IX page locks */
+    public final ConcurrentHashMap<RecordId, LockHead> recordLocks;
+    /** table locks, by table id */
+    public final ConcurrentHashMap<Integer, LockHead> tableLocks;
+    public final ConcurrentHashMap<TransactionId, TxnLocks> transactions;
+    public final ConcurrentHashMap<TransactionId, Set<TransactionId>> waitForGraph;
+    /** the request each waiting transaction waits on */
+    private final ConcurrentHashMap<TransactionId, LockRequest> waiting;
+    /** transactions wounded under WOUND_WAIT that have not finished yet */
+    private final Set<TransactionId> wounded;
+    private volatile DeadlockPolicy policy;
+    private DeadlockDetector detector;
+    /** timeout of requests that do not give one, in ms; 0 waits forever */
+    private volatile long lockTimeoutMillis;
+    /** page locks per table above which they are escalated; 0 never escalates */
+    private volatile int escalationThreshold;
+    private final LockStats stats;
 
-        public TransactionId getExclusiveLock(){
-            return this.exclusiveLock;
+    /** A lock request waiting in the queue of a LockHead. */
+    static final class LockRequest {
+        final TransactionId tid;
+        final LockMode mode;
+        final LockHead head;
+        final Condition granted;
+        boolean isGranted;
+        /** set when the request is chosen to break or prevent a deadlock */
+        boolean aborted;
+
+        LockRequest(TransactionId tid, LockMode mode, LockHead head) {
+            this.tid = tid;
+            this.mode = mode;
+            this.head = head;
+            this.granted = head.latch.newCondition();
         }
+    }
 
-        public HashSet<TransactionId> getSharedLocks(){
-            return this.sharedLocks;
+    /**
+     * The locks held on one record, page or table and the requests waiting for
+     * them. All fields are guarded by latch. A head that has been taken out
+     * of its lock table is marked removed and must not be used any more.
+     */
+    static final class LockHead {
+        final ReentrantLock latch = new ReentrantLock();
+        private final HashMap<TransactionId, LockMode> holders = new HashMap<>();
+        private final ArrayDeque<LockRequest> queue = new ArrayDeque<>();
+        private boolean removed;
+
+        LockMode heldBy(TransactionId tid) {
+            return holders.get(tid);
         }
 
-        public void addExclusiveLock(TransactionId tid){
-            this.exclusiveLock = tid;
+        boolean isLocked() {
+            return !holders.isEmpty();
         }
 
-        public void addSharedLocks(TransactionId tid){
-            this.sharedLocks.add(tid);
+        /** @return true if some transaction holds a mode covering mode */
+        boolean isLocked(LockMode mode) {
+            for (LockMode held : holders.values()) {
+                if (held.covers(mode)) {
+                    return true;
+                }
+            }
+            return false;
         }
 
-        public void removeExclusiveLock(TransactionId tid){
-            if (exclusiveLock == tid){
-                this.exclusiveLock = null;
+        /** @return true if tid could be granted mode given the current holders */
+        boolean compatible(TransactionId tid, LockMode mode) {
+            for (Map.Entry<TransactionId, LockMode> e : holders.entrySet()) {
+                if (!e.getKey().equals(tid) && !mode.compatibleWith(e.getValue())) {
+                    return false;
+                }
             }
+            return true;
         }
 
-        public void removeSharedLocks(TransactionId tid){
-            if (sharedLocks.contains(tid)){
-                sharedLocks.remove(tid);
+        /** Grants the compatible requests at the front of the queue and wakes them. */
+        void grantWaiters() {
+            LockRequest req;
+            while ((req = queue.peek()) != null && compatible(req.tid, req.mode)) {
+                queue.poll();
+                holders.put(req.tid, req.mode);
+                req.isGranted = true;
+                req.granted.signal();
             }
         }
-    }
 
-    public LockManager() {
-        locks = new HashMap<>();
-        transactions = new HashMap<>();
-        waitForGraph = new HashMap<>();
-    }
-
-    public synchronized void acquire(TransactionId tid, PageId pid, Permissions perm) throws TransactionAbortedException, InterruptedException {
-        this.locks.putIfAbsent(pid, new LocksOnPage());
-        this.transactions.putIfAbsent(tid, new HashSet<>());
-        LocksOnPage curLocksSetOnPage = this.locks.get(pid);
-
-        while (this.isLocked(pid)){
-            if (!curLocksSetOnPage.hasExclusiveLock()){
-                if (perm.equals(Permissions.READ_WRITE)){
-                    if (curLocksSetOnPage.getSharedLocks().contains(tid)){
-                        if (upgrade(tid, pid)) {
-                            return;
-                        }
-                    }
-                    this.waitForGraph.putIfAbsent(tid, new HashSet<>());
-                    for(TransactionId waitForTid:curLocksSetOnPage.getSharedLocks()){
-                        if (waitForTid != tid){
-                            this.waitForGraph.get(tid).add(waitForTid);
-                        }
-                    }
-                    if (detectDeadlock()){
-                        for(TransactionId waitForTid:curLocksSetOnPage.getSharedLocks()){
-                            if (waitForTid != tid){
-                                this.waitForGraph.get(tid).remove(waitForTid);
-                            }
-                        }
-                        notifyAll();
-                        throw new TransactionAbortedException();
-                    }
-                } else if (perm.equals(Permissions.READ_ONLY)){
-                    if (isLocked(tid, pid)){
-                        return;
-                    }
-                    curLocksSetOnPage.addSharedLocks(tid);
-                    this.transactions.putIfAbsent(tid, new HashSet<>());
-                    transactions.get(tid).add(pid);
-                    return;
+        /** @return the transactions the queued request req waits for */
+        Set<TransactionId> blockers(LockRequest req) {
+            HashSet<TransactionId> blockers = new HashSet<>();
+            for (Map.Entry<TransactionId, LockMode> e : holders.entrySet()) {
+                if (!req.mode.compatibleWith(e.getValue())) {
+                    blockers.add(e.getKey());
                 }
-            } else {
-                if (curLocksSetOnPage.getExclusiveLock() == tid){
-                    return;
-                } else {
-                    this.waitForGraph.putIfAbsent(tid, new HashSet<>());
-                    this.waitForGraph.get(tid).add(curLocksSetOnPage.getExclusiveLock());
-                    if (detectDeadlock()){
-                        this.waitForGraph.get(tid).remove(curLocksSetOnPage.getExclusiveLock());
-                        notifyAll();
-                        throw new TransactionAbortedException();
-                    }
+            }
+            for (LockRequest ahead : queue) {
+                if (ahead == req) {
+                    break;
+                }
+                if (!req.mode.compatibleWith(ahead.mode)) {
+                    blockers.add(ahead.tid);
                 }
             }
-            wait();
+            blockers.remove(req.tid);
+            return blockers;
         }
+    }
+
+    /** The locks of one transaction, guarded by its monitor. */
+    static final class TxnLocks {
+        /**
+         * every page the transaction locked, including pages whose lock
+         * was given up for a covering table lock
+         */
+        private final HashSet<PageId> pages = new HashSet<>();
+        /** the page locks held in page lock heads */
+        private final HashMap<PageId, LockMode> pageLocks = new HashMap<>();
+        /** number of entries of pageLocks per table */
+        private final HashMap<Integer, Integer> pageLockCounts = new HashMap<>();
+        private final HashMap<Integer, LockMode> tableLocks = new HashMap<>();
+        private final HashMap<RecordId, LockMode> recordLocks = new HashMap<>();
 
-        if (perm.equals(Permissions.READ_WRITE)) {
-            curLocksSetOnPage.addExclusiveLock(tid);
+        synchronized LockMode tableMode(int tableId) {
+            return tableLocks.get(tableId);
         }
-        if (perm.equals(Permissions.READ_ONLY)) {
-            curLocksSetOnPage.addSharedLocks(tid);
+
+        synchronized void setTableMode(int tableId, LockMode mode) {
+            tableLocks.put(tableId, mode);
         }
-        this.transactions.putIfAbsent(tid, new HashSet<>());
-        transactions.get(tid).add(pid);
-    }
 
-    public synchronized Boolean upgrade(TransactionId tid, PageId pid) {
-        LocksOnPage locksOnCurPage = locks.get(pid);
-        if (locksOnCurPage.getSharedLocks().size() == 1) {
-            locksOnCurPage.removeSharedLocks(tid);
-            locksOnCurPage.addExclusiveLock(tid);
-            return true;
+        synchronized void addPage(PageId pid) {
+            pages.add(pid);
         }
-        return false;
-    }
 
-    public synchronized Boolean release(TransactionId tid, PageId pid) {
-        if (locks.containsKey(pid)){
-            LocksOnPage locksOnCurPage = locks.get(pid);
-            if (locksOnCurPage.getExclusiveLock() == tid){
-                locksOnCurPage.removeExclusiveLock(tid);
+        /** @return the number of page locks now held on the page's table */
+        synchronized int addPageLock(PageId pid, LockMode mode) {
+            pages.add(pid);
+            LockMode old = pageLocks.put(pid, mode.join(pageLocks.get(pid)));
+            if (old == null) {
+                return pageLockCounts.merge(pid.getTableId(), 1, Integer::sum);
             }
-            if (locksOnCurPage.getSharedLocks().contains(tid)){
-                locksOnCurPage.removeSharedLocks(tid);
+            return pageLockCounts.get(pid.getTableId());
+        }
+
+        /** @return true if a page lock on pid was held */
+        synchronized boolean removePage(PageId pid) {
+            pages.remove(pid);
+            if (pageLocks.remove(pid) == null) {
+                return false;
             }
-            locks.remove(pid);
-            notifyAll();
+            pageLockCounts.merge(pid.getTableId(), -1, Integer::sum);
             return true;
         }
-        return false;
+
+        synchronized void addRecordLock(RecordId rid, LockMode mode) {
+            recordLocks.put(rid, mode.join(recordLocks.get(rid)));
+        }
+
+        synchronized LockMode recordMode(RecordId rid) {
+            return recordLocks.get(rid);
+        }
+
+        /** @return the records of the page locked in X mode */
+        synchronized List<RecordId> exclusiveRecords(PageId pid) {
+            ArrayList<RecordId> rids = new ArrayList<>();
+            for (Map.Entry<RecordId, LockMode> e : recordLocks.entrySet()) {
+                if (e.getValue() == LockMode.X && e.getKey().getPageId().equals(pid)) {
+                    rids.add(e.getKey());
+                }
+            }
+            return rids;
+        }
+
+        /** @return true if a page of the table is locked in X or IX mode */
+        synchronized boolean hasExclusivePageLock(int tableId) {
+            for (Map.Entry<PageId, LockMode> e : pageLocks.entrySet()) {
+                if (e.getKey().getTableId() == tableId && e.getValue().covers(LockMode.IX)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Forgets the page locks on the table that a table lock in mode
+         * covers; the pages stay in the set of locked pages.
+         *
+         * @return the pages whose lock can be released
+         */
+        synchronized List<PageId> dropCoveredPageLocks(int tableId, LockMode mode) {
+            ArrayList<PageId> covered = new ArrayList<>();
+            Iterator<Map.Entry<PageId, LockMode>> it = pageLocks.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<PageId, LockMode> e = it.next();
+                if (e.getKey().getTableId() == tableId && mode.covers(e.getValue())) {
+                    covered.add(e.getKey());
+                    it.remove();
+                }
+            }
+            pageLockCounts.merge(tableId, -covered.size(), Integer::sum);
+            return covered;
+        }
+
+        /** @return true if any lock held allows writing: X records, or IX or stronger pages and tables */
+        synchronized boolean writes() {
+            for (LockMode mode : recordLocks.values()) {
+                if (mode == LockMode.X) {
+                    return true;
+                }
+            }
+            for (LockMode mode : pageLocks.values()) {
+                if (mode.covers(LockMode.IX)) {
+                    return true;
+                }
+            }
+            for (LockMode mode : tableLocks.values()) {
+                if (mode.covers(LockMode.IX)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        synchronized LockMode pageMode(PageId pid) {
+            return pageLocks.get(pid);
+        }
+
+        synchronized Set<PageId> copyPages() {
+            return new HashSet<>(pages);
+        }
+
+        synchronized List<PageId> copyPageLocks() {
+            return new ArrayList<>(pageLocks.keySet());
+        }
+
+        synchronized List<RecordId> copyRecordLocks() {
+            return new ArrayList<>(recordLocks.keySet());
+        }
+
+        synchronized List<Integer> copyTableLocks() {
+            return new ArrayList<>(tableLocks.keySet());
+        }
+    }
+
+    public LockManager() {
+        locks = new ConcurrentHashMap<>();
+        recordLocks = new ConcurrentHashMap<>();
+        tableLocks = new ConcurrentHashMap<>();
+        transactions = new ConcurrentHashMap<>();
+        waitForGraph = new ConcurrentHashMap<>();
+        waiting = new ConcurrentHashMap<>();
+        wounded = ConcurrentHashMap.newKeySet();
+        policy = DeadlockPolicy.DETECT;
+        lockTimeoutMillis = 0;
+        escalationThreshold = DEFAULT_ESCALATION_THRESHOLD;
+        stats = new LockStats();
+    }
+
+    /** @return the contention counters of this lock manager */
+    public LockStats getStats() {
+        return stats;
     }
 
-    public synchronized void releaseAll(TransactionId tid) {
-        if (transactions.containsKey(tid)){
-            Iterator<PageId> it = transactions.get(tid).iterator();
-            while (it.hasNext()){
-                PageId pid = it.next();
-                this.release(tid, pid);
-                it.remove();
+    /** @return the timeout of lock requests that do not give one, in ms; 0 if none */
+    public long getLockTimeout() {
+        return lockTimeoutMillis;
+    }
+
+    /**
+     * Set the timeout of lock requests that do not give one.
+     *
+     * @param timeoutMillis how long a request may wait, in ms; 0 to wait forever
+     */
+    public void setLockTimeout(long timeoutMillis) {
+        this.lockTimeoutMillis = Math.max(0, timeoutMillis);
+    }
+
+    /** @return the number of page locks on one table above which they are escalated */
+    public int getEscalationThreshold() {
+        return escalationThreshold;
+    }
+
+    /**
+     * Set the number of page locks a transaction may hold on one table
+     * before they are escalated to a table lock.
+     *
+     * @param pages the threshold; 0 to never escalate
+     */
+    public void setEscalationThreshold(int pages) {
+        this.escalationThreshold = Math.max(0, pages);
+    }
+
+    /** @return the current deadlock policy */
+    public DeadlockPolicy getDeadlockPolicy() {
+        return policy;
+    }
+
+    /**
+     * Switch to a deadlock policy, starting or stopping the background
+     * detector as needed. Requests already waiting follow the new policy
+     * from their next check on.
+     */
+    public void setDeadlockPolicy(DeadlockPolicy policy) {
+        setDeadlockPolicy(policy, DEFAULT_DETECT_INTERVAL_MILLIS);
+    }
+
+    /**
+     * @param policy the deadlock policy to use
+     * @param detectIntervalMillis how often the detector runs under BACKGROUND
+     */
+    public void setDeadlockPolicy(DeadlockPolicy policy, long detectIntervalMillis) {
+        DeadlockDetector old = null;
+        synchronized (this) {
+            this.policy = policy;
+            if (detector != null) {
+                old = detector;
+                detector = null;
+            }
+            if (policy == DeadlockPolicy.BACKGROUND) {
+                detector = new DeadlockDetector(this, detectIntervalMillis);
+                detector.start();
             }
         }
-        waitForGraph.remove(tid);
+        if (old != null) {
+            old.shutdown();
+        }
+        // waiters may have been waiting for the old detector
+        for (LockRequest req : waiting.values()) {
+            signal(req);
+        }
     }
 
-    public synchronized Boolean isLocked(PageId pid) {
-        if (locks.containsKey(pid)){
-            LocksOnPage locksOnCurPage = locks.get(pid);
-            if (locksOnCurPage.getExclusiveLock() != null){
-                return true;
+    /** @return the background detector, or null unless the policy is BACKGROUND */
+    public synchronized DeadlockDetector getDeadlockDetector() {
+        return detector;
+    }
+
+    /** Stop the background detector, if one is running. */
+    public void shutdown() {
+        DeadlockDetector old;
+        synchronized (this) {
+            old = detector;
+            detector = null;
+        }
+        if (old != null) {
+            old.shutdown();
+        }
+    }
+
+    /** @return the head of key in map, latched by the caller */
+    private <K> LockHead latchHead(ConcurrentHashMap<K, LockHead> map, K key) {
+        while (true) {
+            LockHead head = map.computeIfAbsent(key, k -> new LockHead());
+            head.latch.lock();
+            if (!head.removed) {
+                return head;
             }
-            return locksOnCurPage.getSharedLocks().size() > 0;
+            head.latch.unlock();
         }
-        return false;
     }
 
-    public synchronized Boolean isLocked(TransactionId tid, PageId pid) {
-        if (locks.containsKey(pid)){
-            LocksOnPage locksOnCurPage = locks.get(pid);
-            if (locksOnCurPage.getExclusiveLock() == tid){
-                return true;
+    /** Takes an unused head out of its map; the caller holds its latch. */
+    private <K> void dropIfUnused(ConcurrentHashMap<K, LockHead> map, K key, LockHead head) {
+        if (!head.isLocked() && head.queue.isEmpty()) {
+            head.removed = true;
+            map.remove(key, head);
+        }
+    }
+
+    /** Records the wait-for edges of the requests still queued on head. */
+    private void updateWaiters(LockHead head) {
+        for (LockRequest req : head.queue) {
+            waitForGraph.put(req.tid, head.blockers(req));
+        }
+    }
+
+    public void acquire(TransactionId tid, PageId pid, Permissions perm) throws TransactionAbortedException, InterruptedException {
+        acquire(tid, pid, perm, lockTimeoutMillis);
+    }
+
+    /**
+     * Acquire a page lock, and the intention lock on its table, waiting at
+     * most timeoutMillis for each.
+     *
+     * @param timeoutMillis how long to wait, in ms; 0 to wait forever
+     * @throws TransactionAbortedException if the request would deadlock or
+     *         timed out
+     */
+    public void acquire(TransactionId tid, PageId pid, Permissions perm, long timeoutMillis)
+            throws TransactionAbortedException, InterruptedException {
+        lockPage(tid, pid, perm.equals(Permissions.READ_WRITE) ? LockMode.X : LockMode.S, timeoutMillis);
+    }
+
+    /**
+     * Locks a page in mode, S, X, IS or IX, after the intention lock on
+     * its table, and escalates the page locks of the table if there are
+     * too many.
+     *
+     * @return the mode held on the page, or null if the table lock covers mode
+     */
+    private LockMode lockPage(TransactionId tid, PageId pid, LockMode mode, long timeoutMillis)
+            throws TransactionAbortedException, InterruptedException {
+        if (wounded.contains(tid)) {
+            throw new TransactionAbortedException();
+        }
+        TxnLocks txn = transactions.computeIfAbsent(tid, t -> new TxnLocks());
+        int tableId = pid.getTableId();
+        LockMode tableMode = txn.tableMode(tableId);
+        // an intention lock on the page stands for S or X locks on its records
+        LockMode access = mode == LockMode.IS ? LockMode.S : mode == LockMode.IX ? LockMode.X : mode;
+        if (tableMode != null && tableMode.covers(access)) {
+            txn.addPage(pid);
+            return null;
+        }
+        LockMode intent = mode.covers(LockMode.IX) ? LockMode.IX : LockMode.IS;
+        if (tableMode == null || !tableMode.covers(intent)) {
+            txn.setTableMode(tableId, lock(tableLocks, tableId, tid, intent, timeoutMillis, true));
+        }
+        LockMode held = lock(locks, pid, tid, mode, timeoutMillis, true);
+        int pageLocks = txn.addPageLock(pid, held);
+        int threshold = escalationThreshold;
+        if (threshold > 0 && pageLocks > threshold) {
+            LockMode want = txn.hasExclusivePageLock(tableId) ? LockMode.X : LockMode.S;
+            LockMode granted = lock(tableLocks, tableId, tid, want, 0, false);
+            if (granted != null) {
+                txn.setTableMode(tableId, granted);
+                releaseCoveredPageLocks(tid, txn, tableId, granted);
+                stats.recordEscalation(tableId);
+                return null;
             }
-            return locksOnCurPage.getSharedLocks().contains(tid);
         }
-        return false;
+        return held;
     }
 
-    public synchronized boolean detectDeadlock() throws TransactionAbortedException {
-        HashMap<TransactionId, Integer> indegree = new HashMap<>();
-        Deque<TransactionId> queue = new LinkedList<>();
+    /**
+     * Acquire the IS or IX lock on a page, and on its table, that precedes
+     * record locks on the page.
+     *
+     * @param perm READ_ONLY for IS, READ_WRITE for IX
+     * @param timeoutMillis how long to wait, in ms; 0 to wait forever
+     * @throws TransactionAbortedException if the request would deadlock or
+     *         timed out
+     */
+    public void acquireIntent(TransactionId tid, PageId pid, Permissions perm, long timeoutMillis)
+            throws TransactionAbortedException, InterruptedException {
+        lockPage(tid, pid, perm.equals(Permissions.READ_WRITE) ? LockMode.IX : LockMode.IS, timeoutMillis);
+    }
 
-        for (TransactionId tid: this.transactions.keySet()){
-            indegree.putIfAbsent(tid, 0);
+    /**
+     * Acquire an S or X lock on a record, after the intention locks on its
+     * page and table. Nothing is locked if tid already holds a page or
+     * table lock covering the record.
+     *
+     * @param timeoutMillis how long to wait, in ms; 0 to wait forever
+     * @throws TransactionAbortedException if the request would deadlock or
+     *         timed out
+     */
+    public void lockRecord(TransactionId tid, RecordId rid, Permissions perm, long timeoutMillis)
+            throws TransactionAbortedException, InterruptedException {
+        LockMode mode = perm.equals(Permissions.READ_WRITE) ? LockMode.X : LockMode.S;
+        if (recordCovered(tid, rid, mode)) {
+            return;
+        }
+        LockMode page = lockPage(tid, rid.getPageId(), mode == LockMode.X ? LockMode.IX : LockMode.IS, timeoutMillis);
+        if (page == null || page.covers(mode)) {
+            return;
         }
+        TxnLocks txn = transactions.get(tid);
+        txn.addRecordLock(rid, lock(recordLocks, rid, tid, mode, timeoutMillis, true));
+    }
 
-        for (TransactionId waiterTid: this.transactions.keySet()){
-            if (this.waitForGraph.containsKey(waiterTid)){
-                for (TransactionId waiteeTid: this.waitForGraph.get(waiterTid)){
-                    indegree.replace(waiteeTid, indegree.get(waiteeTid)+1);
+    /**
+     * Acquire an X lock on a record if that is possible without waiting.
+     * Used to pick a free slot for a new record. The caller must hold the
+     * IX lock on the record's page.
+     *
+     * @return true if tid holds an X lock on the record, or a page or table
+     *         lock covering it
+     */
+    public boolean tryLockRecord(TransactionId tid, RecordId rid) {
+        if (recordCovered(tid, rid, LockMode.X)) {
+            return true;
+        }
+        try {
+            LockMode granted = lock(recordLocks, rid, tid, LockMode.X, 0, false);
+            if (granted == null) {
+                return false;
+            }
+            transactions.computeIfAbsent(tid, t -> new TxnLocks()).addRecordLock(rid, granted);
+            return true;
+        } catch (TransactionAbortedException | InterruptedException e) {
+            // only thrown by requests that wait
+            return false;
+        }
+    }
+
+    /**
+     * Acquire an S lock on a page, and the IS lock on its table, if that is
+     * possible without waiting. Never escalates. Used by the background
+     * writer, which must not wait behind transactions, to keep a page from
+     * changing while it is written out; releaseAll gives the locks up.
+     *
+     * @return true if tid holds the S lock on the page
+     */
+    public boolean tryLockPage(TransactionId tid, PageId pid) {
+        TxnLocks txn = transactions.computeIfAbsent(tid, t -> new TxnLocks());
+        int tableId = pid.getTableId();
+        try {
+            if (txn.tableMode(tableId) == null) {
+                LockMode intent = lock(tableLocks, tableId, tid, LockMode.IS, 0, false);
+                if (intent == null) {
+                    return false;
                 }
+                txn.setTableMode(tableId, intent);
+            }
+            LockMode held = lock(locks, pid, tid, LockMode.S, 0, false);
+            if (held == null) {
+                return false;
             }
+            txn.addPageLock(pid, held);
+            return true;
+        } catch (TransactionAbortedException | InterruptedException e) {
+            // only thrown by requests that wait
+            return false;
+        }
+    }
+
+    /** @return true if a record, page or table lock of tid already grants mode on rid */
+    private boolean recordCovered(TransactionId tid, RecordId rid, LockMode mode) {
+        TxnLocks txn = transactions.get(tid);
+        if (txn == null) {
+            return false;
+        }
+        LockMode record = txn.recordMode(rid);
+        LockMode page = txn.pageMode(rid.getPageId());
+        LockMode table = txn.tableMode(rid.getPageId().getTableId());
+        return (record != null && record.covers(mode)) || (page != null && page.covers(mode))
+                || (table != null && table.covers(mode));
+    }
+
+    /** @return the mode tid holds on the page itself, or null */
+    public LockMode getPageLock(TransactionId tid, PageId pid) {
+        TxnLocks txn = transactions.get(tid);
+        return txn == null ? null : txn.pageMode(pid);
+    }
+
+    /** @return the records of the page that tid holds X locks on */
+    public List<RecordId> getExclusiveRecords(TransactionId tid, PageId pid) {
+        TxnLocks txn = transactions.get(tid);
+        return txn == null ? Collections.emptyList() : txn.exclusiveRecords(pid);
+    }
+
+    /**
+     * Acquire a lock on a whole table. Page locks the transaction holds on
+     * the table that the new table lock covers are released, and no page
+     * locks are taken for such pages from now on.
+     *
+     * @param mode the mode to lock the table in; a mode already held is
+     *        converted to one covering both
+     * @param timeoutMillis how long to wait, in ms; 0 to wait forever
+     * @throws TransactionAbortedException if the request would deadlock or
+     *         timed out
+     */
+    public void lockTable(TransactionId tid, int tableId, LockMode mode, long timeoutMillis)
+            throws TransactionAbortedException, InterruptedException {
+        if (wounded.contains(tid)) {
+            throw new TransactionAbortedException();
         }
+        TxnLocks txn = transactions.computeIfAbsent(tid, t -> new TxnLocks());
+        LockMode held = txn.tableMode(tableId);
+        if (held != null && held.covers(mode)) {
+            return;
+        }
+        LockMode granted = lock(tableLocks, tableId, tid, mode, timeoutMillis, true);
+        txn.setTableMode(tableId, granted);
+        releaseCoveredPageLocks(tid, txn, tableId, granted);
+    }
 
-        for (TransactionId tid: this.transactions.keySet()){
-            if(indegree.get(tid) == 0){
-                queue.offer(tid);
+    /** @return the mode tid holds on the table, or null */
+    public LockMode getTableLock(TransactionId tid, int tableId) {
+        TxnLocks txn = transactions.get(tid);
+        return txn == null ? null : txn.tableMode(tableId);
+    }
+
+    private void releaseCoveredPageLocks(TransactionId tid, TxnLocks txn, int tableId, LockMode tableMode) {
+        if (tableMode == LockMode.S || tableMode == LockMode.SIX || tableMode == LockMode.X) {
+            for (PageId pid : txn.dropCoveredPageLocks(tableId, tableMode)) {
+                releaseLock(locks, pid, tid);
             }
         }
+    }
 
-        int count = 0;
-        while (!queue.isEmpty()){
-            TransactionId waiterTid = queue.poll();
-            count += 1;
-            if (!this.waitForGraph.containsKey(waiterTid) ){
-                continue;
+    /**
+     * Acquire mode on the head of key in map for tid, converting the mode
+     * tid already holds there to one covering both.
+     *
+     * @param timeoutMillis how long to wait, in ms; 0 to wait forever
+     * @param wait false to give up at once if the lock cannot be granted
+     * @return the mode tid holds now, or null if wait was not set and the
+     *         lock was not granted
+     */
+    private <K> LockMode lock(ConcurrentHashMap<K, LockHead> map, K key, TransactionId tid, LockMode mode,
+                              long timeoutMillis, boolean wait)
+            throws TransactionAbortedException, InterruptedException {
+        LockHead head = latchHead(map, key);
+        try {
+            LockMode held = head.heldBy(tid);
+            if (held != null && held.covers(mode)) {
+                return held;
+            }
+            LockMode target = mode.join(held);
+            boolean upgrade = held != null;
+            if (head.compatible(tid, target) && (upgrade || head.queue.isEmpty())) {
+                head.holders.put(tid, target);
+                if (upgrade) {
+                    stats.recordUpgrade(key);
+                }
+                return target;
+            }
+            if (!wait) {
+                dropIfUnused(map, key, head);
+                return null;
             }
 
-            for (TransactionId waiteeTid: this.waitForGraph.get(waiterTid)){
-                if(indegree.get(waiteeTid) != 0){
-                    indegree.replace(waiteeTid, indegree.get(waiteeTid)-1);
+            LockRequest req = new LockRequest(tid, target, head);
+            if (upgrade) {
+                head.queue.addFirst(req);
+            } else {
+                head.queue.addLast(req);
+            }
+            waitForGraph.put(tid, head.blockers(req));
+            waiting.put(tid, req);
+            long start = System.nanoTime();
+            long deadline = start + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+            try {
+                while (!req.isGranted) {
+                    if (req.aborted || wounded.contains(tid)) {
+                        stats.recordDeadlockAbort(key);
+                        throw new TransactionAbortedException();
+                    }
+                    long remaining = deadline - System.nanoTime();
+                    if (timeoutMillis > 0 && remaining <= 0) {
+                        stats.recordTimeout(key);
+                        throw new TransactionAbortedException();
+                    }
+                    DeadlockPolicy policy = this.policy;
+                    if (policy == DeadlockPolicy.DETECT) {
+                        if (findCycle(waitForGraph, tid) != null) {
+                            stats.recordDeadlockAbort(key);
+                            throw new TransactionAbortedException();
+                        }
+                    } else if (policy == DeadlockPolicy.WAIT_DIE) {
+                        for (TransactionId blocker : head.blockers(req)) {
+                            if (blocker.getId() < tid.getId()) {
+                                stats.recordDeadlockAbort(key);
+                                throw new TransactionAbortedException();
+                            }
+                        }
+                    } else if (policy == DeadlockPolicy.WOUND_WAIT) {
+                        ArrayList<TransactionId> victims = new ArrayList<>();
+                        for (TransactionId blocker : head.blockers(req)) {
+                            if (blocker.getId() > tid.getId() && wounded.add(blocker)) {
+                                victims.add(blocker);
+                            }
+                        }
+                        if (!victims.isEmpty()) {
+                            // the victims may wait on other heads, whose
+                            // latches must not be taken while holding this one
+                            head.latch.unlock();
+                            try {
+                                for (TransactionId victim : victims) {
+                                    abortWaiter(victim);
+                                }
+                            } finally {
+                                head.latch.lock();
+                            }
+                            continue;
+                        }
+                    }
+                    long nanos = policy == DeadlockPolicy.BACKGROUND ? Long.MAX_VALUE
+                            : TimeUnit.MILLISECONDS.toNanos(RECHECK_MILLIS);
+                    if (timeoutMillis > 0) {
+                        nanos = Math.min(nanos, remaining);
+                    }
+                    if (nanos == Long.MAX_VALUE) {
+                        req.granted.await();
+                    } else {
+                        req.granted.awaitNanos(nanos);
+                    }
                 }
-                if(indegree.get(waiteeTid) == 0) {
-                    queue.offer(waiteeTid);
+            } finally {
+                stats.recordWait(key, System.nanoTime() - start);
+                waiting.remove(tid, req);
+                waitForGraph.remove(tid);
+                if (!req.isGranted) {
+                    head.queue.remove(req);
+                    // the requests behind this one may be grantable now
+                    head.grantWaiters();
+                    updateWaiters(head);
+                    dropIfUnused(map, key, head);
                 }
             }
+            if (upgrade) {
+                stats.recordUpgrade(key);
+            }
+            return target;
+        } finally {
+            head.latch.unlock();
+        }
+    }
+
+    /** Wakes up the thread waiting on req so that it checks its state again. */
+    private void signal(LockRequest req) {
+        req.head.latch.lock();
+        try {
+            req.granted.signal();
+        } finally {
+            req.head.latch.unlock();
+        }
+    }
+
+    /**
+     * Aborts the lock request tid is waiting on, if any: the waiting
+     * thread throws TransactionAbortedException.
+     *
+     * @return true if tid was waiting
+     */
+    boolean abortWaiter(TransactionId tid) {
+        LockRequest req = waiting.get(tid);
+        if (req == null) {
+            return false;
+        }
+        req.head.latch.lock();
+        try {
+            if (req.isGranted || req.aborted) {
+                return false;
+            }
+            req.aborted = true;
+            req.granted.signal();
+            return true;
+        } finally {
+            req.head.latch.unlock();
         }
-        return count != this.transactions.size();
     }
-}
 
+    /** Release the lock tid holds on a page; its table lock stays. */
+    public Boolean release(TransactionId tid, PageId pid) {
+        TxnLocks txn = transactions.get(tid);
+        if (txn != null) {
+            txn.removePage(pid);
+        }
+        return releaseLock(locks, pid, tid);
+    }
 
+    private <K> boolean releaseLock(ConcurrentHashMap<K, LockHead> map, K key, TransactionId tid) {
+        LockHead head = map.get(key);
+        if (head == null) {
+            return false;
+        }
+        head.latch.lock();
+        try {
+            if (head.removed || head.holders.remove(tid) == null) {
+                return false;
+            }
+            head.grantWaiters();
+            updateWaiters(head);
+            dropIfUnused(map, key, head);
+            return true;
+        } finally {
+            head.latch.unlock();
+        }
+    }
 
+    public void releaseAll(TransactionId tid) {
+        TxnLocks txn = transactions.remove(tid);
+        if (txn != null) {
+            for (RecordId rid : txn.copyRecordLocks()) {
+                releaseLock(recordLocks, rid, tid);
+            }
+            for (PageId pid : txn.copyPageLocks()) {
+                releaseLock(locks, pid, tid);
+            }
+            for (Integer tableId : txn.copyTableLocks()) {
+                releaseLock(tableLocks, tableId, tid);
+            }
+        }
+        waitForGraph.remove(tid);
+        wounded.remove(tid);
+    }
+
+    /**
+     * @return a copy of the pages tid locked, including those covered by a
+     *         table lock, or null if there are none
+     */
+    public Set<PageId> getLockedPages(TransactionId tid) {
+        TxnLocks txn = transactions.get(tid);
+        return txn == null ? null : txn.copyPages();
+    }
+
+    /**
+     * @return true if tid holds a lock that lets it write: an X lock on a
+     *         record, or an IX or stronger lock on a page or table
+     */
+    public boolean holdsWriteLocks(TransactionId tid) {
+        TxnLocks txn = transactions.get(tid);
+        return txn != null && txn.writes();
+    }
+
+    /** @return true if the page, or its whole table, is locked by any transaction */
+    public Boolean isLocked(PageId pid) {
+        return isLocked(locks, pid, LockMode.S) || isLocked(tableLocks, pid.getTableId(), LockMode.S);
+    }
+
+    /**
+     * @return true if the page, or its whole table, is locked exclusively,
+     *         or records of the page are being written
+     */
+    public boolean isExclusivelyLocked(PageId pid) {
+        return isLocked(locks, pid, LockMode.IX) || isLocked(tableLocks, pid.getTableId(), LockMode.X);
+    }
 
+    /**
+     * @return true if a transaction holds an IX or SIX lock on the page,
+     *         i.e. may be changing records of it under record locks
+     */
+    public boolean hasRecordWriters(PageId pid) {
+        LockHead head = locks.get(pid);
+        if (head == null) {
+            return false;
+        }
+        head.latch.lock();
+        try {
+            if (head.removed) {
+                return false;
+            }
+            for (LockMode held : head.holders.values()) {
+                if (held == LockMode.IX || held == LockMode.SIX) {
+                    return true;
+                }
+            }
+            return false;
+        } finally {
+            head.latch.unlock();
+        }
+    }
+
+    /** @return true if any transaction holds a lock on the record */
+    public boolean isLocked(RecordId rid) {
+        return isLocked(recordLocks, rid, LockMode.S) || isLocked(recordLocks, rid, LockMode.X);
+    }
+
+    private <K> boolean isLocked(ConcurrentHashMap<K, LockHead> map, K key, LockMode mode) {
+        LockHead head = map.get(key);
+        if (head == null) {
+            return false;
+        }
+        head.latch.lock();
+        try {
+            return !head.removed && head.isLocked(mode);
+        } finally {
+            head.latch.unlock();
+        }
+    }
+
+    /** @return true if tid holds a lock on the page, or a table lock covering it */
+    public Boolean isLocked(TransactionId tid, PageId pid) {
+        TxnLocks txn = transactions.get(tid);
+        if (txn == null) {
+            return false;
+        }
+        LockMode tableMode = txn.tableMode(pid.getTableId());
+        return txn.pageMode(pid) != null || (tableMode != null && tableMode.covers(LockMode.S));
+    }
+
+    /**
+     * Searches the wait-for graph from tid for a path back to tid. Only the
+     * transactions tid waits for, directly or indirectly, are visited.
+     *
+     * @return the transactions on the cycle, starting with tid, or null if
+     *         tid is not part of a cycle
+     */
+    static List<TransactionId> findCycle(Map<TransactionId, Set<TransactionId>> graph, TransactionId tid) {
+        ArrayList<TransactionId> path = new ArrayList<>();
+        path.add(tid);
+        return findCycle(graph, tid, path, new HashSet<>()) ? path : null;
+    }
+
+    private static boolean findCycle(Map<TransactionId, Set<TransactionId>> graph, TransactionId start,
+                                     ArrayList<TransactionId> path, HashSet<TransactionId> visited) {
+        Set<TransactionId> next = graph.get(path.get(path.size() - 1));
+        if (next == null) {
+            return false;
+        }
+        for (TransactionId waitee : next) {
+            if (waitee.equals(start)) {
+                return true;
+            }
+            if (visited.add(waitee)) {
+                path.add(waitee);
+                if (findCycle(graph, start, path, visited)) {
+                    return true;
+                }
+                path.remove(path.size() - 1);
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Finds the cycles of the whole wait-for graph and aborts the youngest
+     * waiter of each. Used by the BACKGROUND policy.
+     *
+     * @return the number of waiters aborted
+     */
+    int breakDeadlocks() {
+        HashMap<TransactionId, Set<TransactionId>> graph = new HashMap<>(waitForGraph);
+        int aborted = 0;
+        for (TransactionId tid : new ArrayList<>(graph.keySet())) {
+            List<TransactionId> cycle;
+            while ((cycle = findCycle(graph, tid)) != null) {
+                TransactionId victim = Collections.max(cycle, Comparator.comparingLong(TransactionId::getId));
+                graph.remove(victim);
+                if (abortWaiter(victim)) {
+                    aborted++;
+                }
+            }
+        }
+        return aborted;
+    }
+}
@@ -0,0 +1,244 @@
+package simpledb;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * LockStats counts lock contention in a LockManager: how often and how
+ * long transactions waited for each page and table lock, how many lock
+ * upgrades and escalations there were, and how many lock requests were
+ * aborted because of a deadlock or a lock timeout. Only pages and tables
+ * that saw any of these get an entry, so an uncontended workload costs
+ * nothing here.
+ * <p>
+ * Wait times also go into a histogram whose bucket i counts waits shorter
+ * than 2^i microseconds (and at least 2^(i-1)); the last bucket takes
+ * everything longer.
+ * <p>
+ * The counters are updated without locking; {@link #snapshot} returns a
+ * copy that is consistent per counter. The counters of a page are those
+ * of its page lock plus those of its record locks, and the counters of a
+ * table those of its table lock plus those of all its pages.
+ *
+ * @see LockManager#getStats
+ */
+public class LockStats {
+
+    public static final int HISTOGRAM_BUCKETS = 24;
+
+    /** live counters of one page, with its records, or of one table lock */
+    private static final class Counters {
+        final LongAdder waits = new LongAdder();
+        final LongAdder waitNanos = new LongAdder();
+        final LongAdder upgrades = new LongAdder();
+        final LongAdder deadlockAborts = new LongAdder();
+        final LongAdder timeouts = new LongAdder();
+        final LongAdder escalations = new LongAdder();
+    }
+
+    /** The counters of a page or a table at the time of a snapshot. */
+    public static final class Counts {
+        private long waits;
+        private long waitNanos;
+        private long upgrades;
+        private long deadlockAborts;
+        private long timeouts;
+        private long escalations;
+
+        /** @return the number of lock requests that had to wait */
+        public long getWaits() {
+            return waits;
+        }
+
+        /** @return the total time spent waiting, in nanoseconds */
+        public long getWaitNanos() {
+            return waitNanos;
+        }
+
+        /** @return the number of shared locks upgraded to exclusive ones */
+        public long getUpgrades() {
+            return upgrades;
+        }
+
+        /** @return the number of lock requests aborted to break or prevent a deadlock */
+        public long getDeadlockAborts() {
+            return deadlockAborts;
+        }
+
+        /** @return the number of lock requests aborted because they timed out */
+        public long getTimeouts() {
+            return timeouts;
+        }
+
+        /** @return the number of times page locks were escalated to a table lock */
+        public long getEscalations() {
+            return escalations;
+        }
+
+        private void add(Counts other) {
+            waits += other.waits;
+            waitNanos += other.waitNanos;
+            upgrades += other.upgrades;
+            deadlockAborts += other.deadlockAborts;
+            timeouts += other.timeouts;
+            escalations += other.escalations;
+        }
+
+        @Override
+        public String toString() {
+            return "waits=" + waits + " waitMillis=" + waitNanos / 1000000 + " upgrades=" + upgrades
+                    + " deadlockAborts=" + deadlockAborts + " timeouts=" + timeouts + " escalations=" + escalations;
+        }
+    }
+
+    /** A copy of all counters taken by {@link LockStats#snapshot}. */
+    public static final class Snapshot {
+        private final Map<PageId, Counts> pages;
+        private final Map<Integer, Counts> tables;
+        private final long[] waitHistogram;
+
+        private Snapshot(Map<PageId, Counts> pages, Map<Integer, Counts> tables, long[] waitHistogram) {
+            this.pages = Collections.unmodifiableMap(pages);
+            this.tables = Collections.unmodifiableMap(tables);
+            this.waitHistogram = waitHistogram;
+        }
+
+        /** @return the counters of every page that saw contention */
+        public Map<PageId, Counts> getPages() {
+            return pages;
+        }
+
+        /** @return the counters of every table that saw contention, by table id */
+        public Map<Integer, Counts> getTables() {
+            return tables;
+        }
+
+        /** @return the counters of a page, all zero if it saw no contention */
+        public Counts getPage(PageId pid) {
+            Counts c = pages.get(pid);
+            return c == null ? new Counts() : c;
+        }
+
+        /** @return the counters of a table, all zero if it saw no contention */
+        public Counts getTable(int tableId) {
+            Counts c = tables.get(tableId);
+            return c == null ? new Counts() : c;
+        }
+
+        /** @return the total of all tables */
+        public Counts getTotal() {
+            Counts total = new Counts();
+            for (Counts c : tables.values()) {
+                total.add(c);
+            }
+            return total;
+        }
+
+        /** @return a copy of the wait time histogram; see {@link LockStats} for the buckets */
+        public long[] getWaitHistogram() {
+            return waitHistogram.clone();
+        }
+
+        /** @return the n pages with the longest total wait time, longest first */
+        public List<PageId> getHottestPages(int n) {
+            ArrayList<PageId> hottest = new ArrayList<>(pages.keySet());
+            hottest.sort((a, b) -> Long.compare(pages.get(b).waitNanos, pages.get(a).waitNanos));
+            return hottest.subList(0, Math.min(n, hottest.size()));
+        }
+    }
+
+    /** counters by PageId, or Integer table id for table locks */
+    private final ConcurrentHashMap<Object, Counters> counters = new ConcurrentHashMap<>();
+    private final AtomicLongArray waitHistogram = new AtomicLongArray(HISTOGRAM_BUCKETS);
+
+    /**
+     * Record locks count toward their page, so that hot rows do not each
+     * keep an entry.
+     */
+    private Counters countersFor(Object key) {
+        if (key instanceof RecordId) {
+            key = ((RecordId) key).getPageId();
+        }
+        return counters.computeIfAbsent(key, k -> new Counters());
+    }
+
+    /** @return the histogram bucket of a wait of the given length */
+    static int bucket(long nanos) {
+        long micros = nanos / 1000;
+        int b = 64 - Long.numberOfLeadingZeros(micros);
+        return Math.min(b, HISTOGRAM_BUCKETS - 1);
+    }
+
+    /**
+     * Records a lock request that waited for nanos, granted or not. The key
+     * of record locks is the RecordId, counted toward its page, of page
+     * locks the PageId and of table locks the table id.
+     */
+    void recordWait(Object key, long nanos) {
+        Counters c = countersFor(key);
+        c.waits.increment();
+        c.waitNanos.add(nanos);
+        waitHistogram.incrementAndGet(bucket(nanos));
+    }
+
+    /** Records the conversion of a lock to a stronger mode. */
+    void recordUpgrade(Object key) {
+        countersFor(key).upgrades.increment();
+    }
+
+    /** Records a lock request aborted because of a deadlock. */
+    void recordDeadlockAbort(Object key) {
+        countersFor(key).deadlockAborts.increment();
+    }
+
+    /** Records a lock request aborted because it timed out. */
+    void recordTimeout(Object key) {
+        countersFor(key).timeouts.increment();
+    }
+
+    /** Records the escalation of page locks on a table to a table lock. */
+    void recordEscalation(int tableId) {
+        countersFor(tableId).escalations.increment();
+    }
+
+    /** @return a copy of the current counters */
+    public Snapshot snapshot() {
+        HashMap<PageId, Counts> pageCounts = new HashMap<>();
+        HashMap<Integer, Counts> tableCounts = new HashMap<>();
+        for (Map.Entry<Object, Counters> e : counters.entrySet()) {
+            Counters c = e.getValue();
+            Counts counts = new Counts();
+            counts.waits = c.waits.sum();
+            counts.waitNanos = c.waitNanos.sum();
+            counts.upgrades = c.upgrades.sum();
+            counts.deadlockAborts = c.deadlockAborts.sum();
+            counts.timeouts = c.timeouts.sum();
+            counts.escalations = c.escalations.sum();
+            int tableId;
+            Object key = e.getKey();
+            if (key instanceof PageId) {
+                PageId pid = (PageId) key;
+                pageCounts.put(pid, counts);
+                tableId = pid.getTableId();
+            } else {
+                tableId = (Integer) e.getKey();
+            }
+            tableCounts.computeIfAbsent(tableId, t -> new Counts()).add(counts);
+        }
+        long[] histogram = new long[HISTOGRAM_BUCKETS];
+        for (int i = 0; i < HISTOGRAM_BUCKETS; i++) {
+            histogram[i] = waitHistogram.get(i);
+        }
+        return new Snapshot(pageCounts, tableCounts, histogram);
+    }
+
+    /** Sets all counters back to zero. */
+    public void reset() {
+        counters.clear();
+        for (int i = 0; i < HISTOGRAM_BUCKETS; i++) {
+            waitHistogram.set(i, 0);
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package simpledb;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * LogBuffer collects the bytes of log records in memory before they reach
+ * the log file, so that appending a record costs no system call.
+ * <p>
+ * The bytes go into a ring of direct ByteBuffers, filled one after the
+ * other. Once the last one is full, or when the LogFile needs the records
+ * on disk (before forcing or reading the log), all filled buffers are
+ * appended to the file with a single gathering write and the ring starts
+ * over. Records may span buffers, and segments: see LogSegments.
+ * <p>
+ * Not thread safe: LogFile uses it only while holding its monitor.
+ *
+ * @see LogFile
+ */
+class LogBuffer extends OutputStream {
+
+    static final int DEFAULT_BUFFERS = 4;
+    static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+    private final ByteBuffer[] ring;
+    /** index of the buffer being filled; those before it are full */
+    private int current;
+    private final LogSegments segments;
+    /** log offset the first buffered byte goes to */
+    private long fileEnd;
+
+    private long writes;
+    private long bytesWritten;
+
+    /**
+     * @param segments the log
+     * @param fileEnd the offset to append at
+     */
+    LogBuffer(LogSegments segments, long fileEnd) {
+        this(segments, fileEnd, DEFAULT_BUFFERS, DEFAULT_BUFFER_SIZE);
+    }
+
+    LogBuffer(LogSegments segments, long fileEnd, int buffers, int bufferSize) {
+        this.segments = segments;
+        ring = new ByteBuffer[buffers];
+        for (int i = 0; i < buffers; i++) {
+            ring[i] = ByteBuffer.allocateDirect(bufferSize);
+        }
+        reset(fileEnd);
+    }
+
+    /**
+     * Append at fileEnd from now on, dropping anything buffered. Used when
+     * the log is cleared, and when recovery has found its end.
+     */
+    void reset(long fileEnd) {
+        this.fileEnd = fileEnd;
+        for (ByteBuffer b : ring) {
+            b.clear();
+        }
+        current = 0;
+    }
+
+    /** @return the log offset the next byte written will end up at */
+    long position() {
+        return fileEnd + buffered();
+    }
+
+    /** @return the number of bytes not written to the file yet */
+    int buffered() {
+        int n = 0;
+        for (int i = 0; i <= current; i++) {
+            n += ring[i].position();
+        }
+        return n;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        room().put((byte) b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            ByteBuffer buf = room();
+            int n = Math.min(len, buf.remaining());
+            buf.put(b, off, n);
+            off += n;
+            len -= n;
+        }
+    }
+
+    /** @return a buffer with room for at least one byte */
+    private ByteBuffer room() throws IOException {
+        if (!ring[current].hasRemaining()) {
+            if (current == ring.length - 1) {
+                writeOut();
+            } else {
+                current++;
+            }
+        }
+        return ring[current];
+    }
+
+    /**
+     * Append everything buffered to the log, with a single gathering
+     * write per segment. Does not force it.
+     */
+    void writeOut() throws IOException {
+        int total = buffered();
+        if (total == 0) {
+            return;
+        }
+        ByteBuffer[] filled = new ByteBuffer[current + 1];
+        for (int i = 0; i <= current; i++) {
+            ring[i].flip();
+            filled[i] = ring[i];
+        }
+        segments.write(filled, fileEnd);
+        fileEnd += total;
+        writes++;
+        bytesWritten += total;
+        for (ByteBuffer b : filled) {
+            b.clear();
+        }
+        current = 0;
+    }
+
+    /** @return the number of writes to the file so far */
+    long getWrites() {
+        return writes;
+    }
+
+    /** @return the number of bytes written to the file so far */
+    long getBytesWritten() {
+        return bytesWritten;
+    }
+}
@@ -17,8 +17,8 @@ import java.lang.reflect.*;
  Many of the methods here are synchronized (to prevent concurrent log
  writes from happening); many of the methods in BufferPool are also
  synchronized (for similar reasons.)  Problem is that BufferPool writes
- log records (on page flushed) and the log file flushes BufferPool
- pages (on checkpoints and recovery.)  This can lead to deadlock.  For
+ log records (on page flushed) and the log file discards BufferPool
+ pages (on rollback and recovery.)  This can lead to deadlock.  For
  that reason, any LogFile operation that needs to access the BufferPool
  must not be declared synchronized and must begin with a block like:
 
@@ -39,20 +39,26 @@ import java.lang.reflect.*;
 
  <ul>
 
- <li> The first long integer of the file represents the offset of the
- last written checkpoint, or -1 if there are no checkpoints
+ <li> The log is stored in fixed-size segment files next to a manifest
+ file; see LogSegments.  Offsets in the log are logical offsets, which
+ truncation does not change.  The manifest holds the long integer offset
+ of the last written checkpoint, or -1 if there are no checkpoints, and
+ the long integer offset the log starts at.
 
- <li> All additional data in the log consists of log records.  Log
- records are variable length.
+ <li> All data in the segments consists of log records.  Log records
+ are variable length, and may span segments.
 
- <li> Each log record begins with an integer type and a long integer
- transaction id.
+ <li> Each log record begins with an integer type, a long integer
+ transaction id and the long integer offset of the previous record of
+ the same transaction, or -1 if there is none (the prevLSN of ARIES,
+ kept as an offset).  The records of a transaction thus form a chain
+ from its last record back to its BEGIN record.
 
  <li> Each log record ends with a long integer file offset representing
  the position in the log file where the record began.
 
- <li> There are five record types: ABORT, COMMIT, UPDATE, BEGIN, and
- CHECKPOINT
+ <li> There are eight record types: ABORT, COMMIT, UPDATE, BEGIN,
+ CHECKPOINT, COMPENSATING, BULK_APPEND and DELTA
 
  <li> ABORT, COMMIT, and BEGIN records contain no additional data
 
@@ -62,19 +68,75 @@ import java.lang.reflect.*;
  methods.  See LogFile.print() for an example.
 
  <li> CHECKPOINT records consist of active transactions at the time
- the checkpoint was taken and their first log record on disk.  The format
- of the record is an integer count of the number of transactions, as well
- as a long integer transaction id and a long integer first record offset
- for each active transaction.
+ the checkpoint was taken and their first and last log records,
+ followed by the dirty page table.  The format of the record is an
+ integer count of the number of transactions, as well as a long integer
+ transaction id, a long integer first record offset and a long integer
+ last record offset for each active transaction;
+ then an integer count of the number of dirty pages, as well as the
+ integer table id, the integer page number and the long integer
+ recovery offset of each dirty page.
+
+ <li> COMPENSATING records (CLRs) contain the long integer offset of the
+ record they undo, followed by the long integer offset of the record to
+ undo next, the previous record of the undone one.
+
+ <li> BULK_APPEND records stand for pages a transaction wrote directly to
+ the end of a table file, bypassing the buffer pool; see
+ HeapFile.bulkInsertTuples.  They contain the integer table id, the
+ integer number of the first page and the integer number of pages.  The
+ pages are forced to disk before the transaction commits, so there is
+ nothing to redo; undoing the record empties the pages.
+
+ <li> DELTA records log the change of a HeapPage compactly, as the slots
+ that changed.  They contain the integer table id and page number, the
+ integer number of slots, and for each slot its integer number and its
+ bytes before and after the change, each written as an integer length
+ followed by the bytes, or as length -1 for an empty slot.  Redo and undo
+ set the slots of the page on disk to the logged bytes, so either may be
+ repeated, and each record of a page is logged against the image of the
+ page's previous record, so replaying them in order from any point the
+ disk has passed ends at the last logged image.  The first record of a
+ page after a checkpoint is always a full UPDATE record, so the log
+ holds a full image of every page changed since the last checkpoint.
 
  </ul>
 
+ <p> Checkpoints are fuzzy: they write no pages, and the BufferPool
+ keeps writing pages while one is taken.  The log keeps a dirty page
+ table, holding for each page whose logged changes may not be on disk
+ the offset of the first such record, its recovery offset (the recLSN
+ of ARIES, kept as an offset, which is what redo seeks to).  A page
+ leaves the table when the BufferPool reports it written, see
+ {@link #pageWritten}.  Recovery redoes from the lowest recovery offset
+ in the checkpoint, skipping records before the checkpoint whose page
+ was not dirty then, or became dirty only later; writing dirty pages
+ out, as the background writer does, is what keeps that short.
+
+ <p> Undo, on abort and in recovery, walks each transaction's chain of
+ records backwards from its last record, writing a CLR for every change
+ it undoes; a CLR met on the way sends it straight to the record to
+ undo next, so changes undone before a crash are not undone again.  It
+ reads only the records of the transactions it undoes, however long the
+ log after their first record is.
+
+ <p> Records are not written to the file one field at a time: they are
+ assembled in a LogBuffer and reach the file in large writes, at the
+ latest when the log is forced or read.  Every record has a log
+ sequence number (LSN), the number of records appended before it plus
+ one.  Unlike file offsets, LSNs are not changed by truncation.  Pages
+ carry the LSN of their last UPDATE record, and the BufferPool writes a
+ page only after {@link #flushTo} that LSN.
+
  */
 
 public class LogFile {
 
     final File logFile;
-    private RandomAccessFile raf;
+    private final LogSegments segments;
+    // records are appended through the buffer, never to the segments directly
+    private LogBuffer buffer;
+    private DataOutputStream out;
     Boolean recoveryUndecided; // no call to recover() and no append to log
 
     static final int ABORT_RECORD = 1;
@@ -83,7 +145,10 @@ public class LogFile {
     static final int BEGIN_RECORD = 4;
     static final int CHECKPOINT_RECORD = 5;
     static final int COMPENSATING_RECORD = 6;
+    static final int BULK_APPEND_RECORD = 7;
+    static final int DELTA_RECORD = 8;
     static final long NO_CHECKPOINT_ID = -1;
+    static final long NO_PREV_OFFSET = -1;
 
     final static int INT_SIZE = 4;
     final static int LONG_SIZE = 8;
@@ -91,8 +156,26 @@ public class LogFile {
     long currentOffset = -1;//protected by this
     //    int pageSize;
     int totalRecords = 0; // for PatchTest //protected by this
+    long appended = 0; // records appended so far, never reset: the LSN of the last record //protected by this
+    long appendedCommits = 0; // COMMIT records among them //protected by this
+    private final GroupCommit groupCommit = new GroupCommit(this);
+    // pages with a full UPDATE record since the last checkpoint //protected by this
+    private final HashSet<PageId> imagedSinceCheckpoint = new HashSet<>();
+    // dirty page table: recovery offset of each page with logged changes
+    // that may not be on disk //protected by this
+    private final HashMap<PageId, Long> dirtyPages = new HashMap<>();
 
     HashMap<Long,Long> tidToFirstLogRecord = new HashMap<Long,Long>();
+    // offset of the last record of each active transaction, where its
+    // undo starts //protected by this
+    HashMap<Long,Long> tidToLastLogRecord = new HashMap<Long,Long>();
+
+    private volatile int redoThreads = Runtime.getRuntime().availableProcessors();
+    // pages written and changes replayed by the last redo pass //protected by this
+    private int redoPagesWritten;
+    private long redoChanges;
+    // records read by the last undo //protected by this
+    private long undoRecordsRead;
 
     /** Constructor.
      Initialize and back the log file with the specified file.
@@ -103,11 +186,14 @@ public class LogFile {
      do it, while if someone starts adding log file entries, then first
      throw out the initial log file contents.
 
-     @param f The log file's name
+     @param f The log file's name: the manifest, next to which the
+     segments are kept
      */
     public LogFile(File f) throws IOException {
         this.logFile = f;
-        raf = new RandomAccessFile(f, "rw");
+        segments = new LogSegments(f);
+        buffer = new LogBuffer(segments, segments.getStart());
+        out = new DataOutputStream(buffer);
         recoveryUndecided = true;
 
         // install shutdown hook to force cleanup on close
@@ -126,13 +212,11 @@ public class LogFile {
     // the log.
     void preAppend() throws IOException {
         totalRecords++;
+        appended++;
         if(recoveryUndecided){
             recoveryUndecided = false;
-            raf.seek(0);
-            raf.setLength(0);
-            raf.writeLong(NO_CHECKPOINT_ID);
-            raf.seek(raf.length());
-            currentOffset = raf.getFilePointer();
+            buffer.reset(segments.clear());
+            currentOffset = buffer.position();
         }
     }
 
@@ -140,8 +224,55 @@ public class LogFile {
         return totalRecords;
     }
 
+    /** @return the number of bytes of log records appended so far,
+     including those not written to the file yet */
+    public synchronized long getBytesAppended() {
+        return buffer.getBytesWritten() + buffer.buffered();
+    }
+
+    /** @return the number of bytes of log records written to the
+     segments so far, leaving out those still buffered */
+    synchronized long getBytesWritten() {
+        return buffer.getBytesWritten();
+    }
+
+    /** Set the number of threads the redo pass of recovery writes
+     pages with; see ParallelRedo.  Defaults to the number of processors. */
+    public void setRedoThreads(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("need at least one redo thread");
+        }
+        redoThreads = threads;
+    }
+
+    /** @return the number of pages the redo pass of the last recover()
+     wrote, each of them once */
+    public synchronized int getRedoPagesWritten() {
+        return redoPagesWritten;
+    }
+
+    /** @return the number of record changes the redo pass of the last
+     recover() replayed */
+    public synchronized long getRedoChanges() {
+        return redoChanges;
+    }
+
+    /** @return the number of log records the last rollback or the undo
+     pass of the last recover() read */
+    public synchronized long getUndoRecordsRead() {
+        return undoRecordsRead;
+    }
+
+    /** @return the group commit state of this log, which holds its
+     batch window and batch statistics */
+    public GroupCommit getGroupCommit() {
+        return groupCommit;
+    }
+
     /** Write an abort record to the log for the specified tid, force
-     the log to disk, and perform a rollback
+     the log to disk, and perform a rollback.  Does nothing if the
+     transaction has not written any log record, as then there is
+     nothing in the log or on disk to roll back.
      @param tid The aborting transaction.
      */
     public void logAbort(TransactionId tid) throws IOException {
@@ -151,6 +282,9 @@ public class LogFile {
         synchronized (Database.getBufferPool()) {
 
             synchronized(this) {
+                if (!tidToFirstLogRecord.containsKey(tid.getId())) {
+                    return;
+                }
                 preAppend();
                 //Debug.log("ABORT");
                 //should we verify that this is a live transaction?
@@ -159,89 +293,292 @@ public class LogFile {
                 // live transactions (needs tidToFirstLogRecord)
                 rollback(tid);
 
-                raf.writeInt(ABORT_RECORD);
-                raf.writeLong(tid.getId());
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
+                out.writeInt(ABORT_RECORD);
+                out.writeLong(tid.getId());
+                out.writeLong(chain(tid.getId()));
+                out.writeLong(currentOffset);
+                currentOffset = buffer.position();
                 force();
                 tidToFirstLogRecord.remove(tid.getId());
+                tidToLastLogRecord.remove(tid.getId());
             }
         }
     }
 
     /** Write a commit record to disk for the specified tid,
-     and force the log to disk.
+     and wait until the log is forced to disk past it.  The force is
+     shared with concurrent commits; see GroupCommit.  Does nothing if
+     the transaction has not written any log record: it changed
+     nothing, so there is nothing to make durable.
 
      @param tid The committing transaction.
      */
-    public synchronized void logCommit(TransactionId tid) throws IOException {
-        preAppend();
-        Debug.log("COMMIT " + tid.getId());
-        //should we verify that this is a live transaction?
-
-        raf.writeInt(COMMIT_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
-        force();
-        tidToFirstLogRecord.remove(tid.getId());
+    public void logCommit(TransactionId tid) throws IOException {
+        long seq;
+        synchronized (this) {
+            if (!tidToFirstLogRecord.containsKey(tid.getId())) {
+                return;
+            }
+            preAppend();
+            Debug.log("COMMIT " + tid.getId());
+            //should we verify that this is a live transaction?
+
+            out.writeInt(COMMIT_RECORD);
+            out.writeLong(tid.getId());
+            out.writeLong(chain(tid.getId()));
+            out.writeLong(currentOffset);
+            currentOffset = buffer.position();
+            appendedCommits++;
+            seq = appended;
+            tidToFirstLogRecord.remove(tid.getId());
+            tidToLastLogRecord.remove(tid.getId());
+        }
+        groupCommit.awaitDurable(seq);
     }
 
     /** Write an UPDATE record to disk for the specified tid and page
-     (with provided         before and after images.)
+     (with provided         before and after images.)  For a HeapPage
+     that has had a full UPDATE record since the last checkpoint, a
+     DELTA record with only the slots that changed is written instead.
      @param tid The transaction performing the write
      @param before The before image of the page
      @param after The after image of the page
+     @return the LSN of the record, to be kept as the page's LSN
 
      @see simpledb.Page#getBeforeImage
+     @see #flushTo
      */
-    public  synchronized void logWrite(TransactionId tid, Page before,
+    public  synchronized long logWrite(TransactionId tid, Page before,
                                        Page after)
             throws IOException  {
-        Debug.log("WRITE, offset = " + raf.getFilePointer());
+        Debug.log("WRITE, offset = " + buffer.position());
+        beginIfNeeded(tid);
         preAppend();
         /* update record conists of
 
            record type
            transaction id
+           previous record offset
            before page data (see writePageData)
            after page data
            start offset
         */
-        raf.writeInt(UPDATE_RECORD);
-        raf.writeLong(tid.getId());
-
-        writePageData(raf,before);
-        writePageData(raf,after);
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
+        dirtyPages.putIfAbsent(after.getId(), currentOffset);
+        Delta delta = null;
+        if (imagedSinceCheckpoint.contains(after.getId())) {
+            delta = Delta.between(before, after);
+        }
+        if (delta != null) {
+            out.writeInt(DELTA_RECORD);
+            out.writeLong(tid.getId());
+            out.writeLong(chain(tid.getId()));
+            delta.write(out);
+        } else {
+            out.writeInt(UPDATE_RECORD);
+            out.writeLong(tid.getId());
+            out.writeLong(chain(tid.getId()));
+
+            writePageData(out,before);
+            writePageData(out,after);
+            imagedSinceCheckpoint.add(after.getId());
+        }
+        out.writeLong(currentOffset);
+        currentOffset = buffer.position();
 
         Debug.log("WRITE OFFSET = " + currentOffset);
+        return appended;
     }
 
-    public  synchronized void logCompensate(long tid, long undoOffset)
+    /** Write a CLR for the specified tid, recording that the record at
+     undoOffset has been undone.
+     @param tid The transaction the undone record belongs to
+     @param undoOffset The offset of the undone record
+     @param undoNextOffset The offset of the record of the transaction to
+     undo next: the previous record of the undone one
+     */
+    public  synchronized void logCompensate(long tid, long undoOffset,
+                                            long undoNextOffset)
             throws IOException  {
-        Debug.log("UNDO, offset = " + raf.getFilePointer());
+        Debug.log("UNDO, offset = " + buffer.position());
         preAppend();
         /* CLR record conists of
 
            record type
            transaction id
+           previous record offset
            undo target log start offset
+           undo next log start offset
            start offset
         */
-        raf.writeInt(COMPENSATING_RECORD);
-        raf.writeLong(tid);
-        raf.writeLong(undoOffset);
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
+        out.writeInt(COMPENSATING_RECORD);
+        out.writeLong(tid);
+        out.writeLong(chain(tid));
+        out.writeLong(undoOffset);
+        out.writeLong(undoNextOffset);
+        out.writeLong(currentOffset);
+        currentOffset = buffer.position();
 
         Debug.log("CLR OFFSET = " + currentOffset);
     }
 
+    /** Write a BULK_APPEND record to the log for the specified tid and
+     force the log to disk.  Must be called before any of the pages is
+     written.
+     @param tid The transaction writing the pages
+     @param tableId The table the pages are appended to
+     @param firstPage The number of the first page written
+     @param numPages The number of consecutive pages written
 
+     @see HeapFile#bulkInsertTuples
+     */
+    public synchronized void logBulkAppend(TransactionId tid, int tableId,
+                                           int firstPage, int numPages)
+            throws IOException {
+        beginIfNeeded(tid);
+        preAppend();
+        Debug.log("BULK APPEND " + tid.getId() + " pages " + firstPage + ".." + (firstPage + numPages - 1));
+        /* bulk append record consists of
+
+           record type
+           transaction id
+           previous record offset
+           table id
+           first page number
+           number of pages
+           start offset
+        */
+        out.writeInt(BULK_APPEND_RECORD);
+        out.writeLong(tid.getId());
+        out.writeLong(chain(tid.getId()));
+        out.writeInt(tableId);
+        out.writeInt(firstPage);
+        out.writeInt(numPages);
+        out.writeLong(currentOffset);
+        currentOffset = buffer.position();
+        force();
+    }
+
+    /** Reads the payload of a BULK_APPEND record and returns empty
+     images of the pages it stands for, to be written when it is undone. */
+    private List<Page> readBulkAppendUndo(DataInput in) throws IOException {
+        int tableId = in.readInt();
+        int firstPage = in.readInt();
+        int numPages = in.readInt();
+        List<Page> empty = new ArrayList<>(numPages);
+        for (int i = 0; i < numPages; i++) {
+            empty.add(new HeapPage(new HeapPageId(tableId, firstPage + i), HeapPage.createEmptyPageData()));
+        }
+        return empty;
+    }
+
+    /** The slot changes of a HeapPage, as logged by a DELTA record. */
+    static final class Delta {
+        final HeapPageId pid;
+        final int[] slots;
+        final byte[][] before;
+        final byte[][] after;
+
+        private Delta(HeapPageId pid, int n) {
+            this.pid = pid;
+            this.slots = new int[n];
+            this.before = new byte[n][];
+            this.after = new byte[n][];
+        }
+
+        /** @return the slots that differ between two images of a
+         HeapPage, or null if the change is better logged as full
+         images: other kinds of page, or most slots changed */
+        static Delta between(Page before, Page after) {
+            if (!(before instanceof HeapPage) || !(after instanceof HeapPage)) {
+                return null;
+            }
+            HeapPage b = (HeapPage) before;
+            HeapPage a = (HeapPage) after;
+            List<Integer> changed = a.changedSlots(b);
+            if (changed.size() > a.getNumSlots() / 2) {
+                return null;
+            }
+            Delta d = new Delta(a.getId(), changed.size());
+            for (int i = 0; i < changed.size(); i++) {
+                int slot = changed.get(i);
+                d.slots[i] = slot;
+                d.before[i] = b.getSlotData(slot);
+                d.after[i] = a.getSlotData(slot);
+            }
+            return d;
+        }
+
+        void write(DataOutput out) throws IOException {
+            out.writeInt(pid.getTableId());
+            out.writeInt(pid.getPageNumber());
+            out.writeInt(slots.length);
+            for (int i = 0; i < slots.length; i++) {
+                out.writeInt(slots[i]);
+                writeSlot(out, before[i]);
+                writeSlot(out, after[i]);
+            }
+        }
+
+        static Delta read(DataInput in) throws IOException {
+            HeapPageId pid = new HeapPageId(in.readInt(), in.readInt());
+            Delta d = new Delta(pid, in.readInt());
+            for (int i = 0; i < d.slots.length; i++) {
+                d.slots[i] = in.readInt();
+                d.before[i] = readSlot(in);
+                d.after[i] = readSlot(in);
+            }
+            return d;
+        }
+
+        private static void writeSlot(DataOutput out, byte[] bytes) throws IOException {
+            if (bytes == null) {
+                out.writeInt(-1);
+            } else {
+                out.writeInt(bytes.length);
+                out.write(bytes);
+            }
+        }
 
-    void writePageData(RandomAccessFile raf, Page p) throws IOException{
+        private static byte[] readSlot(DataInput in) throws IOException {
+            int len = in.readInt();
+            if (len < 0) {
+                return null;
+            }
+            byte[] bytes = new byte[len];
+            in.readFully(bytes);
+            return bytes;
+        }
+    }
+
+    /** Sets the slots of a DELTA record on the page on disk to their
+     bytes before (undo) or after (redo) the change. */
+    private void applyDelta(Delta delta, boolean undo) throws IOException {
+        HeapFile file = (HeapFile) Database.getCatalog().getDatabaseFile(delta.pid.getTableId());
+        Database.getBufferPool().discardPage(delta.pid);
+        HeapPage page = (HeapPage) file.readPage(delta.pid);
+        for (int i = 0; i < delta.slots.length; i++) {
+            page.setSlotData(delta.slots[i], undo ? delta.before[i] : delta.after[i]);
+        }
+        file.writePage(page);
+        page.noteFreeSpace();
+        dirtyPages.remove(delta.pid);
+    }
+
+    /** Writes the before images of an undone record to their files. */
+    private void writeUndoImages(List<Page> images) throws IOException {
+        for (Page img : images) {
+            DbFile file = Database.getCatalog().getDatabaseFile(img.getId().getTableId());
+            Database.getBufferPool().discardPage(img.getId());
+            file.writePage(img);
+            dirtyPages.remove(img.getId());
+            if (img instanceof HeapPage) {
+                ((HeapPage) img).noteFreeSpace();
+            }
+        }
+    }
+
+
+    void writePageData(DataOutput out, Page p) throws IOException{
         PageId pid = p.getId();
         int pageInfo[] = pid.serialize();
 
@@ -256,49 +593,50 @@ public class LogFile {
         String pageClassName = p.getClass().getName();
         String idClassName = pid.getClass().getName();
 
-        raf.writeUTF(pageClassName);
-        raf.writeUTF(idClassName);
+        out.writeUTF(pageClassName);
+        out.writeUTF(idClassName);
 
-        raf.writeInt(pageInfo.length);
+        out.writeInt(pageInfo.length);
         for (int i = 0; i < pageInfo.length; i++) {
-            raf.writeInt(pageInfo[i]);
+            out.writeInt(pageInfo[i]);
         }
         byte[] pageData = p.getPageData();
-        raf.writeInt(pageData.length);
-        raf.write(pageData);
+        out.writeInt(pageData.length);
+        out.write(pageData);
         //        Debug.log ("WROTE PAGE DATA, CLASS = " + pageClassName + ", table = " +  pid.getTableId() + ", page = " + pid.pageno());
     }
 
-    Page readPageData(RandomAccessFile raf) throws IOException {
+    Page readPageData(DataInput in) throws IOException {
         PageId pid;
         Page newPage = null;
 
-        String pageClassName = raf.readUTF();
-        String idClassName = raf.readUTF();
+        String pageClassName = in.readUTF();
+        String idClassName = in.readUTF();
 
         try {
             Class<?> idClass = Class.forName(idClassName);
             Class<?> pageClass = Class.forName(pageClassName);
 
             Constructor<?>[] idConsts = idClass.getDeclaredConstructors();
-            int numIdArgs = raf.readInt();
+            int numIdArgs = in.readInt();
             Object idArgs[] = new Object[numIdArgs];
             for (int i = 0; i<numIdArgs;i++) {
-                idArgs[i] = new Integer(raf.readInt());
+                idArgs[i] = new Integer(in.readInt());
             }
             pid = (PageId)idConsts[0].newInstance(idArgs);
 
-            Constructor<?>[] pageConsts = pageClass.getDeclaredConstructors();
-            int pageSize = raf.readInt();
+            // pages may have more constructors; the one taking the raw bytes is used
+            Constructor<?> pageConst = pageClass.getDeclaredConstructor(idClass, byte[].class);
+            int pageSize = in.readInt();
 
             byte[] pageData = new byte[pageSize];
-            raf.read(pageData); //read before image
+            in.readFully(pageData); //read before image
 
             Object[] pageArgs = new Object[2];
             pageArgs[0] = pid;
             pageArgs[1] = pageData;
 
-            newPage = (Page)pageConsts[0].newInstance(pageArgs);
+            newPage = (Page)pageConst.newInstance(pageArgs);
 
             //            Debug.log("READ PAGE OF TYPE " + pageClassName + ", table = " + newPage.getId().getTableId() + ", page = " + newPage.getId().pageno());
         } catch (ClassNotFoundException e){
@@ -313,167 +651,183 @@ public class LogFile {
         } catch (InvocationTargetException e) {
             e.printStackTrace();
             throw new IOException();
+        } catch (NoSuchMethodException e) {
+            e.printStackTrace();
+            throw new IOException();
         }
         return newPage;
 
     }
 
-    /** Write a BEGIN record for the specified transaction
+    /** Write a BEGIN record for the specified transaction.  Transactions
+     need not call this: the BEGIN record of a transaction is written
+     with its first UPDATE or BULK_APPEND record, so that transactions
+     that change nothing never touch the log.
      @param tid The transaction that is beginning
 
      */
     public synchronized  void logXactionBegin(TransactionId tid)
             throws IOException {
-        Debug.log("BEGIN");
         if(tidToFirstLogRecord.get(tid.getId()) != null){
             System.err.printf("logXactionBegin: already began this tid\n");
             throw new IOException("double logXactionBegin()");
         }
+        beginIfNeeded(tid);
+    }
+
+    /** Write a BEGIN record for the specified transaction unless it
+     has one already. */
+    private void beginIfNeeded(TransactionId tid) throws IOException {
+        if (tidToFirstLogRecord.containsKey(tid.getId())) {
+            return;
+        }
+        Debug.log("BEGIN");
         preAppend();
-        raf.writeInt(BEGIN_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
+        out.writeInt(BEGIN_RECORD);
+        out.writeLong(tid.getId());
+        out.writeLong(chain(tid.getId()));
+        out.writeLong(currentOffset);
         tidToFirstLogRecord.put(tid.getId(), currentOffset);
-        currentOffset = raf.getFilePointer();
+        currentOffset = buffer.position();
 
         Debug.log("BEGIN OFFSET = " + currentOffset);
     }
 
-    /** Checkpoint the log and write a checkpoint record. */
-    public void logCheckpoint() throws IOException {
-        //make sure we have buffer pool lock before proceeding
-        synchronized (Database.getBufferPool()) {
-            synchronized (this) {
-                //Debug.log("CHECKPOINT, offset = " + raf.getFilePointer());
-                preAppend();
-                long startCpOffset, endCpOffset;
-                Set<Long> keys = tidToFirstLogRecord.keySet();
-                Iterator<Long> els = keys.iterator();
-                force();
-                Database.getBufferPool().flushAllPages();
-                startCpOffset = raf.getFilePointer();
-                raf.writeInt(CHECKPOINT_RECORD);
-                raf.writeLong(-1); //no tid , but leave space for convenience
-
-                //write list of outstanding transactions
-                raf.writeInt(keys.size());
-                while (els.hasNext()) {
-                    Long key = els.next();
-                    Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + key);
-                    raf.writeLong(key);
-                    //Debug.log("WRITING CHECKPOINT TRANSACTION OFFSET: " + tidToFirstLogRecord.get(key));
-                    raf.writeLong(tidToFirstLogRecord.get(key));
-                }
+    /** @return the offset of the last record of the transaction so far,
+     or NO_PREV_OFFSET if it has none, for the record about to be
+     written at currentOffset, which becomes its last */
+    private long chain(long tid) {
+        Long prev = tidToLastLogRecord.put(tid, currentOffset);
+        return prev != null ? prev : NO_PREV_OFFSET;
+    }
 
-                //once the CP is written, make sure the CP location at the
-                // beginning of the log file is updated
-                endCpOffset = raf.getFilePointer();
-                raf.seek(0);
-                raf.writeLong(startCpOffset);
-                raf.seek(endCpOffset);
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
-                //Debug.log("CP OFFSET = " + currentOffset);
-            }
+    /** Checkpoint the log and write a checkpoint record.  The checkpoint
+     is fuzzy: it records the active transactions and the dirty page
+     table but writes out no pages, so it does not hold up the
+     BufferPool. */
+    public void logCheckpoint() throws IOException {
+        synchronized (this) {
+            //Debug.log("CHECKPOINT, offset = " + raf.getFilePointer());
+            preAppend();
+            long startCpOffset = buffer.position();
+            out.writeInt(CHECKPOINT_RECORD);
+            out.writeLong(-1); //no tid , but leave space for convenience
+            out.writeLong(NO_PREV_OFFSET);
+            writeCheckpoint(out, tidToFirstLogRecord, tidToLastLogRecord, dirtyPages);
+            out.writeLong(currentOffset);
+            currentOffset = buffer.position();
+            // the next record of every page is a full image
+            imagedSinceCheckpoint.clear();
+
+            //once the CP is on disk, make sure the CP location at the
+            // beginning of the log file is updated
+            force();
+            segments.setCheckpoint(startCpOffset);
+            //Debug.log("CP OFFSET = " + currentOffset);
         }
 
         logTruncate();
     }
 
-    /** Truncate any unneeded portion of the log to reduce its space
-     consumption */
-    public synchronized void logTruncate() throws IOException {
-        preAppend();
-        raf.seek(0);
-        long cpLoc = raf.readLong();
-
-        long minLogRecord = cpLoc;
-
-        if (cpLoc != -1L) {
-            raf.seek(cpLoc);
-            int cpType = raf.readInt();
-            @SuppressWarnings("unused")
-            long cpTid = raf.readLong();
+    /** Writes the payload of a CHECKPOINT record: the active
+     transactions with the offsets of their first and last records, then
+     the dirty pages with their recovery offsets. */
+    private static void writeCheckpoint(DataOutput out, Map<Long, Long> first,
+                                        Map<Long, Long> last,
+                                        Map<PageId, Long> dirty) throws IOException {
+        out.writeInt(first.size());
+        for (Map.Entry<Long, Long> e : first.entrySet()) {
+            Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + e.getKey());
+            out.writeLong(e.getKey());
+            out.writeLong(e.getValue());
+            out.writeLong(last.get(e.getKey()));
+        }
+        out.writeInt(dirty.size());
+        for (Map.Entry<PageId, Long> e : dirty.entrySet()) {
+            out.writeInt(e.getKey().getTableId());
+            out.writeInt(e.getKey().getPageNumber());
+            out.writeLong(e.getValue());
+        }
+    }
 
-            if (cpType != CHECKPOINT_RECORD) {
-                throw new RuntimeException("Checkpoint pointer does not point to checkpoint record");
+    /** Reads the payload of a CHECKPOINT record into first, last and
+     dirty, any of which may be null to skip that part. */
+    private static void readCheckpoint(DataInput in, Map<Long, Long> first,
+                                       Map<Long, Long> last,
+                                       Map<PageId, Long> dirty) throws IOException {
+        int numTxn = in.readInt();
+        for (int i = 0; i < numTxn; i++) {
+            long tid = in.readLong();
+            long firstOffset = in.readLong();
+            long lastOffset = in.readLong();
+            if (first != null) {
+                first.put(tid, firstOffset);
             }
-
-            int numOutstanding = raf.readInt();
-
-            for (int i = 0; i < numOutstanding; i++) {
-                @SuppressWarnings("unused")
-                long tid = raf.readLong();
-                long firstLogRecord = raf.readLong();
-                if (firstLogRecord < minLogRecord) {
-                    minLogRecord = firstLogRecord;
-                }
+            if (last != null) {
+                last.put(tid, lastOffset);
             }
         }
+        int numPages = in.readInt();
+        for (int i = 0; i < numPages; i++) {
+            HeapPageId pid = new HeapPageId(in.readInt(), in.readInt());
+            long recOffset = in.readLong();
+            if (dirty != null) {
+                dirty.put(pid, recOffset);
+            }
+        }
+    }
 
-        // we can truncate everything before minLogRecord
-        File newFile = new File("logtmp" + System.currentTimeMillis());
-        RandomAccessFile logNew = new RandomAccessFile(newFile, "rw");
-        logNew.seek(0);
-        logNew.writeLong((cpLoc - minLogRecord) + LONG_SIZE);
-
-        raf.seek(minLogRecord);
-
-        //have to rewrite log records since offsets are different after truncation
-        while (true) {
-            try {
-                int type = raf.readInt();
-                long record_tid = raf.readLong();
-                long newStart = logNew.getFilePointer();
-
-                Debug.log("NEW START = " + newStart);
-
-                logNew.writeInt(type);
-                logNew.writeLong(record_tid);
+    /** Tell the log that a page has been written to disk with all its
+     logged changes, so it leaves the dirty page table.  Called by the
+     BufferPool after every page it writes. */
+    public synchronized void pageWritten(PageId pid) {
+        dirtyPages.remove(pid);
+    }
 
-                switch (type) {
-                    case UPDATE_RECORD:
-                        Page before = readPageData(raf);
-                        Page after = readPageData(raf);
+    /** @return a copy of the dirty page table: the recovery offset of
+     every page whose logged changes may not be on disk */
+    public synchronized Map<PageId, Long> getDirtyPageTable() {
+        return new HashMap<>(dirtyPages);
+    }
 
-                        writePageData(logNew, before);
-                        writePageData(logNew, after);
-                        break;
-                    case CHECKPOINT_RECORD:
-                        int numXactions = raf.readInt();
-                        logNew.writeInt(numXactions);
-                        while (numXactions-- > 0) {
-                            long xid = raf.readLong();
-                            long xoffset = raf.readLong();
-                            logNew.writeLong(xid);
-                            logNew.writeLong((xoffset - minLogRecord) + LONG_SIZE);
-                        }
-                        break;
-                    case BEGIN_RECORD:
-                        tidToFirstLogRecord.put(record_tid,newStart);
-                        break;
-                }
+    /** Truncate any unneeded portion of the log to reduce its space
+     consumption.  Since offsets are logical, this only moves the start
+     of the log in the manifest and recycles the segments before it; no
+     record is copied. */
+    public synchronized void logTruncate() throws IOException {
+        preAppend();
+        buffer.writeOut();
+        long cpLoc = segments.getCheckpoint();
+        if (cpLoc == NO_CHECKPOINT_ID) {
+            return;
+        }
 
-                //all xactions finish with a pointer
-                logNew.writeLong(newStart);
-                raf.readLong();
+        LogReader in = segments.reader(buffer.position());
+        in.seek(cpLoc);
+        int cpType = in.readInt();
+        @SuppressWarnings("unused")
+        long cpTid = in.readLong();
+        in.readLong();
 
-            } catch (EOFException e) {
-                break;
-            }
+        if (cpType != CHECKPOINT_RECORD) {
+            throw new RuntimeException("Checkpoint pointer does not point to checkpoint record");
         }
 
-        Debug.log("TRUNCATING LOG;  WAS " + raf.length() + " BYTES ; NEW START : " + minLogRecord + " NEW LENGTH: " + (raf.length() - minLogRecord));
-
-        raf.close();
-        logFile.delete();
-        newFile.renameTo(logFile);
-        raf = new RandomAccessFile(logFile, "rw");
-        raf.seek(raf.length());
-        newFile.delete();
+        // keep the first records of active transactions, for undo, and
+        // the changes of dirty pages, for redo
+        long minLogRecord = cpLoc;
+        HashMap<Long, Long> active = new HashMap<>();
+        HashMap<PageId, Long> dirty = new HashMap<>();
+        readCheckpoint(in, active, null, dirty);
+        for (long firstLogRecord : active.values()) {
+            minLogRecord = Math.min(minLogRecord, firstLogRecord);
+        }
+        for (long recOffset : dirty.values()) {
+            minLogRecord = Math.min(minLogRecord, recOffset);
+        }
 
-        currentOffset = raf.getFilePointer();
-        //print();
+        Debug.log("TRUNCATING LOG; NEW START : " + minLogRecord + " END: " + buffer.position());
+        segments.truncate(minLogRecord);
     }
 
     /** Rollback the specified transaction, setting the state of any
@@ -486,82 +840,69 @@ public class LogFile {
      */
     public void rollback(TransactionId tid)
             throws NoSuchElementException, IOException {
-        HashSet<Long> loserTids = new HashSet<>();
-        loserTids.add(tid.getId());
-        undo(loserTids, tidToFirstLogRecord.get(tid.getId()));
+        undo(Collections.singleton(tid.getId()));
     }
 
+    /** Undo the changes of the specified transactions, latest first,
+     writing a CLR for each change undone.  Each transaction's records
+     are found by walking its chain of records backwards from its last
+     one, so only records of these transactions are read.
 
-    public void undo(HashSet<Long> loserTids, long staringOffset)
+     @param loserTids The transactions to undo; they must be active
+     */
+    public void undo(Set<Long> loserTids)
             throws NoSuchElementException, IOException {
-
-        class CompensateRecord{
-            private long tid;
-            private long undoneLogOffset;
-            private Page beforeImg;
-
-            CompensateRecord(long tid, long undoneLogOffset, Page before){
-                this.tid = tid;
-                this.undoneLogOffset = undoneLogOffset;
-                this.beforeImg = before;
-            }
-
-            public long getTid() {
-                return tid;
+        synchronized(this) {
+            preAppend();
+            // the next record to read of each transaction, by offset: the
+            // latest record of all is undone first
+            TreeMap<Long, Long> toUndo = new TreeMap<>();
+            for (long tid : loserTids) {
+                toUndo.put(tidToLastLogRecord.get(tid), tid);
             }
+            undoRecordsRead = 0;
+            buffer.writeOut();
+            LogReader in = segments.reader(buffer.position());
+
+            while (!toUndo.isEmpty()) {
+                long curOffset = toUndo.pollLastEntry().getKey();
+                in.seek(curOffset);
+                int curType = in.readInt();
+                long curTid = in.readLong();
+                long prevOffset = in.readLong();
+                undoRecordsRead++;
+                switch (curType) {
+                    case UPDATE_RECORD:
+                        writeUndoImages(Collections.singletonList(readPageData(in)));
+                        logCompensate(curTid, curOffset, prevOffset);
+                        break;
 
-            public long getUndoneLogOffset() {
-                return undoneLogOffset;
-            }
+                    case BULK_APPEND_RECORD:
+                        writeUndoImages(readBulkAppendUndo(in));
+                        logCompensate(curTid, curOffset, prevOffset);
+                        break;
 
-            public Page getBeforeImg() {
-                return beforeImg;
-            }
-        }
-        synchronized(this) {
-            preAppend();
-            // some code goes here
-            Stack<CompensateRecord> CLRStack = new Stack<>();
-            raf.seek(staringOffset);
+                    case DELTA_RECORD:
+                        applyDelta(Delta.read(in), true);
+                        logCompensate(curTid, curOffset, prevOffset);
+                        break;
 
-            while (true){
-                try {
-                    long curOffset = raf.getFilePointer();
-                    int curType = raf.readInt();
-                    long curTid = raf.readLong();
-                    switch (curType){
-                        case UPDATE_RECORD:
-                            Page before = readPageData(raf);
-                            readPageData(raf);
-                            if (loserTids.contains(curTid)){
-                                CompensateRecord curCLR = new CompensateRecord(curTid, curOffset, before);
-                                CLRStack.push(curCLR);
-                            }
-                            break;
+                    case COMPENSATING_RECORD:
+                        // already undone down to the undone record
+                        in.readLong();
+                        prevOffset = in.readLong();
+                        break;
 
-                        case CHECKPOINT_RECORD:
-                            int numTxn = raf.readInt();
-                            raf.skipBytes( 2 * numTxn * LONG_SIZE);
-                            break;
+                    case BEGIN_RECORD:
+                        break;
 
-                        default:
-                            break;
-                    }
-                    raf.skipBytes( LONG_SIZE);
-                } catch (EOFException ignored) {
-                    break;
+                    default:
+                        throw new IOException("unexpected record of type " + curType
+                                + " at " + curOffset + " in the chain of transaction " + curTid);
+                }
+                if (prevOffset != NO_PREV_OFFSET) {
+                    toUndo.put(prevOffset, curTid);
                 }
-            }
-            while (!CLRStack.isEmpty()){
-                CompensateRecord curCLR = CLRStack.pop();
-                long curTid = curCLR.getTid();
-                long curUndoneLogOffset = curCLR.getUndoneLogOffset();
-                Page curBeforeImg = curCLR.getBeforeImg();
-
-                HeapFile file = (HeapFile)Database.getCatalog().getDatabaseFile(curBeforeImg.getId().getTableId());
-                Database.getBufferPool().discardPage(curBeforeImg.getId());
-                file.writePage(curBeforeImg);
-                logCompensate(curTid,curUndoneLogOffset);
             }
         }
     }
@@ -571,10 +912,16 @@ public class LogFile {
      is necessary so that start up can happen quickly (without
      extensive recovery.)
      */
-    public synchronized void shutdown() {
+    public void shutdown() {
         try {
+            // checkpoints write no pages; with all of them on disk, the
+            // checkpoint leaves nothing to redo
+            Database.getBufferPool().flushAllPages();
             logCheckpoint();  //simple way to shutdown is to write a checkpoint record
-            raf.close();
+            synchronized (this) {
+                buffer.writeOut();
+                segments.close();
+            }
         } catch (IOException e) {
             System.out.println("ERROR SHUTTING DOWN -- IGNORING.");
             e.printStackTrace();
@@ -584,6 +931,11 @@ public class LogFile {
     /** Recover the database system by ensuring that the updates of
      committed transactions are installed and that the
      updates of uncommitted transactions are not installed.
+     An analysis pass reads the log once, finding the transactions to
+     undo and collecting the final state of every page to redo; redo then
+     writes each of those pages once, split among threads (see
+     ParallelRedo), before the losers are undone along their chains of
+     records, as on abort.
      */
     public void recover() throws IOException {
         synchronized (Database.getBufferPool()) {
@@ -591,27 +943,46 @@ public class LogFile {
                 recoveryUndecided = false;
                 // some code goes here
                 HashSet<Long> loserTids = new HashSet<>();
-                long lastChkpointOffset = raf.readLong();
+                HashMap<PageId, Long> dirty = new HashMap<>();
+                long lastChkpointOffset = segments.getCheckpoint();
+                long end = findEnd(lastChkpointOffset != NO_CHECKPOINT_ID ? lastChkpointOffset : segments.getStart());
+                buffer.reset(end);
+                currentOffset = end;
+                LogReader in = segments.reader(end);
+                long checkpointEnd = in.getFilePointer();
+                long redoStart = checkpointEnd;
                 if (lastChkpointOffset != NO_CHECKPOINT_ID){
-                    raf.seek(lastChkpointOffset);
-                    assert raf.readInt() == CHECKPOINT_RECORD;
-                    raf.skipBytes( LONG_SIZE);
-                    int numTxn = raf.readInt();
-                    for(int i = 0; i < numTxn; i++){
-                        long curTid = raf.readLong();
-                        long curOffset = raf.readLong();
-                        loserTids.add(curTid);
-                        tidToFirstLogRecord.put(curTid, curOffset);
+                    in.seek(lastChkpointOffset);
+                    if (in.readInt() != CHECKPOINT_RECORD) {
+                        throw new RuntimeException("Checkpoint pointer does not point to checkpoint record");
+                    }
+                    in.skipBytes(2 * LONG_SIZE);
+                    readCheckpoint(in, tidToFirstLogRecord, tidToLastLogRecord, dirty);
+                    loserTids.addAll(tidToFirstLogRecord.keySet());
+                    in.skipBytes( LONG_SIZE);
+                    checkpointEnd = in.getFilePointer();
+                    redoStart = checkpointEnd;
+                    for (long recOffset : dirty.values()) {
+                        redoStart = Math.min(redoStart, recOffset);
                     }
-                    raf.skipBytes( LONG_SIZE);
                 }
 
-                // redo
+                // analysis, from the oldest change that may not be on
+                // disk: find the losers, and collect what redo must
+                // write to each page
+                ParallelRedo redo = new ParallelRedo();
+                in.seek(redoStart);
                 while (true){
                     try {
-                        long curOffset = raf.getFilePointer();
-                        int curType = raf.readInt();
-                        long curTid = raf.readLong();
+                        long curOffset = in.getFilePointer();
+                        int curType = in.readInt();
+                        long curTid = in.readLong();
+                        in.readLong();
+                        if (curType != CHECKPOINT_RECORD) {
+                            // records before the checkpoint may be older
+                            // than the last record it holds
+                            tidToLastLogRecord.merge(curTid, curOffset, Math::max);
+                        }
                         switch (curType){
                             case BEGIN_RECORD:
                                 tidToFirstLogRecord.put(curTid, curOffset);
@@ -619,68 +990,302 @@ public class LogFile {
                                 break;
 
                             case UPDATE_RECORD:
-                                Page curBeforeImg = readPageData(raf);
-                                Page curAfterImg = readPageData(raf);
+                                Page curBeforeImg = readPageData(in);
+                                Page curAfterImg = readPageData(in);
                                 assert curBeforeImg.getId().getTableId() == curAfterImg.getId().getTableId();
-                                HeapFile file = (HeapFile)Database.getCatalog().getDatabaseFile(curBeforeImg.getId().getTableId());
-                                Database.getBufferPool().discardPage(curBeforeImg.getId());
-                                file.writePage(curAfterImg);
+                                if (needsRedo(curAfterImg.getId(), curOffset, checkpointEnd, dirty)) {
+                                    redo.image(curAfterImg);
+                                }
+                                break;
+
+                            case BULK_APPEND_RECORD:
+                                // the pages were forced before commit
+                                in.skipBytes(3 * INT_SIZE);
+                                break;
+
+                            case DELTA_RECORD:
+                                Delta delta = Delta.read(in);
+                                if (needsRedo(delta.pid, curOffset, checkpointEnd, dirty)) {
+                                    redo.slots(delta.pid, delta.slots, delta.after);
+                                }
+                                break;
+
+                            case CHECKPOINT_RECORD:
+                                readCheckpoint(in, null, null, null);
                                 break;
 
                             case ABORT_RECORD:
 
                             case COMMIT_RECORD:
                                 loserTids.remove(curTid);
+                                tidToFirstLogRecord.remove(curTid);
+                                tidToLastLogRecord.remove(curTid);
                                 break;
 
                             case COMPENSATING_RECORD:
-                                long undoOffset = raf.readLong();
-                                raf.readLong();
-                                long undoNxtOffset = raf.getFilePointer();
-                                raf.seek(undoOffset);
-                                long undoType = raf.readInt();
-                                long undoToTid = raf.readLong();
-                                if (undoType == UPDATE_RECORD){
-                                    curBeforeImg = readPageData(raf);
-                                    readPageData(raf);
-                                    assert  (undoToTid == curTid);
-                                    file = (HeapFile)Database.getCatalog().getDatabaseFile(curBeforeImg.getId().getTableId());
-                                    Database.getBufferPool().discardPage(curBeforeImg.getId());
-                                    file.writePage(curBeforeImg);
-                                }
-                                raf.seek(undoNxtOffset - LONG_SIZE);
+                                redoCompensation(in, curTid, redo);
                                 break;
 
                             default:
                                 break;
                         }
-                        raf.skipBytes( LONG_SIZE);
+                        in.skipBytes( LONG_SIZE);
 
                     } catch (EOFException ignored) {
                         break;
                     }
                 }
 
-                // undo
-                long undoStart = logFile.length();
+                // redo: every page is written once, in parallel
+                redo.run(redoThreads);
+                redoPagesWritten = redo.getPageCount();
+                redoChanges = redo.getChangeCount();
+
+                // undo, backwards along the chains of the losers
+                undo(loserTids);
                 for (long tid: loserTids){
-                    undoStart = Math.min(undoStart, tidToFirstLogRecord.get(tid));
                     tidToFirstLogRecord.remove(tid);
+                    tidToLastLogRecord.remove(tid);
                 }
-
-                undo(loserTids, undoStart);
                 force();
             }
         }
     }
 
+    /** Reads the payload of a CLR of transaction tid and hands the
+     change it made, setting pages back to their state before the undone
+     record, to redo. */
+    private void redoCompensation(LogReader in, long tid, ParallelRedo redo)
+            throws IOException {
+        long undoOffset = in.readLong();
+        in.readLong();
+        long undoNxtOffset = in.getFilePointer();
+        in.seek(undoOffset);
+        long undoType = in.readInt();
+        long undoToTid = in.readLong();
+        in.readLong();
+        if (undoType == UPDATE_RECORD){
+            Page before = readPageData(in);
+            readPageData(in);
+            assert  (undoToTid == tid);
+            redo.image(before);
+        } else if (undoType == BULK_APPEND_RECORD){
+            assert  (undoToTid == tid);
+            for (Page empty : readBulkAppendUndo(in)) {
+                redo.image(empty);
+            }
+        } else if (undoType == DELTA_RECORD){
+            assert  (undoToTid == tid);
+            Delta undone = Delta.read(in);
+            redo.slots(undone.pid, undone.slots, undone.before);
+        }
+        in.seek(undoNxtOffset);
+    }
+
+    /** Rebuild a page whose image on disk is damaged, e.g. by a write
+     torn by a crash, from the log: the last full image logged for it,
+     with the changes of the records after it applied.  Every version of
+     a page that reaches the disk is logged first, so this is the last
+     version written, or one that recovery would redo anyway.
+
+     @param pid The damaged page
+     @return the page as of its last logged change, or null if the log
+     holds no full image of it, as for a page unchanged since before the
+     start of the log
+     @see HeapFile#readPage
+     */
+    public Page repairPage(PageId pid) throws IOException {
+        synchronized (this) {
+            long end;
+            if (recoveryUndecided) {
+                // nothing appended yet: the log is the one recovery reads
+                end = findEnd(segments.getStart());
+            } else {
+                buffer.writeOut();
+                end = buffer.position();
+            }
+            ParallelRedo redo = new ParallelRedo(pid);
+            LogReader in = segments.reader(end);
+            in.seek(segments.getStart());
+            while (true) {
+                try {
+                    int curType = in.readInt();
+                    long curTid = in.readLong();
+                    in.readLong();
+                    switch (curType) {
+                        case UPDATE_RECORD:
+                            readPageData(in);
+                            redo.image(readPageData(in));
+                            break;
+
+                        case DELTA_RECORD:
+                            Delta delta = Delta.read(in);
+                            redo.slots(delta.pid, delta.slots, delta.after);
+                            break;
+
+                        case COMPENSATING_RECORD:
+                            redoCompensation(in, curTid, redo);
+                            break;
+
+                        default:
+                            skipRecord(in, curType);
+                            break;
+                    }
+                    in.skipBytes(LONG_SIZE);
+                } catch (EOFException ignored) {
+                    break;
+                }
+            }
+            Debug.log("REPAIRED PAGE " + pid.getPageNumber() + " FROM " + redo.getChangeCount() + " RECORDS");
+            return redo.getImage(pid);
+        }
+    }
+
+    /** @return false if the change a record at offset made to a page is
+     known to be on disk: the record precedes the checkpoint, and the page
+     was either clean at the checkpoint or became dirty after the record */
+    private static boolean needsRedo(PageId pid, long offset, long checkpointEnd,
+                                     Map<PageId, Long> dirty) {
+        if (offset >= checkpointEnd) {
+            return true;
+        }
+        Long recOffset = dirty.get(pid);
+        return recOffset != null && offset >= recOffset;
+    }
+
+    /** @return the offset of the end of the log, after the last whole
+     record from offset from on.  Past the end, segments hold zeros or
+     the old records of recycled segments, which do not end with their
+     own offset as every record does. */
+    private long findEnd(long from) throws IOException {
+        LogReader in = segments.reader(Long.MAX_VALUE);
+        in.seek(from);
+        long end = from;
+        try {
+            while (true) {
+                long start = in.getFilePointer();
+                int type = in.readInt();
+                in.readLong();
+                in.readLong();
+                if (!skipRecord(in, type) || in.readLong() != start) {
+                    break;
+                }
+                end = in.getFilePointer();
+            }
+        } catch (EOFException e) {
+            // the last segment ends with a record
+        }
+        return end;
+    }
+
+    /** Skips the payload of a record of the given type, without trusting
+     any length in it.
+     @return false if type or a length is not valid */
+    private static boolean skipRecord(DataInput in, int type) throws IOException {
+        switch (type) {
+            case ABORT_RECORD:
+            case COMMIT_RECORD:
+            case BEGIN_RECORD:
+                return true;
+            case UPDATE_RECORD:
+                return skipPageData(in) && skipPageData(in);
+            case CHECKPOINT_RECORD:
+                int numTxn = in.readInt();
+                if (numTxn < 0 || in.skipBytes(numTxn * 3 * LONG_SIZE) != numTxn * 3 * LONG_SIZE) {
+                    return false;
+                }
+                int numPages = in.readInt();
+                int pageBytes = numPages * (2 * INT_SIZE + LONG_SIZE);
+                return numPages >= 0 && in.skipBytes(pageBytes) == pageBytes;
+            case COMPENSATING_RECORD:
+                in.readLong();
+                in.readLong();
+                return true;
+            case BULK_APPEND_RECORD:
+                return in.skipBytes(3 * INT_SIZE) == 3 * INT_SIZE;
+            case DELTA_RECORD:
+                in.skipBytes(2 * INT_SIZE);
+                int slots = in.readInt();
+                if (slots < 0) {
+                    return false;
+                }
+                for (int i = 0; i < slots; i++) {
+                    in.readInt();
+                    if (!skipSlot(in) || !skipSlot(in)) {
+                        return false;
+                    }
+                }
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private static boolean skipSlot(DataInput in) throws IOException {
+        int len = in.readInt();
+        return len == -1 || (len >= 0 && in.skipBytes(len) == len);
+    }
+
+    private static boolean skipPageData(DataInput in) throws IOException {
+        in.readUTF();
+        in.readUTF();
+        int numIdArgs = in.readInt();
+        if (numIdArgs < 0 || in.skipBytes(numIdArgs * INT_SIZE) != numIdArgs * INT_SIZE) {
+            return false;
+        }
+        int pageSize = in.readInt();
+        return pageSize >= 0 && in.skipBytes(pageSize) == pageSize;
+    }
+
     /** Print out a human readable represenation of the log */
     public void print() throws IOException {
         // some code goes here
     }
 
+    /** Make sure the log is on disk up to the record with the given
+     LSN, as required before writing out a page with that page LSN.
+     Does nothing if it is already; otherwise forces the log, sharing
+     the force with committers (see GroupCommit).
+
+     @param lsn the LSN of the last record that must be on disk; 0 for none
+     */
+    public void flushTo(long lsn) throws IOException {
+        if (groupCommit.isDurable(lsn)) {
+            return;
+        }
+        if (Thread.holdsLock(this)) {
+            // a group commit flusher would need this monitor
+            force();
+            return;
+        }
+        groupCommit.awaitDurable(lsn);
+    }
+
+    /** @return the LSN up to which the log is known to be on disk */
+    public long getFlushedLSN() {
+        return groupCommit.getDurable();
+    }
+
     public  synchronized void force() throws IOException {
-        raf.getChannel().force(true);
+        buffer.writeOut();
+        long forcedAppended = appended;
+        long forcedCommits = appendedCommits;
+        segments.force();
+        groupCommit.forced(forcedAppended, forcedCommits);
+    }
+
+    /** Force everything appended so far to disk without holding the
+     log's monitor during the force, so that records can be appended
+     meanwhile.  Used by the flusher of a group commit. */
+    void forceAppended() throws IOException {
+        long forcedAppended, forcedCommits;
+        synchronized (this) {
+            buffer.writeOut();
+            forcedAppended = appended;
+            forcedCommits = appendedCommits;
+        }
+        segments.force();
+        groupCommit.forced(forcedAppended, forcedCommits);
     }
 
 }
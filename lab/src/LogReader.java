@@ -0,0 +1,101 @@
+package simpledb;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * LogReader reads the records of a segmented log, like a
+ * RandomAccessFile: the DataInput methods read at the current offset,
+ * which {@link #seek} moves. Reads go through a buffer of a block of the
+ * log, so reading a record field by field costs no system call per
+ * field. Reading past the end given when it was made throws
+ * EOFException, like reading past the end of a file.
+ *
+ * @see LogSegments#reader
+ */
+class LogReader extends DataInputStream {
+
+    /** the buffered bytes of the log, and the offset they are at */
+    private static final class Source extends InputStream {
+        private final LogSegments segments;
+        private final long end;
+        private final byte[] block = new byte[64 * 1024];
+        private long blockStart;
+        private int blockLength;
+        private long pos;
+
+        Source(LogSegments segments, long pos, long end) {
+            this.segments = segments;
+            this.pos = pos;
+            this.end = end;
+        }
+
+        /** @return the number of bytes available in the block at pos, 0 at the end */
+        private int fill() throws IOException {
+            if (pos >= end) {
+                return 0;
+            }
+            if (pos < blockStart || pos >= blockStart + blockLength) {
+                blockStart = pos;
+                blockLength = segments.read(pos, block, (int) Math.min(block.length, end - pos));
+            }
+            return (int) (blockStart + blockLength - pos);
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (fill() <= 0) {
+                return -1;
+            }
+            return block[(int) (pos++ - blockStart)] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            int n = Math.min(fill(), len);
+            if (n <= 0) {
+                return -1;
+            }
+            System.arraycopy(block, (int) (pos - blockStart), b, off, n);
+            pos += n;
+            return n;
+        }
+
+        @Override
+        public long skip(long n) {
+            long skipped = Math.max(0, Math.min(n, end - pos));
+            pos += skipped;
+            return skipped;
+        }
+    }
+
+    private final Source source;
+
+    LogReader(LogSegments segments, long pos, long end) {
+        this(new Source(segments, pos, end));
+    }
+
+    private LogReader(Source source) {
+        super(source);
+        this.source = source;
+    }
+
+    /** @return the offset of the next byte read */
+    long getFilePointer() {
+        return source.pos;
+    }
+
+    /** Moves to offset pos. */
+    void seek(long pos) {
+        source.pos = pos;
+    }
+
+    /** @return the offset reading stops at */
+    long length() {
+        return source.end;
+    }
+}
@@ -0,0 +1,320 @@
+package simpledb;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+
+/**
+ * LogSegments stores the log as a sequence of fixed-size segment files
+ * plus a small manifest, so that truncating the log never copies it.
+ * <p>
+ * Log offsets are logical: segment n holds the offsets from n times the
+ * segment size up to the next segment, and is named after the manifest
+ * with n appended (log.00000003 for manifest log). Offsets are never
+ * reused, so they stay valid for as long as the record they point to is
+ * kept. The manifest holds the offset of the last checkpoint and the
+ * offset the log starts at; it is replaced as a whole, by renaming a new
+ * copy over it.
+ * <p>
+ * Truncation only moves the start in the manifest. Segments entirely
+ * before the new start are recycled: renamed to the next segment number
+ * not used yet, to be written again later, up to a few spares; any
+ * further ones are deleted. New segments are preallocated by filling
+ * them with zeros and forcing that once, so that forcing the log later
+ * never has to extend a file. Since recycled segments still hold their
+ * old records, the end of the log is not where the data ends; see
+ * {@link LogFile#recover} for how it is found.
+ * <p>
+ * Writes and the manifest are used only while the LogFile monitor is
+ * held; {@link #force} may run concurrently with them.
+ *
+ * @see LogFile
+ * @see LogReader
+ */
+class LogSegments {
+
+    static final long DEFAULT_SEGMENT_SIZE = 4 * 1024 * 1024;
+    /** recycled segments kept for reuse; others are deleted */
+    static final int MAX_SPARE_SEGMENTS = 4;
+
+    private final File manifest;
+    private final long segmentSize;
+    /** offset of the last checkpoint record, or LogFile.NO_CHECKPOINT_ID */
+    private long checkpoint = LogFile.NO_CHECKPOINT_ID;
+    /** offset of the first byte of the log */
+    private long start;
+    /** numbers of the segment files that exist */
+    private final TreeSet<Long> existing = new TreeSet<>();
+    private final HashMap<Long, RandomAccessFile> open = new HashMap<>();
+    /** number of the last segment written */
+    private long writing;
+    /** segments written since they were last forced; guarded by itself */
+    private final Set<FileChannel> unforced = new HashSet<>();
+    /** held while forcing, so that a force returns only when every earlier one is done */
+    private final Object forceLock = new Object();
+
+    private long recycled;
+
+    /**
+     * Opens the log whose manifest is the given file, reading the manifest
+     * if there is one.
+     */
+    LogSegments(File manifest) throws IOException {
+        this(manifest, DEFAULT_SEGMENT_SIZE);
+    }
+
+    LogSegments(File manifest, long segmentSize) throws IOException {
+        this.manifest = manifest;
+        this.segmentSize = segmentSize;
+        if (manifest.length() >= 2 * LogFile.LONG_SIZE) {
+            try (DataInputStream in = new DataInputStream(new FileInputStream(manifest))) {
+                checkpoint = in.readLong();
+                start = in.readLong();
+            }
+        }
+        File dir = manifest.getAbsoluteFile().getParentFile();
+        String prefix = manifest.getName() + ".";
+        String[] names = dir.list();
+        if (names != null) {
+            for (String name : names) {
+                if (name.startsWith(prefix)) {
+                    try {
+                        existing.add(Long.parseLong(name.substring(prefix.length())));
+                    } catch (NumberFormatException e) {
+                        // not a segment
+                    }
+                }
+            }
+        }
+    }
+
+    /** @return the offset of the last checkpoint record, or LogFile.NO_CHECKPOINT_ID */
+    long getCheckpoint() {
+        return checkpoint;
+    }
+
+    /** @return the offset of the first record of the log */
+    long getStart() {
+        return start;
+    }
+
+    /** @return the size of each segment file */
+    long getSegmentSize() {
+        return segmentSize;
+    }
+
+    /** @return the number of segments recycled so far */
+    long getRecycled() {
+        return recycled;
+    }
+
+    /** @return the number of segment files, including spares */
+    int getSegmentCount() {
+        return existing.size();
+    }
+
+    /** Records the offset of the last checkpoint in the manifest. */
+    void setCheckpoint(long offset) throws IOException {
+        checkpoint = offset;
+        writeManifest();
+    }
+
+    /**
+     * Drops the whole log: it starts over, empty, in a segment numbered
+     * after every existing one, and the existing segments become spares.
+     *
+     * @return the offset the new log starts at
+     */
+    long clear() throws IOException {
+        long first = existing.isEmpty() ? start / segmentSize : existing.last() + 1;
+        checkpoint = LogFile.NO_CHECKPOINT_ID;
+        start = first * segmentSize;
+        writing = first;
+        writeManifest();
+        recycleBefore(start);
+        return start;
+    }
+
+    /**
+     * Drops the log before offset: the manifest is updated and the
+     * segments entirely before it are recycled.
+     */
+    void truncate(long offset) throws IOException {
+        if (offset <= start) {
+            return;
+        }
+        start = offset;
+        writeManifest();
+        recycleBefore(start);
+    }
+
+    private void recycleBefore(long offset) throws IOException {
+        ArrayList<Long> old = new ArrayList<>(existing.headSet(offset / segmentSize));
+        for (long n : old) {
+            RandomAccessFile f = open.remove(n);
+            if (f != null) {
+                synchronized (unforced) {
+                    unforced.remove(f.getChannel());
+                }
+                f.close();
+            }
+            existing.remove(n);
+            File file = segmentFile(n);
+            int spares = existing.tailSet(Math.max(writing, offset / segmentSize), false).size();
+            if (spares < MAX_SPARE_SEGMENTS) {
+                long next = existing.isEmpty() ? offset / segmentSize + 1
+                        : Math.max(existing.last(), offset / segmentSize) + 1;
+                Files.move(file.toPath(), segmentFile(next).toPath(), StandardCopyOption.REPLACE_EXISTING);
+                existing.add(next);
+                recycled++;
+            } else {
+                file.delete();
+            }
+        }
+    }
+
+    /** Replaces the manifest with one holding the current checkpoint and start. */
+    private void writeManifest() throws IOException {
+        File tmp = new File(manifest.getPath() + ".tmp");
+        try (FileOutputStream fos = new FileOutputStream(tmp)) {
+            DataOutputStream out = new DataOutputStream(fos);
+            out.writeLong(checkpoint);
+            out.writeLong(start);
+            out.flush();
+            fos.getChannel().force(true);
+        }
+        Files.move(tmp.toPath(), manifest.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private File segmentFile(long n) {
+        return new File(String.format("%s.%08d", manifest.getPath(), n));
+    }
+
+    /** @return the open segment n, created and preallocated if it does not exist */
+    private RandomAccessFile segment(long n) throws IOException {
+        RandomAccessFile f = open.get(n);
+        if (f != null) {
+            return f;
+        }
+        File file = segmentFile(n);
+        f = new RandomAccessFile(file, "rw");
+        if (!existing.contains(n) || f.length() < segmentSize) {
+            preallocate(f);
+            existing.add(n);
+        }
+        open.put(n, f);
+        return f;
+    }
+
+    private void preallocate(RandomAccessFile f) throws IOException {
+        FileChannel ch = f.getChannel();
+        ByteBuffer zeros = ByteBuffer.allocate(64 * 1024);
+        for (long pos = 0; pos < segmentSize; ) {
+            zeros.clear();
+            zeros.limit((int) Math.min(zeros.capacity(), segmentSize - pos));
+            pos += ch.write(zeros, pos);
+        }
+        ch.force(true);
+    }
+
+    /**
+     * Writes the remaining bytes of srcs to the log at offset, splitting
+     * them at segment boundaries. Does not force them.
+     */
+    void write(ByteBuffer[] srcs, long offset) throws IOException {
+        int first = 0;
+        while (first < srcs.length) {
+            long room = segmentSize - offset % segmentSize;
+            ArrayList<ByteBuffer> part = new ArrayList<>();
+            long n = 0;
+            while (first < srcs.length && n < room) {
+                ByteBuffer src = srcs[first];
+                if (src.remaining() <= room - n) {
+                    part.add(src);
+                    n += src.remaining();
+                    first++;
+                } else {
+                    ByteBuffer head = src.duplicate();
+                    head.limit(head.position() + (int) (room - n));
+                    src.position(head.limit());
+                    part.add(head);
+                    n = room;
+                }
+            }
+            writing = offset / segmentSize;
+            FileChannel ch = segment(writing).getChannel();
+            ByteBuffer[] bufs = part.toArray(new ByteBuffer[0]);
+            ch.position(offset % segmentSize);
+            long written = 0;
+            while (written < n) {
+                written += ch.write(bufs);
+            }
+            synchronized (unforced) {
+                unforced.add(ch);
+            }
+            offset += n;
+        }
+    }
+
+    /**
+     * Forces every segment written since it was last forced. Only data
+     * needs forcing, since segments never grow.
+     */
+    void force() throws IOException {
+        synchronized (forceLock) {
+            ArrayList<FileChannel> channels;
+            synchronized (unforced) {
+                channels = new ArrayList<>(unforced);
+                unforced.clear();
+            }
+            for (FileChannel ch : channels) {
+                try {
+                    ch.force(false);
+                } catch (ClosedChannelException e) {
+                    // recycled meanwhile: it holds nothing the log still needs
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads n bytes at most from the segment holding offset into dst, but
+     * not past the end of that segment.
+     *
+     * @return the number of bytes read
+     */
+    int read(long offset, byte[] dst, int n) throws IOException {
+        long seg = offset / segmentSize;
+        if (!existing.contains(seg)) {
+            throw new EOFException("no log segment " + seg);
+        }
+        int len = (int) Math.min(n, segmentSize - offset % segmentSize);
+        FileChannel ch = segment(seg).getChannel();
+        ByteBuffer buf = ByteBuffer.wrap(dst, 0, len);
+        long pos = offset % segmentSize;
+        while (buf.hasRemaining()) {
+            int r = ch.read(buf, pos + buf.position());
+            if (r < 0) {
+                break;
+            }
+        }
+        return buf.position();
+    }
+
+    /** @return a reader of the log up to offset end, positioned at its start */
+    LogReader reader(long end) {
+        return new LogReader(this, start, end);
+    }
+
+    void close() throws IOException {
+        for (RandomAccessFile f : open.values()) {
+            f.close();
+        }
+        open.clear();
+    }
+}
@@ -0,0 +1,121 @@
+package simpledb;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * MappedHeapFile is a HeapFile whose pages are read through a memory
+ * mapping of the backing file instead of read calls. It is meant for large,
+ * read-mostly tables: a page is decoded straight out of the mapping, so a
+ * read needs neither a system call nor a copy of the page into an array.
+ * <p>
+ * Writes still go through the file channel of HeapFile; the mapping is
+ * shared with the OS page cache and sees them. When a write extends the
+ * file, as HeapFile.insertTuple does when all pages are full, the file is
+ * mapped again so that the new page can be read through the mapping too.
+ * <p>
+ * A single mapping covers at most MAX_MAPPED_BYTES of the file; pages past
+ * that are read the same way as in HeapFile.
+ *
+ * @see Catalog#loadSchema
+ */
+public class MappedHeapFile extends HeapFile {
+
+    /** largest file prefix that is mapped */
+    public static final long MAX_MAPPED_BYTES = Integer.MAX_VALUE;
+
+    private MappedByteBuffer mapping;
+    private int mappedPages;
+    private int mappedPageSize;
+
+    /**
+     * Constructs a memory-mapped heap file backed by the specified file.
+     *
+     * @param f
+     *            the file that stores the on-disk backing store for this heap
+     *            file.
+     */
+    public MappedHeapFile(File f, TupleDesc td) {
+        super(f, td);
+    }
+
+    /**
+     * Maps the current length of the file, replacing the previous mapping.
+     * The old mapping is released by the garbage collector.
+     */
+    private synchronized void remap() throws IOException {
+        FileChannel ch = getChannel();
+        int pgSize = BufferPool.getPageSize();
+        long pages = Math.min(ch.size(), MAX_MAPPED_BYTES) / pgSize;
+        this.mapping = ch.map(FileChannel.MapMode.READ_ONLY, 0, pages * pgSize);
+        this.mappedPages = (int) pages;
+        this.mappedPageSize = pgSize;
+    }
+
+    /**
+     * Returns a view of page pgNo in the mapping, mapping the file again if
+     * the page lies past the current mapping, or null if the page cannot be
+     * mapped.
+     */
+    private synchronized ByteBuffer pageSlice(int pgNo) throws IOException {
+        int pgSize = BufferPool.getPageSize();
+        if (this.mapping == null || pgSize != this.mappedPageSize || pgNo >= this.mappedPages) {
+            remap();
+        }
+        if (pgNo < 0 || pgNo >= this.mappedPages) {
+            return null;
+        }
+        ByteBuffer slice = this.mapping.duplicate();
+        slice.position(pgNo * pgSize);
+        slice.limit(pgNo * pgSize + pgSize);
+        return slice;
+    }
+
+    /** Number of pages covered by the current mapping. */
+    synchronized int getMappedPages() {
+        return this.mappedPages;
+    }
+
+    // see DbFile.java for javadocs
+    public Page readPage(PageId pid) throws IllegalArgumentException {
+        try {
+            ByteBuffer slice = pageSlice(pid.getPageNumber());
+            if (slice == null) {
+                // past the end of the file or of what can be mapped
+                return super.readPage(pid);
+            }
+            if (!HeapPage.checksumValid(slice)) {
+                // read it again through the channel, which repairs it
+                return super.readPage(pid);
+            }
+            return new HeapPage((HeapPageId) pid, slice);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return null;
+    }
+
+    // see DbFile.java for javadocs
+    public void writePage(Page page) throws IOException {
+        super.writePage(page);
+        int pgNo = page.getId().getPageNumber();
+        synchronized (this) {
+            if (this.mapping != null && pgNo >= this.mappedPages) {
+                // the file grew
+                remap();
+            }
+        }
+    }
+
+    /**
+     * Drops the mapping and closes the channel of the backing file; a later
+     * read maps the file again.
+     */
+    public synchronized void close() throws IOException {
+        this.mapping = null;
+        this.mappedPages = 0;
+        super.close();
+    }
+}
@@ -53,7 +53,19 @@ public interface Page {
 
     /*
      * a transaction that wrote this page just committed it.
-     * copy current content to the before image.
+     * the current content becomes the before image.
      */
     public void setBeforeImage();
+
+    /**
+     * Return the LSN of the last log record that holds the contents of this
+     * page, or 0 if there is none. The log must be on disk up to this LSN
+     * before the page may be written out.
+     *
+     * @see LogFile#flushTo
+     */
+    public long getLSN();
+
+    /** Set the LSN of the log record just written for this page. */
+    public void setLSN(long lsn);
 }
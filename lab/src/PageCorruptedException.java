@@ -0,0 +1,17 @@
+package simpledb;
+
+import java.io.IOException;
+
+/** Thrown when a page read from disk fails its checksum, e.g. because
+ * a write of the page was torn by a crash, or holds a field that cannot
+ * be valid.
+ *
+ * @see HeapPage#setChecksums
+ */
+public class PageCorruptedException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    public PageCorruptedException(String s) {
+        super(s);
+    }
+}
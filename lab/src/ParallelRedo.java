@@ -0,0 +1,203 @@
+package simpledb;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * ParallelRedo carries out the redo pass of recovery. The analysis pass
+ * of {@link LogFile#recover} hands it the changes of the records to redo,
+ * in log order, and it keeps for each page only what the page has to end
+ * up as: the last full image logged for it with the slots set by later
+ * records applied, or, if no image was logged, the last bytes set for
+ * each slot. A page is then written once however many records changed
+ * it, instead of once per record.
+ * <p>
+ * {@link #run} splits the pages by PageId hash among worker threads. A
+ * page with a full image is written as is; the others are read from disk
+ * and have their slots set first. Pages are independent of each other,
+ * so the workers share nothing but the table files, which allow
+ * concurrent positional reads and writes. A page that fails its checksum
+ * is left to the thread that called run, as repairing it reads the log
+ * under the log's monitor, which that thread holds.
+ * <p>
+ * A ParallelRedo made for a single page ignores the changes of other
+ * pages; {@link LogFile#repairPage} uses one to rebuild a damaged page.
+ *
+ * @see LogFile#setRedoThreads
+ */
+class ParallelRedo {
+
+    /** what redo writes to one page */
+    private static final class PageRedo {
+        /** the last full image logged, with later slot changes applied */
+        Page image;
+        /** slot bytes to set on the page on disk, null for an empty slot; only without an image */
+        final HashMap<Integer, byte[]> slots = new HashMap<>();
+    }
+
+    private final HashMap<PageId, PageRedo> pages = new HashMap<>();
+    /** the only page redone, or null for all */
+    private final PageId only;
+    private long changes;
+
+    /** Redoes the changes of all pages. */
+    ParallelRedo() {
+        this(null);
+    }
+
+    /** Redoes the changes of page only, ignoring the others. */
+    ParallelRedo(PageId only) {
+        this.only = only;
+    }
+
+    private PageRedo redoFor(PageId pid) {
+        return pages.computeIfAbsent(pid, p -> new PageRedo());
+    }
+
+    /** A record set the whole page to image. */
+    void image(Page image) {
+        if (only != null && !only.equals(image.getId())) {
+            return;
+        }
+        PageRedo r = redoFor(image.getId());
+        r.image = image;
+        r.slots.clear();
+        changes++;
+    }
+
+    /** A record set the given slots of a page to bytes. */
+    void slots(HeapPageId pid, int[] slots, byte[][] bytes) {
+        if (only != null && !only.equals(pid)) {
+            return;
+        }
+        PageRedo r = redoFor(pid);
+        for (int i = 0; i < slots.length; i++) {
+            if (r.image instanceof HeapPage) {
+                ((HeapPage) r.image).setSlotData(slots[i], bytes[i]);
+            } else {
+                r.slots.put(slots[i], bytes[i]);
+            }
+        }
+        changes++;
+    }
+
+    /** @return the number of pages redo writes */
+    int getPageCount() {
+        return pages.size();
+    }
+
+    /** @return the number of changes handed to redo */
+    long getChangeCount() {
+        return changes;
+    }
+
+    /**
+     * @return the page as redo would write it, or null if no full image of
+     *         it was handed to redo, so that it could only be built from
+     *         the page on disk
+     */
+    Page getImage(PageId pid) {
+        PageRedo r = pages.get(pid);
+        return r != null ? r.image : null;
+    }
+
+    /**
+     * Writes every page, with up to the given number of threads. Pages
+     * cached in the BufferPool are discarded first.
+     */
+    void run(int threads) throws IOException {
+        for (PageId pid : pages.keySet()) {
+            Database.getBufferPool().discardPage(pid);
+        }
+        int n = Math.max(1, Math.min(threads, pages.size()));
+        List<List<Map.Entry<PageId, PageRedo>>> partitions = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            partitions.add(new ArrayList<>());
+        }
+        for (Map.Entry<PageId, PageRedo> e : pages.entrySet()) {
+            partitions.get(Math.floorMod(e.getKey().hashCode(), n)).add(e);
+        }
+        if (n == 1) {
+            redoPages(partitions.get(0), null);
+            return;
+        }
+        Queue<Map.Entry<PageId, PageRedo>> damaged = new ConcurrentLinkedQueue<>();
+        ExecutorService executor = Executors.newFixedThreadPool(n, r -> {
+            Thread t = new Thread(r, "simpledb-redo");
+            t.setDaemon(true);
+            return t;
+        });
+        try {
+            List<Future<Void>> done = new ArrayList<>();
+            for (List<Map.Entry<PageId, PageRedo>> partition : partitions) {
+                done.add(executor.submit(() -> {
+                    redoPages(partition, damaged);
+                    return null;
+                }));
+            }
+            // not interrupted on failure: interrupting a thread in a
+            // FileChannel operation closes the channel for everyone
+            for (Future<Void> f : done) {
+                f.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted during redo", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new RuntimeException(e.getCause());
+        } finally {
+            executor.shutdown();
+        }
+        redoPages(new ArrayList<>(damaged), null);
+    }
+
+    /**
+     * Writes the pages of a partition. Pages read from disk that fail their
+     * checksum are added to damaged, if it is not null, instead of being
+     * repaired.
+     */
+    private static void redoPages(Collection<Map.Entry<PageId, PageRedo>> partition,
+                                  Queue<Map.Entry<PageId, PageRedo>> damaged) throws IOException {
+        for (Map.Entry<PageId, PageRedo> e : partition) {
+            PageId pid = e.getKey();
+            PageRedo r = e.getValue();
+            DbFile file = Database.getCatalog().getDatabaseFile(pid.getTableId());
+            Page page = r.image;
+            if (page == null) {
+                if (damaged != null && file instanceof HeapFile) {
+                    try {
+                        page = ((HeapFile) file).readVerifiedPage((HeapPageId) pid);
+                    } catch (PageCorruptedException c) {
+                        damaged.add(e);
+                        continue;
+                    }
+                } else {
+                    try {
+                        page = file.readPage(pid);
+                    } catch (UncheckedIOException c) {
+                        throw c.getCause();
+                    }
+                }
+                if (page == null) {
+                    throw new IOException("cannot read page " + pid.getPageNumber() + " of table " + pid.getTableId());
+                }
+                for (Map.Entry<Integer, byte[]> slot : r.slots.entrySet()) {
+                    ((HeapPage) page).setSlotData(slot.getKey(), slot.getValue());
+                }
+            }
+            file.writePage(page);
+            if (page instanceof HeapPage) {
+                ((HeapPage) page).noteFreeSpace();
+            }
+        }
+    }
+}
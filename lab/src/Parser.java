@@ -512,7 +512,12 @@ public class Parser {
             else {
                 if (!this.inUserTrans) {
                     curtrans = new Transaction();
-                    curtrans.start();
+                    if (s instanceof ZQuery) {
+                        // a SELECT on its own cannot write
+                        curtrans.startReadOnly();
+                    } else {
+                        curtrans.start();
+                    }
                     System.out.println("Started a new transaction tid = "
                             + curtrans.getId().getId());
                 }
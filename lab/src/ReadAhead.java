@@ -0,0 +1,169 @@
+package simpledb;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * ReadAhead watches the pages requested from a BufferPool and, once a table
+ * is being read sequentially, asynchronously loads the next pages of that
+ * table into the pool before the scan asks for them.
+ * <p>
+ * Each table has a read-ahead window. It starts at INITIAL_WINDOW pages,
+ * grows by one page for every prefetched page that is later requested and
+ * is halved for every prefetched page that is evicted unused, so it settles
+ * at what the workload actually consumes. The window never exceeds a
+ * quarter of the pool.
+ * <p>
+ * Prefetched pages are read without any lock: locks are still taken when a
+ * transaction requests the page through getPage.
+ *
+ * @see BufferPool#enableReadAhead
+ */
+public class ReadAhead {
+
+    public static final int INITIAL_WINDOW = 4;
+    /** number of consecutive page numbers that make an access pattern sequential */
+    public static final int SEQUENTIAL_RUN = 2;
+
+    private static class Stream {
+        int lastPage = -2;
+        int runLength = 0;
+        int window = INITIAL_WINDOW;
+        /** highest page number already handed to the prefetch threads */
+        int prefetchedUpTo = -1;
+    }
+
+    private final BufferPool pool;
+    private final int maxWindow;
+    private final ExecutorService executor;
+    private final ConcurrentHashMap<Integer, Stream> streams;
+    private final AtomicLong issued;
+    private final AtomicLong hits;
+    private final AtomicLong wasted;
+    private volatile boolean stopped;
+
+    /**
+     * @param pool the pool to load pages into
+     * @param maxWindow the largest number of pages to read ahead of a scan
+     * @param numThreads the number of threads issuing the reads
+     */
+    public ReadAhead(BufferPool pool, int maxWindow, int numThreads) {
+        this.pool = pool;
+        this.maxWindow = Math.max(1, Math.min(maxWindow, pool.getNumPages() / 4));
+        this.executor = Executors.newFixedThreadPool(Math.max(1, numThreads), r -> {
+            Thread t = new Thread(r, "simpledb-read-ahead");
+            t.setDaemon(true);
+            return t;
+        });
+        this.streams = new ConcurrentHashMap<>();
+        this.issued = new AtomicLong(0);
+        this.hits = new AtomicLong(0);
+        this.wasted = new AtomicLong(0);
+    }
+
+    /** @return the number of pages loaded into the pool by read-ahead */
+    public long getPrefetchesIssued() {
+        return issued.get();
+    }
+
+    /** @return the number of prefetched pages that were requested afterwards */
+    public long getPrefetchHits() {
+        return hits.get();
+    }
+
+    /** @return the number of prefetched pages that left the pool unused */
+    public long getWastedPrefetches() {
+        return wasted.get();
+    }
+
+    /** @return the current read-ahead window of a table, in pages */
+    public int getWindow(int tableId) {
+        Stream st = streams.get(tableId);
+        return st == null ? Math.min(INITIAL_WINDOW, maxWindow) : st.window;
+    }
+
+    /**
+     * Stop the prefetch threads. Queued reads are dropped; the threads are
+     * not interrupted, since interrupting a thread blocked in a FileChannel
+     * read closes the channel for every other reader as well.
+     */
+    public void shutdown() {
+        stopped = true;
+        executor.shutdown();
+    }
+
+    /**
+     * Called by the BufferPool for every page a transaction requests.
+     * Schedules reads of the pages following pid if its table is being
+     * read sequentially and less than half a window is already buffered
+     * ahead of it.
+     */
+    void pageRequested(PageId pid) {
+        if (!(pid instanceof HeapPageId)) {
+            return;
+        }
+        int tableId = pid.getTableId();
+        DbFile file = Database.getCatalog().getDatabaseFile(tableId);
+        if (!(file instanceof HeapFile)) {
+            return;
+        }
+        int pgNo = pid.getPageNumber();
+        Stream st = streams.computeIfAbsent(tableId, id -> new Stream());
+        final int from;
+        final int to;
+        synchronized (st) {
+            if (pgNo == st.lastPage + 1) {
+                st.runLength++;
+            } else {
+                st.runLength = 1;
+                st.prefetchedUpTo = pgNo;
+            }
+            st.lastPage = pgNo;
+            st.window = Math.min(st.window, maxWindow);
+            if (st.runLength < SEQUENTIAL_RUN || st.prefetchedUpTo - pgNo > st.window / 2) {
+                return;
+            }
+            from = Math.max(st.prefetchedUpTo, pgNo) + 1;
+            to = Math.min(pgNo + st.window, ((HeapFile) file).numPages() - 1);
+            if (from > to) {
+                return;
+            }
+            st.prefetchedUpTo = to;
+        }
+        try {
+            executor.execute(() -> {
+                for (int p = from; p <= to && !stopped; p++) {
+                    if (pool.prefetchPage(new HeapPageId(tableId, p))) {
+                        issued.incrementAndGet();
+                    }
+                }
+            });
+        } catch (java.util.concurrent.RejectedExecutionException e) {
+            // shut down
+        }
+    }
+
+    /** Called by the BufferPool when a prefetched page is requested for the first time. */
+    void prefetchHit(PageId pid) {
+        hits.incrementAndGet();
+        Stream st = streams.get(pid.getTableId());
+        if (st != null) {
+            synchronized (st) {
+                st.window = Math.min(maxWindow, st.window + 1);
+            }
+        }
+    }
+
+    /** Called by the BufferPool when a prefetched page leaves the pool without being requested. */
+    void prefetchWasted(PageId pid) {
+        wasted.incrementAndGet();
+        Stream st = streams.get(pid.getTableId());
+        if (st != null) {
+            synchronized (st) {
+                st.window = Math.max(1, st.window / 2);
+            }
+        }
+    }
+}
@@ -10,19 +10,43 @@ import java.io.*;
 public class Transaction {
     private final TransactionId tid;
     volatile boolean started = false;
+    private volatile boolean snapshot = false;
 
     public Transaction() {
         tid = new TransactionId();
     }
 
-    /** Start the transaction running */
+    /**
+     * Start the transaction running. Its BEGIN record is written with its
+     * first log record, so a transaction that changes nothing writes
+     * nothing to the log.
+     */
     public void start() {
         started = true;
-        try {
-            Database.getLogFile().logXactionBegin(tid);
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
+    }
+
+    /**
+     * Start the transaction as read-only: it takes locks like any other
+     * transaction, but cannot write, and committing it only releases its
+     * locks.
+     *
+     * @see BufferPool#beginReadOnly
+     */
+    public void startReadOnly() {
+        Database.getBufferPool().beginReadOnly(tid);
+        started = true;
+    }
+
+    /**
+     * Start the transaction as a read-only snapshot of the committed
+     * database, which takes no locks and writes no log records. Needs
+     * snapshot reads to be on in the BufferPool.
+     *
+     * @see BufferPool#beginSnapshot
+     */
+    public void startSnapshot() {
+        Database.getBufferPool().beginSnapshot(tid);
+        snapshot = true;
     }
 
     public TransactionId getId() {
@@ -42,6 +66,12 @@ public class Transaction {
     /** Handle the details of transaction commit / abort */
     public void transactionComplete(boolean abort) throws IOException {
 
+        if (snapshot) {
+            // nothing to log or roll back
+            Database.getBufferPool().transactionComplete(tid, !abort);
+            snapshot = false;
+        }
+
         if (started) {
             //write abort log record and rollback transaction
             if (abort) {
@@ -114,7 +114,7 @@ public class Tuple implements Serializable {
         // some code goes here
         String[] s = new String[this.numFields];
         for (int i = 0; i < this.numFields; i ++){
-            s[i] = this.fields[i].toString();
+            s[i] = getField(i).toString();
         }
         return String.join(",", s);
     }
@@ -136,7 +136,7 @@ public class Tuple implements Serializable {
 
             @Override
             public Field next() {
-                return fields[curIndex++];
+                return getField(curIndex++);
             }
         };
         return it;
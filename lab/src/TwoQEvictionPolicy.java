@@ -0,0 +1,109 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.function.Predicate;
+
+/**
+ * 2Q replacement (Johnson and Shasha). Pages seen for the first time go to
+ * a small FIFO queue (A1in); only a page that is requested again after it
+ * fell out of A1in -- it is still remembered in the ghost queue A1out --
+ * is promoted to the main LRU queue (Am). Pages that a scan touches once
+ * therefore never compete with the hot pages in Am.
+ * <p>
+ * All bookkeeping is O(1).
+ */
+public class TwoQEvictionPolicy implements EvictionPolicy {
+
+    private final int kin;
+    private final int kout;
+    private final LinkedHashSet<PageId> a1in;
+    private final LinkedHashSet<PageId> a1out;
+    private final LinkedHashSet<PageId> am;
+
+    /**
+     * @param capacity the number of pages of the pool; A1in is kept at a
+     *     quarter of it and A1out remembers half of it
+     */
+    public TwoQEvictionPolicy(int capacity) {
+        this.kin = Math.max(1, capacity / 4);
+        this.kout = Math.max(1, capacity / 2);
+        this.a1in = new LinkedHashSet<>();
+        this.a1out = new LinkedHashSet<>();
+        this.am = new LinkedHashSet<>();
+    }
+
+    public void pageAdmitted(PageId pid) {
+        if (a1in.contains(pid) || am.contains(pid)) {
+            pageAccessed(pid);
+        } else if (a1out.remove(pid)) {
+            am.add(pid);
+        } else {
+            a1in.add(pid);
+        }
+    }
+
+    public void pageAccessed(PageId pid) {
+        // hits in A1in are treated as correlated references and ignored
+        if (am.remove(pid)) {
+            am.add(pid);
+        }
+    }
+
+    public void pageRemoved(PageId pid) {
+        if (a1in.remove(pid)) {
+            a1out.add(pid);
+            if (a1out.size() > kout) {
+                Iterator<PageId> it = a1out.iterator();
+                it.next();
+                it.remove();
+            }
+        } else {
+            am.remove(pid);
+        }
+    }
+
+    public PageId chooseVictim(Predicate<PageId> evictable) {
+        PageId victim;
+        if (a1in.size() > kin || am.isEmpty()) {
+            victim = firstEvictable(a1in, evictable);
+            if (victim == null) {
+                victim = firstEvictable(am, evictable);
+            }
+        } else {
+            victim = firstEvictable(am, evictable);
+            if (victim == null) {
+                victim = firstEvictable(a1in, evictable);
+            }
+        }
+        return victim;
+    }
+
+    private static PageId firstEvictable(LinkedHashSet<PageId> queue, Predicate<PageId> evictable) {
+        for (PageId pid : queue) {
+            if (evictable.test(pid)) {
+                return pid;
+            }
+        }
+        return null;
+    }
+
+    public List<PageId> coldestPages(int max) {
+        ArrayList<PageId> cold = new ArrayList<>();
+        boolean a1inFirst = a1in.size() > kin || am.isEmpty();
+        appendUpTo(cold, a1inFirst ? a1in : am, max);
+        appendUpTo(cold, a1inFirst ? am : a1in, max);
+        return cold;
+    }
+
+    private static void appendUpTo(List<PageId> out, LinkedHashSet<PageId> queue, int max) {
+        for (PageId pid : queue) {
+            if (out.size() >= max) {
+                return;
+            }
+            out.add(pid);
+        }
+    }
+}
@@ -2,6 +2,7 @@ package simpledb;
 
 import java.text.ParseException;
 import java.io.*;
+import java.nio.ByteBuffer;
 
 /**
  * Class representing a type in SimpleDB.
@@ -24,6 +25,11 @@ public enum Type implements Serializable {
             }
         }
 
+        @Override
+        public Field parse(ByteBuffer buf, int offset) {
+            return new IntField(buf.getInt(offset));
+        }
+
     }, STRING_TYPE() {
         @Override
         public int getLen() {
@@ -34,6 +40,9 @@ public enum Type implements Serializable {
         public Field parse(DataInputStream dis) throws ParseException {
             try {
                 int strLen = dis.readInt();
+                if (strLen < 0 || strLen > STRING_LEN) {
+                    throw new ParseException("string length " + strLen + " out of range", 0);
+                }
                 byte bs[] = new byte[strLen];
                 dis.read(bs);
                 dis.skipBytes(STRING_LEN-strLen);
@@ -42,6 +51,21 @@ public enum Type implements Serializable {
                 throw new ParseException("couldn't parse", 0);
             }
         }
+
+        @Override
+        public Field parse(ByteBuffer buf, int offset) {
+            int strLen = buf.getInt(offset);
+            if (strLen < 0 || strLen > STRING_LEN) {
+                // a damaged page; the bytes after it belong to other fields
+                throw new UncheckedIOException(new PageCorruptedException("string field at offset "
+                        + offset + " has length " + strLen + ", outside [0, " + STRING_LEN + "]"));
+            }
+            byte bs[] = new byte[strLen];
+            ByteBuffer src = buf.duplicate();
+            src.position(offset + 4);
+            src.get(bs);
+            return new StringField(new String(bs), STRING_LEN);
+        }
     };
     
     public static final int STRING_LEN = 128;
@@ -60,4 +84,14 @@ public enum Type implements Serializable {
    */
     public abstract Field parse(DataInputStream dis) throws ParseException;
 
+  /**
+   * Same as {@link #parse(DataInputStream)}, reading the field stored at
+   * an absolute offset of a buffer without moving its position.
+   *
+   * @throws UncheckedIOException wrapping a PageCorruptedException if the
+   *   stored field cannot be valid, such as a string whose length is out
+   *   of range
+   */
+    public abstract Field parse(ByteBuffer buf, int offset);
+
 }
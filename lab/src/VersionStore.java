@@ -0,0 +1,219 @@
+package simpledb;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * VersionStore keeps old committed images of pages for snapshot readers,
+ * the MVCC mode of the BufferPool.
+ * <p>
+ * Every commit gets a commit timestamp from a counter, and a snapshot
+ * reads the database as of the last commit that had finished when it
+ * started. When a commit changes a page, the page's previous committed
+ * image is stored here, valid until the commit's timestamp. A snapshot
+ * at timestamp s reads the stored version with the smallest timestamp
+ * above s, or the page's current committed image if there is none.
+ * Versions no active snapshot can read any more are dropped at the end of
+ * every commit and snapshot.
+ * <p>
+ * Commits that store versions are serialized by {@link #beginCommit}, so
+ * the versions of each page are stored in timestamp order. Stored
+ * versions are added before the page's before image moves on, so a reader
+ * that sees the new committed image also finds the version it replaced.
+ * <p>
+ * When the BufferPool steals a page that holds uncommitted changes, the
+ * committed image it had is kept here too, since neither the disk nor a
+ * page read back from it has that image any more.
+ *
+ * @see BufferPool#setSnapshotReads
+ */
+public class VersionStore {
+
+    /** a committed page image, valid for snapshots taken before until */
+    private static final class Version {
+        final long until;
+        final byte[] data;
+
+        Version(long until, byte[] data) {
+            this.until = until;
+            this.data = data;
+        }
+    }
+
+    private final ReentrantLock commitLock = new ReentrantLock();
+    /** timestamp of the last commit started */
+    private long clock;
+    /** timestamp of the commit in progress, or 0; guarded by this */
+    private long committing;
+    /** snapshot timestamp of each active snapshot; changed only under this */
+    private final ConcurrentHashMap<TransactionId, Long> snapshots = new ConcurrentHashMap<>();
+    /** stored versions of each page, oldest first; each list guarded by itself */
+    private final ConcurrentHashMap<PageId, ArrayList<Version>> versions = new ConcurrentHashMap<>();
+    /** committed images of pages stolen while they held uncommitted changes */
+    private final ConcurrentHashMap<PageId, byte[]> stolen = new ConcurrentHashMap<>();
+
+    /**
+     * Starts a snapshot for tid, which sees every commit that has finished
+     * and none that has not.
+     *
+     * @return the snapshot timestamp
+     */
+    public synchronized long beginSnapshot(TransactionId tid) {
+        long ts = committing != 0 ? committing - 1 : clock;
+        snapshots.put(tid, ts);
+        return ts;
+    }
+
+    /**
+     * Ends the snapshot of tid, if it has one, and drops the versions no
+     * other snapshot needs.
+     *
+     * @return true if tid had a snapshot
+     */
+    public boolean endSnapshot(TransactionId tid) {
+        synchronized (this) {
+            if (snapshots.remove(tid) == null) {
+                return false;
+            }
+        }
+        collectGarbage();
+        return true;
+    }
+
+    /** @return the snapshot timestamp of tid, or null if it has no snapshot */
+    public Long getSnapshot(TransactionId tid) {
+        return snapshots.get(tid);
+    }
+
+    /** @return the number of active snapshots */
+    public int getSnapshotCount() {
+        return snapshots.size();
+    }
+
+    /**
+     * Starts a commit; must be followed by {@link #endCommit}. Blocks while
+     * another commit is in progress.
+     *
+     * @return the commit timestamp
+     */
+    public long beginCommit() {
+        commitLock.lock();
+        synchronized (this) {
+            committing = ++clock;
+            return committing;
+        }
+    }
+
+    /** Finishes the commit in progress and drops the versions nobody needs. */
+    public void endCommit() {
+        synchronized (this) {
+            committing = 0;
+        }
+        commitLock.unlock();
+        collectGarbage();
+    }
+
+    /**
+     * Stores the image a page had before the commit with timestamp ts. If
+     * the page was stolen, the committed image kept then is stored instead
+     * of before.
+     */
+    public void addVersion(PageId pid, Page before, long ts) {
+        byte[] data = stolen.get(pid);
+        if (data == null) {
+            data = before.getPageData();
+        }
+        Version v = new Version(ts, data);
+        versions.compute(pid, (p, list) -> {
+            if (list == null) {
+                list = new ArrayList<>();
+            }
+            synchronized (list) {
+                list.add(v);
+            }
+            return list;
+        });
+        stolen.remove(pid);
+    }
+
+    /**
+     * Stores the committed image kept for a stolen page as its version
+     * before the commit with timestamp ts, if one is kept. Used for pages
+     * the committing transaction changed that are no longer dirty.
+     */
+    public void addStolenVersion(PageId pid, long ts) {
+        if (stolen.containsKey(pid)) {
+            addVersion(pid, null, ts);
+        }
+    }
+
+    /**
+     * Keeps the committed image of a page that is about to be written to
+     * disk with uncommitted changes. Does nothing if one is kept already.
+     */
+    public void pageStolen(PageId pid, Page committed) {
+        if (!stolen.containsKey(pid)) {
+            stolen.putIfAbsent(pid, committed.getPageData());
+        }
+    }
+
+    /** Forgets the committed image kept for a stolen page, once it is rolled back. */
+    public void pageRolledBack(PageId pid) {
+        stolen.remove(pid);
+    }
+
+    /**
+     * @return the image of the page as of snapshot timestamp ts, or null
+     *         if that is its current committed image
+     */
+    public byte[] lookup(PageId pid, long ts) {
+        ArrayList<Version> list = versions.get(pid);
+        if (list != null) {
+            synchronized (list) {
+                for (Version v : list) {
+                    if (v.until > ts) {
+                        return v.data;
+                    }
+                }
+            }
+        }
+        return stolen.get(pid);
+    }
+
+    /** @return the number of stored page versions */
+    public int getVersionCount() {
+        int n = 0;
+        for (ArrayList<Version> list : versions.values()) {
+            synchronized (list) {
+                n += list.size();
+            }
+        }
+        return n;
+    }
+
+    /**
+     * Drops the versions that no active snapshot can read, nor any
+     * snapshot started from now on.
+     */
+    private void collectGarbage() {
+        long oldest;
+        synchronized (this) {
+            oldest = committing != 0 ? committing - 1 : clock;
+            for (long ts : snapshots.values()) {
+                oldest = Math.min(oldest, ts);
+            }
+        }
+        long horizon = oldest;
+        for (PageId pid : versions.keySet()) {
+            versions.computeIfPresent(pid, (p, list) -> {
+                synchronized (list) {
+                    while (!list.isEmpty() && list.get(0).until <= horizon) {
+                        list.remove(0);
+                    }
+                    return list.isEmpty() ? null : list;
+                }
+            });
+        }
+    }
+}
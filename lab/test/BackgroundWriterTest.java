@@ -0,0 +1,63 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class BackgroundWriterTest extends TestUtil.CreateHeapFile {
+    private BufferPool bp;
+    private PageId p0;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        p0 = new HeapPageId(empty.getId(), 0);
+    }
+
+    private Transaction insert(int value) throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        bp.insertTuple(t.getId(), empty.getId(), Utility.getHeapTuple(value, 2));
+        return t;
+    }
+
+    /**
+     * A page that a running transaction holds an X lock on is not written,
+     * and stays dirty.
+     */
+    @Test public void skipsPagesBeingChanged() throws Exception {
+        Transaction t = insert(1);
+        assertEquals(0, bp.writeColdDirtyPages(10));
+        assertSame(t.getId(), bp.getPage(t.getId(), p0, Permissions.READ_ONLY).isDirty());
+        t.commit();
+    }
+
+    /**
+     * A page left dirty by a committed transaction is written even while a
+     * reader holds an S lock on it, and the writer gives its own locks up,
+     * so the next writer of the page does not wait for it.
+     */
+    @Test public void writesCommittedPagesAndReleasesLocks() throws Exception {
+        insert(1).commit();
+        TransactionId reader = new TransactionId();
+        Page page = bp.getPage(reader, p0, Permissions.READ_ONLY);
+        assertEquals(1, bp.writeColdDirtyPages(10));
+        assertNull(page.isDirty());
+        bp.transactionComplete(reader);
+
+        Transaction t = insert(2);
+        assertSame(t.getId(), bp.getPage(t.getId(), p0, Permissions.READ_ONLY).isDirty());
+        t.commit();
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(BackgroundWriterTest.class);
+    }
+}
@@ -0,0 +1,125 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class BufferPoolPinTest extends TestUtil.CreateHeapFile {
+    private PageId p0, p1;
+    private TransactionId tid;
+
+    /**
+     * Set up a heap file with two pages.
+     */
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        tid = new TransactionId();
+        for (int i = 0; i < 600; ++i) {
+            empty.insertTuple(tid, Utility.getHeapTuple(i, 2));
+        }
+        assertEquals(2, empty.numPages());
+        p0 = new HeapPageId(empty.getId(), 0);
+        p1 = new HeapPageId(empty.getId(), 1);
+
+        // the tuples are in the pool; write them out before tests reset it
+        BufferPool bp = Database.getBufferPool();
+        bp.getPage(tid, p0, Permissions.READ_WRITE).markDirty(true, tid);
+        bp.getPage(tid, p1, Permissions.READ_WRITE).markDirty(true, tid);
+        bp.flushAllPages();
+    }
+
+    /**
+     * A pinned page is never evicted; once unpinned it can be.
+     */
+    @Test public void pinnedPageIsNotEvicted() throws Exception {
+        BufferPool bp = Database.resetBufferPool(1);
+        Page pinned = bp.pinPage(tid, p0, Permissions.READ_ONLY);
+        try {
+            bp.getPage(tid, p1, Permissions.READ_ONLY);
+            fail("expected DbException, the only page of the pool is pinned");
+        } catch (DbException e) {
+            // expected
+        }
+        assertSame(pinned, bp.getPage(tid, p0, Permissions.READ_ONLY));
+
+        bp.unpinPage(tid, p0);
+        assertEquals(p1, bp.getPage(tid, p1, Permissions.READ_ONLY).getId());
+    }
+
+    /**
+     * Pins are counted: a page stays pinned until every pin is released.
+     */
+    @Test public void pinsAreCounted() throws Exception {
+        BufferPool bp = Database.resetBufferPool(1);
+        bp.pinPage(tid, p0, Permissions.READ_ONLY);
+        bp.pinPage(tid, p0, Permissions.READ_ONLY);
+        bp.unpinPage(tid, p0);
+        try {
+            bp.getPage(tid, p1, Permissions.READ_ONLY);
+            fail("expected DbException, page 0 is still pinned once");
+        } catch (DbException e) {
+            // expected
+        }
+        bp.unpinPage(tid, p0);
+        bp.getPage(tid, p1, Permissions.READ_ONLY);
+    }
+
+    /**
+     * Only the transaction that pinned a page can unpin it.
+     */
+    @Test public void pinsBelongToTheirTransaction() throws Exception {
+        BufferPool bp = Database.resetBufferPool(1);
+        bp.pinPage(tid, p0, Permissions.READ_ONLY);
+        bp.unpinPage(new TransactionId(), p0);
+        try {
+            bp.getPage(tid, p1, Permissions.READ_ONLY);
+            fail("expected DbException, page 0 is still pinned by tid");
+        } catch (DbException e) {
+            // expected
+        }
+        bp.unpinPage(tid, p0);
+        bp.getPage(tid, p1, Permissions.READ_ONLY);
+    }
+
+    /**
+     * A scan that is never closed keeps its page pinned only until its
+     * transaction aborts, even when the abort swaps the page for its
+     * before image.
+     */
+    @Test public void abortReleasesPinsOfUnclosedScan() throws Exception {
+        BufferPool bp = Database.resetBufferPool(1);
+        TransactionId scanner = new TransactionId();
+        DbFileIterator it = empty.iterator(scanner);
+        it.open();
+        Tuple t = it.next();
+        PageId scanned = t.getRecordId().getPageId();
+        PageId unscanned = scanned.equals(p0) ? p1 : p0;
+        bp.deleteTuple(scanner, t);
+        assertEquals(scanner, bp.getPage(scanner, scanned, Permissions.READ_ONLY).isDirty());
+        bp.transactionComplete(scanner, false);
+
+        TransactionId other = new TransactionId();
+        assertEquals(unscanned, bp.getPage(other, unscanned, Permissions.READ_ONLY).getId());
+        // closing the scan afterwards does not unpin anyone else's pin
+        bp.pinPage(other, unscanned, Permissions.READ_ONLY);
+        it.close();
+        try {
+            bp.getPage(other, scanned, Permissions.READ_ONLY);
+            fail("expected DbException, the other page is still pinned by other");
+        } catch (DbException e) {
+            // expected
+        }
+        bp.transactionComplete(other);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(BufferPoolPinTest.class);
+    }
+}
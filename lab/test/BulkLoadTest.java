@@ -0,0 +1,138 @@
+package simpledb;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+import java.io.File;
+import java.util.*;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class BulkLoadTest extends SimpleDbTestBase {
+    /** tuples of two int fields per page */
+    private static final int PER_PAGE = 504;
+
+    private HeapFile hf;
+
+    /**
+     * Create an empty table, which has a single empty page.
+     */
+    @Before
+    public void setUp() throws Exception {
+        hf = SystemTestUtil.createRandomHeapFile(2, 0, null, null);
+        assertEquals(1, hf.numPages());
+    }
+
+    private static List<Tuple> tuples(int n) {
+        List<Tuple> tuples = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            tuples.add(Utility.getHeapTuple(i, 2));
+        }
+        return tuples;
+    }
+
+    private int countTuples(TransactionId tid) throws Exception {
+        DbFileIterator it = hf.iterator(tid);
+        it.open();
+        int n = 0;
+        while (it.hasNext()) {
+            it.next();
+            n++;
+        }
+        it.close();
+        return n;
+    }
+
+    /**
+     * A batch fills the pages in order and each page is looked up once.
+     */
+    @Test
+    public void insertTuplesFillsPagesInOrder() throws Exception {
+        TransactionId tid = new TransactionId();
+        List<Tuple> tuples = tuples(2 * PER_PAGE + 10);
+        ArrayList<Page> pages = hf.insertTuples(tid, tuples);
+        assertEquals(3, pages.size());
+        assertEquals(3, hf.numPages());
+        for (int i = 0; i < tuples.size(); i++) {
+            RecordId rid = tuples.get(i).getRecordId();
+            assertEquals(i / PER_PAGE, rid.getPageId().getPageNumber());
+            assertEquals(i % PER_PAGE, rid.getTupleNumber());
+        }
+        for (Page p : pages) {
+            assertTrue(Database.getBufferPool().holdsLock(tid, p.getId()));
+        }
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * Full pages of a bulk load are written to the file with a single log
+     * record, and only the last page goes through the BufferPool.
+     */
+    @Test
+    public void bulkLoadWritesFullPages() throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        int records = Database.getLogFile().getTotalRecords();
+        Database.getBufferPool().insertTuples(t.getId(), hf.getId(), tuples(3 * PER_PAGE + 5), true);
+        // page 0 through the pool, pages 1 and 2 written directly, page 3 through the pool
+        assertEquals(4, hf.numPages());
+        // the BULK_APPEND record, and the BEGIN record written with it
+        assertEquals(records + 2, Database.getLogFile().getTotalRecords());
+        HeapPage page = (HeapPage) hf.readPage(new HeapPageId(hf.getId(), 2));
+        assertEquals(0, page.getNumEmptySlots());
+        assertFalse(Database.getBufferPool().holdsLock(t.getId(), page.getId()));
+        t.commit();
+
+        TransactionId tid = new TransactionId();
+        assertEquals(3 * PER_PAGE + 5, countTuples(tid));
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * Aborting a bulk load empties the pages written directly.
+     */
+    @Test
+    public void bulkLoadAbortEmptiesPages() throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        Database.getBufferPool().insertTuples(t.getId(), hf.getId(), tuples(3 * PER_PAGE + 5), true);
+        t.abort();
+
+        TransactionId tid = new TransactionId();
+        assertEquals(0, countTuples(tid));
+        Database.getBufferPool().transactionComplete(tid);
+        assertTrue(hf.getFreeSpaceMap().hasSpace(1));
+    }
+
+    /**
+     * HeapFileEncoder writes the same pages HeapPage reads.
+     */
+    @Test
+    public void encoderWritesPagesDirectly() throws Exception {
+        ArrayList<ArrayList<Integer>> rows = new ArrayList<>();
+        for (int i = 0; i < PER_PAGE + 1; i++) {
+            rows.add(new ArrayList<>(Arrays.asList(i, -i)));
+        }
+        File file = File.createTempFile("bulk", ".dat");
+        file.deleteOnExit();
+        new File(file.getPath() + FreeSpaceMap.SUFFIX).deleteOnExit();
+        HeapFileEncoder.convert(rows, file, BufferPool.getPageSize(), 2);
+        HeapFile f = Utility.openHeapFile(2, file);
+        assertEquals(2, f.numPages());
+        HeapPage page = (HeapPage) f.readPage(new HeapPageId(f.getId(), 1));
+        assertEquals(PER_PAGE - 1, page.getNumEmptySlots());
+        Tuple last = page.iterator().next();
+        assertEquals(new IntField(PER_PAGE), last.getField(0));
+        assertEquals(new IntField(-PER_PAGE), last.getField(1));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(BulkLoadTest.class);
+    }
+}
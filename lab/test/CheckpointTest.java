@@ -0,0 +1,118 @@
+package simpledb;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+import java.io.File;
+import java.util.*;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class CheckpointTest extends SimpleDbTestBase {
+    private File file;
+    private HeapFile hf;
+    private HeapPageId p0;
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        file = File.createTempFile("checkpoint", ".dat");
+        file.deleteOnExit();
+        file.delete();
+        hf = Utility.createEmptyHeapFile(file.getAbsolutePath(), 2);
+        p0 = new HeapPageId(hf.getId(), 0);
+    }
+
+    private void insert(int value) throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        Database.getBufferPool().insertTuple(t.getId(), hf.getId(), Utility.getHeapTuple(value, 2));
+        t.commit();
+    }
+
+    private Set<Integer> scan() throws Exception {
+        TransactionId tid = new TransactionId();
+        HashSet<Integer> values = new HashSet<>();
+        DbFileIterator it = hf.iterator(tid);
+        it.open();
+        while (it.hasNext()) {
+            values.add(((IntField) it.next().getField(0)).getValue());
+        }
+        it.close();
+        Database.getBufferPool().transactionComplete(tid);
+        return values;
+    }
+
+    private void crash() throws Exception {
+        Database.reset();
+        hf = Utility.openHeapFile(2, file);
+        Database.getLogFile().recover();
+    }
+
+    /**
+     * A checkpoint writes no pages: committed changes stay in the pool and
+     * in the dirty page table, and recovery redoes them from before the
+     * checkpoint.
+     */
+    @Test
+    public void checkpointWritesNoPages() throws Exception {
+        insert(1);
+        insert(2);
+        LogFile log = Database.getLogFile();
+        assertTrue(log.getDirtyPageTable().containsKey(p0));
+        log.logCheckpoint();
+        HeapPage onDisk = (HeapPage) hf.readPage(p0);
+        assertEquals(onDisk.getNumSlots(), onDisk.getNumEmptySlots());
+        assertTrue(log.getDirtyPageTable().containsKey(p0));
+        insert(3);
+        crash();
+        assertEquals(new HashSet<>(Arrays.asList(1, 2, 3)), scan());
+    }
+
+    /**
+     * A page leaves the dirty page table once it is written, and a
+     * checkpoint taken then lets recovery skip its earlier records.
+     */
+    @Test
+    public void writtenPageLeavesDirtyPageTable() throws Exception {
+        insert(1);
+        Database.getBufferPool().flushAllPages();
+        LogFile log = Database.getLogFile();
+        assertTrue(log.getDirtyPageTable().isEmpty());
+        log.logCheckpoint();
+        crash();
+        assertEquals(Collections.singleton(1), scan());
+    }
+
+    /**
+     * A checkpoint does not need the BufferPool monitor, so it completes
+     * while another thread holds it.
+     */
+    @Test
+    public void checkpointDoesNotWaitForPool() throws Exception {
+        insert(1);
+        final Exception[] failure = new Exception[1];
+        Thread checkpointer = new Thread(() -> {
+            try {
+                Database.getLogFile().logCheckpoint();
+            } catch (Exception e) {
+                failure[0] = e;
+            }
+        });
+        synchronized (Database.getBufferPool()) {
+            checkpointer.start();
+            checkpointer.join(5000);
+            assertFalse("checkpoint waited for the pool", checkpointer.isAlive());
+        }
+        assertNull(failure[0]);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(CheckpointTest.class);
+    }
+}
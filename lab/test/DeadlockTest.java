@@ -7,6 +7,7 @@ import org.junit.Before;
 import org.junit.Test;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 import junit.framework.JUnit4TestAdapter;
 
 public class DeadlockTest extends TestUtil.CreateHeapFile {
@@ -211,6 +212,62 @@ public class DeadlockTest extends TestUtil.CreateHeapFile {
     System.out.println("testUpgradeWriteDeadlock resolved deadlock");
   }
 
+  /**
+   * Write-write deadlock between an older t1 and a younger t2 under the
+   * given policy. t2 requests p0 after t1 requests p1, or before it if
+   * youngerFirst is set. Whatever the policy, t2 must be the one aborted
+   * and t1 must get its lock.
+   */
+  private void resolveWithPolicy(LockManager.DeadlockPolicy policy, boolean youngerFirst)
+      throws Exception {
+    bp.setDeadlockPolicy(policy);
+    bp.getPage(tid1, p0, Permissions.READ_WRITE);
+    LockGrabber lg2Hold = startGrabber(tid2, p1, Permissions.READ_WRITE);
+    Thread.sleep(POLL_INTERVAL);
+    assertTrue(lg2Hold.acquired());
+
+    LockGrabber lg1, lg2;
+    if (youngerFirst) {
+      lg2 = startGrabber(tid2, p0, Permissions.READ_WRITE);
+      Thread.sleep(POLL_INTERVAL);
+      lg1 = startGrabber(tid1, p1, Permissions.READ_WRITE);
+    } else {
+      lg1 = startGrabber(tid1, p1, Permissions.READ_WRITE);
+      Thread.sleep(POLL_INTERVAL);
+      lg2 = startGrabber(tid2, p0, Permissions.READ_WRITE);
+    }
+    lg1.join(WAIT_INTERVAL * 5);
+    lg2.join(WAIT_INTERVAL * 5);
+
+    assertTrue(lg1.acquired());
+    assertFalse(lg2.acquired());
+    assertTrue(lg2.getError() instanceof TransactionAbortedException);
+    bp.transactionComplete(tid1);
+  }
+
+  /**
+   * The background detector aborts the youngest transaction of the cycle.
+   */
+  @Test public void testBackgroundDetection() throws Exception {
+    resolveWithPolicy(LockManager.DeadlockPolicy.BACKGROUND, false);
+  }
+
+  /**
+   * Under wait-die the older t1 waits for t2, and t2 dies instead of
+   * waiting for t1.
+   */
+  @Test public void testWaitDie() throws Exception {
+    resolveWithPolicy(LockManager.DeadlockPolicy.WAIT_DIE, false);
+  }
+
+  /**
+   * Under wound-wait the younger t2 waits for t1, and is wounded when t1
+   * has to wait for it.
+   */
+  @Test public void testWoundWait() throws Exception {
+    resolveWithPolicy(LockManager.DeadlockPolicy.WOUND_WAIT, true);
+  }
+
   /**
    * JUnit suite target
    */
@@ -0,0 +1,137 @@
+package simpledb;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+import java.io.File;
+import java.util.*;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class DeltaLogTest extends SimpleDbTestBase {
+    private File file;
+    private HeapFile hf;
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        file = File.createTempFile("delta", ".dat");
+        file.deleteOnExit();
+        file.delete();
+        hf = Utility.createEmptyHeapFile(file.getAbsolutePath(), 2);
+    }
+
+    private void insert(int value, boolean commit) throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        Database.getBufferPool().insertTuple(t.getId(), hf.getId(), Utility.getHeapTuple(value, 2));
+        if (commit) {
+            t.commit();
+        } else {
+            Database.getBufferPool().flushAllPages();
+        }
+    }
+
+    private Set<Integer> scan() throws Exception {
+        TransactionId tid = new TransactionId();
+        HashSet<Integer> values = new HashSet<>();
+        DbFileIterator it = hf.iterator(tid);
+        it.open();
+        while (it.hasNext()) {
+            values.add(((IntField) it.next().getField(0)).getValue());
+        }
+        it.close();
+        Database.getBufferPool().transactionComplete(tid);
+        return values;
+    }
+
+    private void crash() throws Exception {
+        Database.reset();
+        hf = Utility.openHeapFile(2, file);
+        Database.getLogFile().recover();
+    }
+
+    /**
+     * Only the first change of a page after a checkpoint logs full page
+     * images; later ones log the slots that changed.
+     */
+    @Test
+    public void laterChangesLogOnlySlots() throws Exception {
+        LogFile log = Database.getLogFile();
+        insert(1, true);
+        long bytes = log.getBytesAppended();
+        insert(2, true);
+        long delta = log.getBytesAppended() - bytes;
+        assertTrue("logged " + delta + " bytes", delta < 256);
+
+        log.logCheckpoint();
+        bytes = log.getBytesAppended();
+        insert(3, true);
+        assertTrue(log.getBytesAppended() - bytes > 2 * BufferPool.getPageSize());
+    }
+
+    /**
+     * Recovery redoes committed deltas and undoes the delta of a
+     * transaction that did not commit but whose page reached the disk.
+     */
+    @Test
+    public void recoverDeltas() throws Exception {
+        insert(1, true);
+        insert(2, true);
+        insert(3, false);
+        crash();
+        assertEquals(new HashSet<>(Arrays.asList(1, 2)), scan());
+    }
+
+    /**
+     * An aborted transaction's delta is rolled back on the page on disk.
+     */
+    @Test
+    public void rollbackDelta() throws Exception {
+        insert(1, true);
+        Transaction t = new Transaction();
+        t.start();
+        Database.getBufferPool().insertTuple(t.getId(), hf.getId(), Utility.getHeapTuple(2, 2));
+        Database.getBufferPool().flushAllPages();
+        t.abort();
+        assertEquals(Collections.singleton(1), scan());
+        crash();
+        assertEquals(Collections.singleton(1), scan());
+    }
+
+    /**
+     * A page stolen with a change its transaction then takes back is
+     * logged again at commit against the stolen image, so redo does not
+     * leave the taken back change on the page.
+     */
+    @Test
+    public void stolenChangeTakenBack() throws Exception {
+        insert(1, true);
+        Transaction t = new Transaction();
+        t.start();
+        BufferPool bp = Database.getBufferPool();
+        bp.insertTuple(t.getId(), hf.getId(), Utility.getHeapTuple(2, 2));
+        bp.flushAllPages();
+        DbFileIterator it = hf.iterator(t.getId());
+        it.open();
+        while (it.hasNext()) {
+            Tuple tuple = it.next();
+            if (((IntField) tuple.getField(0)).getValue() == 2) {
+                bp.deleteTuple(t.getId(), tuple);
+            }
+        }
+        it.close();
+        t.commit();
+        crash();
+        assertEquals(Collections.singleton(1), scan());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(DeltaLogTest.class);
+    }
+}
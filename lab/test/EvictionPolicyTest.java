@@ -0,0 +1,96 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class EvictionPolicyTest extends SimpleDbTestBase {
+
+    private static PageId pid(int pgNo) {
+        return new HeapPageId(-1, pgNo);
+    }
+
+    /**
+     * Fill a policy with pages 0..n-1, then touch page 0 again.
+     */
+    private static EvictionPolicy fill(EvictionPolicy policy, int n) {
+        for (int i = 0; i < n; i++) {
+            policy.pageAdmitted(pid(i));
+        }
+        policy.pageAccessed(pid(0));
+        return policy;
+    }
+
+    /**
+     * Unit test for ClockEvictionPolicy: a referenced page gets a second
+     * chance, unreferenced pages go in clock order.
+     */
+    @Test public void clock() {
+        EvictionPolicy policy = fill(new ClockEvictionPolicy(4), 4);
+        assertEquals(pid(1), policy.chooseVictim(p -> true));
+        policy.pageRemoved(pid(1));
+        assertEquals(pid(2), policy.chooseVictim(p -> true));
+    }
+
+    /**
+     * Unit test for LRUKEvictionPolicy: pages with fewer than K references
+     * are evicted before pages that were referenced K times.
+     */
+    @Test public void lruK() {
+        EvictionPolicy policy = fill(new LRUKEvictionPolicy(4), 4);
+        assertEquals(pid(1), policy.chooseVictim(p -> true));
+        policy.pageAccessed(pid(1));
+        policy.pageAccessed(pid(2));
+        policy.pageAccessed(pid(3));
+        assertEquals(pid(0), policy.chooseVictim(p -> true));
+    }
+
+    /**
+     * Unit test for TwoQEvictionPolicy: a page that comes back after being
+     * evicted from A1in is protected from a following scan.
+     */
+    @Test public void twoQ() {
+        EvictionPolicy policy = fill(new TwoQEvictionPolicy(4), 4);
+        assertEquals(pid(0), policy.chooseVictim(p -> true));
+        policy.pageRemoved(pid(0));
+        policy.pageAdmitted(pid(0));
+
+        // scan over pages that were never seen before
+        for (int i = 100; i < 110; i++) {
+            PageId victim = policy.chooseVictim(p -> true);
+            assertNotEquals(pid(0), victim);
+            policy.pageRemoved(victim);
+            policy.pageAdmitted(pid(i));
+        }
+    }
+
+    /**
+     * Every policy must respect the evictable predicate, and return null
+     * when no page passes it.
+     */
+    @Test public void evictablePredicate() {
+        EvictionPolicy[] policies = new EvictionPolicy[] {
+                new ClockEvictionPolicy(8), new LRUKEvictionPolicy(8), new TwoQEvictionPolicy(8)};
+        for (EvictionPolicy policy : policies) {
+            fill(policy, 8);
+            assertEquals(pid(5), policy.chooseVictim(p -> p.equals(pid(5))));
+            assertNull(policy.chooseVictim(p -> false));
+            for (int i = 0; i < 8; i++) {
+                policy.pageRemoved(pid(i));
+            }
+            assertNull(policy.chooseVictim(p -> true));
+        }
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(EvictionPolicyTest.class);
+    }
+}
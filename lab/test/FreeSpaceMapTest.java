@@ -0,0 +1,97 @@
+package simpledb;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+import java.io.File;
+import java.util.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class FreeSpaceMapTest extends SimpleDbTestBase {
+    private HeapFile hf;
+    private TransactionId tid;
+
+    /**
+     * Create a table with three full pages.
+     */
+    @Before
+    public void setUp() throws Exception {
+        hf = SystemTestUtil.createRandomHeapFile(2, 3 * 504, null, null);
+        assertEquals(3, hf.numPages());
+        tid = new TransactionId();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * An insert into a table whose pages are all full appends a page
+     * without locking the full ones.
+     */
+    @Test
+    public void insertSkipsFullPages() throws Exception {
+        Tuple t = Utility.getHeapTuple(1, 2);
+        Database.getBufferPool().insertTuple(tid, hf.getId(), t);
+        assertEquals(3, t.getRecordId().getPageId().getPageNumber());
+        for (int i = 0; i < 3; i++) {
+            assertFalse(Database.getBufferPool().holdsLock(tid, new HeapPageId(hf.getId(), i)));
+        }
+        assertTrue(hf.getFreeSpaceMap().hasSpace(3));
+    }
+
+    /**
+     * A slot freed by a delete is used by the next insert.
+     */
+    @Test
+    public void deleteMakesSpace() throws Exception {
+        HeapPageId pid = new HeapPageId(hf.getId(), 1);
+        HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_WRITE);
+        Database.getBufferPool().deleteTuple(tid, page.iterator().next());
+        assertTrue(hf.getFreeSpaceMap().hasSpace(1));
+
+        Tuple t = Utility.getHeapTuple(1, 2);
+        Database.getBufferPool().insertTuple(tid, hf.getId(), t);
+        assertEquals(pid, t.getRecordId().getPageId());
+        assertFalse(hf.getFreeSpaceMap().hasSpace(1));
+        assertEquals(3, hf.numPages());
+    }
+
+    /**
+     * The map is saved when the file is closed, and only used again while
+     * the table file is unchanged.
+     */
+    @Test
+    public void savedAndReloaded() throws Exception {
+        HeapPageId pid = new HeapPageId(hf.getId(), 2);
+        HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_WRITE);
+        page.deleteTuple(page.iterator().next());
+        FreeSpaceMap fsm = hf.getFreeSpaceMap();
+        assertFalse(fsm.getFile().exists());
+
+        // the page was not written, so the table file still has it full
+        hf.close();
+        assertTrue(fsm.getFile().exists());
+        FreeSpaceMap loaded = new FreeSpaceMap(hf);
+        assertTrue(loaded.hasSpace(2));
+        assertFalse(loaded.hasSpace(0));
+
+        // a changed table file makes it rebuild the map from the pages
+        File f = hf.getFile();
+        assertTrue(f.setLastModified(f.lastModified() - 10000));
+        assertFalse(new FreeSpaceMap(hf).hasSpace(2));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(FreeSpaceMapTest.class);
+    }
+}
@@ -0,0 +1,78 @@
+package simpledb;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+import java.util.ArrayList;
+import java.util.concurrent.CyclicBarrier;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class GroupCommitTest extends SimpleDbTestBase {
+
+    private static void begin(LogFile log, TransactionId tid) throws Exception {
+        log.logXactionBegin(tid);
+    }
+
+    /**
+     * A commit on its own forces the log once, as a batch of one.
+     */
+    @Test
+    public void singleCommit() throws Exception {
+        LogFile log = Database.getLogFile();
+        GroupCommit gc = log.getGroupCommit();
+        TransactionId tid = new TransactionId();
+        begin(log, tid);
+        log.logCommit(tid);
+        assertEquals(1, gc.getBatches());
+        assertEquals(1, gc.getCommits());
+        assertEquals(1, gc.getBatchSizeHistogram()[GroupCommit.bucket(1)]);
+    }
+
+    /**
+     * With a window as wide as the number of committers, concurrent
+     * commits are made durable by a single force.
+     */
+    @Test
+    public void concurrentCommitsShareOneForce() throws Exception {
+        final int committers = 4;
+        LogFile log = Database.getLogFile();
+        GroupCommit gc = log.getGroupCommit();
+        // long enough that only a full batch ends the flusher's wait
+        gc.setWindow(10000000, committers);
+        CyclicBarrier start = new CyclicBarrier(committers);
+        ArrayList<Thread> threads = new ArrayList<>();
+        ArrayList<Throwable> errors = new ArrayList<>();
+        for (int i = 0; i < committers; i++) {
+            Thread t = new Thread(() -> {
+                try {
+                    TransactionId tid = new TransactionId();
+                    begin(log, tid);
+                    start.await();
+                    log.logCommit(tid);
+                } catch (Throwable e) {
+                    synchronized (errors) {
+                        errors.add(e);
+                    }
+                }
+            });
+            threads.add(t);
+            t.start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        assertTrue(errors.toString(), errors.isEmpty());
+        assertEquals(1, gc.getBatches());
+        assertEquals(committers, gc.getCommits());
+        assertEquals(committers, gc.getMaxBatchSize());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(GroupCommitTest.class);
+    }
+}
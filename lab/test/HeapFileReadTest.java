@@ -3,8 +3,16 @@ package simpledb;
 import simpledb.systemtest.SimpleDbTestBase;
 import simpledb.systemtest.SystemTestUtil;
 
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.*;
 import org.junit.After;
+import org.junit.Assume;
 import org.junit.Before;
 import org.junit.Test;
 
@@ -121,6 +129,76 @@ public class HeapFileReadTest extends SimpleDbTestBase {
         it.close();
     }
 
+    /**
+     * A HeapFile whose channel the Catalog closed, because its table was
+     * replaced or the Catalog cleared, opens it again on the next read.
+     */
+    @Test
+    public void readAfterCatalogCloses() throws Exception {
+        HeapPageId pid = new HeapPageId(hf.getId(), 0);
+        byte[] data = hf.readPage(pid).getPageData();
+
+        Database.getCatalog().addTable(new HeapFile(hf.getFile(), td), "replacement");
+        assertArrayEquals(data, hf.readPage(pid).getPageData());
+
+        Database.getCatalog().clear();
+        // pages are built with the TupleDesc of their table in the Catalog
+        Database.getCatalog().addTable(hf, "cleared");
+        assertArrayEquals(data, hf.readPage(pid).getPageData());
+        hf.close();
+    }
+
+    /**
+     * A page the file ends in the middle of reads as the bytes that are
+     * there followed by zeroes.
+     */
+    @Test
+    public void readShortPageZeroPadded() throws Exception {
+        byte[] data = hf.readPage(new HeapPageId(hf.getId(), 0)).getPageData();
+        int half = data.length / 2;
+        File f = File.createTempFile("short", ".dat");
+        f.deleteOnExit();
+        try (FileOutputStream out = new FileOutputStream(f)) {
+            out.write(data, 0, half);
+        }
+        HeapFile shortFile = Utility.openHeapFile(2, f);
+        byte[] read = shortFile.readPage(new HeapPageId(shortFile.getId(), 0)).getPageData();
+        shortFile.close();
+
+        byte[] expected = Arrays.copyOf(Arrays.copyOf(data, half), data.length);
+        assertArrayEquals(expected, read);
+    }
+
+    /** @return the number of descriptors this process has open on f */
+    private static int openDescriptors(File f) throws IOException {
+        String path = f.getCanonicalPath();
+        int n = 0;
+        try (DirectoryStream<Path> fds = Files.newDirectoryStream(Paths.get("/proc/self/fd"))) {
+            for (Path fd : fds) {
+                try {
+                    if (Files.readSymbolicLink(fd).toString().equals(path)) {
+                        n++;
+                    }
+                } catch (IOException e) {
+                    // closed while listing
+                }
+            }
+        }
+        return n;
+    }
+
+    /**
+     * Database.reset closes the files of all tables.
+     */
+    @Test
+    public void resetClosesFiles() throws Exception {
+        Assume.assumeTrue(new File("/proc/self/fd").isDirectory());
+        hf.readPage(new HeapPageId(hf.getId(), 0));
+        assertEquals(1, openDescriptors(hf.getFile()));
+        Database.reset();
+        assertEquals(0, openDescriptors(hf.getFile()));
+    }
+
     /**
      * JUnit suite target
      */
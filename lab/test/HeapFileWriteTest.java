@@ -44,6 +44,19 @@ public class HeapFileWriteTest extends TestUtil.CreateHeapFile {
         assertEquals(3, empty.numPages());
     }
 
+    /**
+     * A page appended for a tuple is X-locked by the inserting transaction
+     * and changed in the BufferPool, so the insert is logged and can be
+     * rolled back like any other.
+     */
+    @Test public void appendedPageIsLocked() throws Exception {
+        empty.insertTuple(tid, Utility.getHeapTuple(1, 2));
+        HeapPageId pid = new HeapPageId(empty.getId(), 0);
+        assertTrue(Database.getBufferPool().holdsLock(tid, pid));
+        HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_ONLY);
+        assertEquals(1, page.getNumSlots() - page.getNumEmptySlots());
+    }
+
     @Test
     public void testAlternateEmptyAndFullPagesThenIterate() throws Exception {
         // Create HeapFile/Table
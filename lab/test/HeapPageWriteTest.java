@@ -126,6 +126,27 @@ public class HeapPageWriteTest extends SimpleDbTestBase {
         }
     }
 
+    /**
+     * A tuple read from the page keeps its values after its slot is
+     * emptied and reused, and the page image reflects the new tuple.
+     */
+    @Test public void tupleSurvivesSlotReuse() throws Exception {
+        HeapPage page = new HeapPage(pid, HeapPageReadTest.EXAMPLE_DATA);
+        Tuple first = page.iterator().next();
+        int slot = first.getRecordId().getTupleNumber();
+        // read the expected values from a separate copy, so first stays undecoded
+        Tuple expected = new HeapPage(pid, HeapPageReadTest.EXAMPLE_DATA).iterator().next();
+
+        page.deleteTuple(first);
+        Tuple replacement = Utility.getHeapTuple(new int[] {-7, -8});
+        page.insertTuple(replacement);
+        assertEquals(slot, replacement.getRecordId().getTupleNumber());
+
+        assertTrue(TestUtil.compareTuples(expected, first));
+        HeapPage copy = new HeapPage(pid, page.getPageData());
+        assertTrue(TestUtil.compareTuples(replacement, copy.iterator().next()));
+    }
+
     /**
      * JUnit suite target
      */
@@ -4,6 +4,9 @@ import org.junit.Before;
 import org.junit.Test;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 import junit.framework.JUnit4TestAdapter;
 
 public class LockingTest extends TestUtil.CreateHeapFile {
@@ -186,6 +189,123 @@ public class LockingTest extends TestUtil.CreateHeapFile {
     bp.getPage(tid1, p1, Permissions.READ_WRITE);
   }
 
+  /**
+   * Unit test for BufferPool.getPage() assuming locking.
+   * A read lock request queued behind a waiting write request waits for
+   * it, and both are granted in order once the page is released.
+   */
+  @Test public void readWaitsBehindQueuedWrite() throws Exception {
+    TransactionId tid3 = new TransactionId();
+    bp.getPage(tid1, p0, Permissions.READ_ONLY);
+
+    TestUtil.LockGrabber writer = new TestUtil.LockGrabber(tid2, p0, Permissions.READ_WRITE);
+    writer.start();
+    Thread.sleep(TIMEOUT);
+    TestUtil.LockGrabber reader = new TestUtil.LockGrabber(tid3, p0, Permissions.READ_ONLY);
+    reader.start();
+    Thread.sleep(TIMEOUT);
+    assertFalse(writer.acquired());
+    assertFalse(reader.acquired());
+
+    bp.transactionComplete(tid1);
+    writer.join(TIMEOUT * 10);
+    assertTrue(writer.acquired());
+    assertFalse(reader.acquired());
+
+    bp.transactionComplete(tid2);
+    reader.join(TIMEOUT * 10);
+    assertTrue(reader.acquired());
+    assertNull(reader.getError());
+    bp.transactionComplete(tid3);
+  }
+
+  /**
+   * Unit test for BufferPool.getPage() with a lock timeout.
+   * A request that cannot get its lock in time aborts, and the wait, the
+   * timeout and an upgrade show up in the lock statistics.
+   */
+  @Test public void lockTimeoutAndStats() throws Exception {
+    bp.getPage(tid1, p0, Permissions.READ_WRITE);
+    long start = System.currentTimeMillis();
+    try {
+      bp.getPage(tid2, p0, Permissions.READ_ONLY, TIMEOUT);
+      fail("expected the lock request to time out");
+    } catch (TransactionAbortedException e) {
+      // expected
+    }
+    assertTrue(System.currentTimeMillis() - start >= TIMEOUT);
+    bp.getPage(tid1, p1, Permissions.READ_ONLY);
+    bp.getPage(tid1, p1, Permissions.READ_WRITE);
+
+    LockStats.Snapshot stats = bp.getLockStats().snapshot();
+    assertEquals(1, stats.getPage(p0).getWaits());
+    assertEquals(1, stats.getPage(p0).getTimeouts());
+    assertTrue(stats.getPage(p0).getWaitNanos() >= TIMEOUT * 1000000L);
+    assertEquals(1, stats.getPage(p1).getUpgrades());
+    assertEquals(1, stats.getTable(empty.getId()).getWaits());
+    assertEquals(p0, stats.getHottestPages(1).get(0));
+    long waits = 0;
+    for (long n : stats.getWaitHistogram()) {
+      waits += n;
+    }
+    assertEquals(1, waits);
+  }
+
+  /**
+   * Contention on record locks is counted toward their page, together
+   * with that of the page lock.
+   */
+  @Test public void recordLockStatsCountTowardPage() throws Exception {
+    LockStats stats = new LockStats();
+    stats.recordWait(new RecordId(p0, 1), 1000);
+    stats.recordWait(new RecordId(p0, 2), 1000);
+    stats.recordUpgrade(new RecordId(p0, 3));
+    stats.recordWait(p0, 1000);
+
+    LockStats.Snapshot snapshot = stats.snapshot();
+    assertEquals(1, snapshot.getPages().size());
+    assertEquals(3, snapshot.getPage(p0).getWaits());
+    assertEquals(1, snapshot.getPage(p0).getUpgrades());
+    assertEquals(3, snapshot.getTable(empty.getId()).getWaits());
+  }
+
+  /**
+   * Unit test for lock escalation. Once a transaction holds more page
+   * locks on a table than the threshold, they become one table S lock,
+   * which blocks writers of every page of the table but not readers.
+   */
+  @Test public void lockEscalation() throws Exception {
+    bp.setLockEscalationThreshold(2);
+    bp.getPage(tid1, p0, Permissions.READ_ONLY);
+    bp.getPage(tid1, p1, Permissions.READ_ONLY);
+    grabLock(tid2, p2, Permissions.READ_WRITE, true);
+    bp.transactionComplete(tid2);
+
+    TransactionId tid3 = new TransactionId();
+    bp.getPage(tid1, p2, Permissions.READ_ONLY);
+    assertTrue(bp.holdsLock(tid1, p0));
+    assertTrue(bp.holdsLock(tid1, p2));
+    assertEquals(1, bp.getLockStats().snapshot().getTable(empty.getId()).getEscalations());
+    grabLock(tid3, p0, Permissions.READ_ONLY, true);
+    grabLock(tid3, p2, Permissions.READ_WRITE, false);
+  }
+
+  /**
+   * Unit test for BufferPool.lockTable(). A table X lock blocks readers of
+   * the table's pages, and a table S lock blocks writers.
+   */
+  @Test public void tableLocks() throws Exception {
+    bp.lockTable(tid1, empty.getId(), Permissions.READ_WRITE);
+    assertTrue(bp.holdsLock(tid1, p1));
+    grabLock(tid2, p1, Permissions.READ_ONLY, false);
+    bp.transactionComplete(tid1);
+
+    TransactionId tid3 = new TransactionId();
+    bp.lockTable(tid3, empty.getId(), Permissions.READ_ONLY);
+    grabLock(new TransactionId(), p0, Permissions.READ_ONLY, true);
+    grabLock(new TransactionId(), p0, Permissions.READ_WRITE, false);
+  }
+
   /**
    * JUnit suite target
    */
@@ -0,0 +1,102 @@
+package simpledb;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class LogBufferTest extends SimpleDbTestBase {
+    private HeapFile hf;
+    private HeapPageId p0;
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        hf = SystemTestUtil.createRandomHeapFile(2, 1, null, null);
+        p0 = new HeapPageId(hf.getId(), 0);
+    }
+
+    /**
+     * Records get increasing LSNs and stay in memory until the log is
+     * flushed up to them.
+     */
+    @Test
+    public void recordsAreBufferedUntilFlushed() throws Exception {
+        LogFile log = Database.getLogFile();
+        TransactionId tid = new TransactionId();
+        Page page = Database.getBufferPool().getPage(tid, p0, Permissions.READ_ONLY);
+        long first = log.logWrite(tid, page, page);
+        long length = log.getBytesWritten();
+        long second = log.logWrite(tid, page, page);
+        assertTrue(second > first);
+        assertEquals(length, log.getBytesWritten());
+        assertTrue(log.getFlushedLSN() < first);
+
+        log.flushTo(first);
+        assertTrue(log.getFlushedLSN() >= first);
+        assertTrue(log.getBytesWritten() > length);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * A page holding only committed changes carries the LSN of its commit
+     * and is written out without another log record.
+     */
+    @Test
+    public void committedPageIsNotLoggedAgain() throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        Database.getBufferPool().insertTuple(t.getId(), hf.getId(), Utility.getHeapTuple(7, 2));
+        t.commit();
+
+        BufferPool bp = Database.getBufferPool();
+        TransactionId reader = new TransactionId();
+        Page page = bp.getPage(reader, p0, Permissions.READ_ONLY);
+        bp.transactionComplete(reader);
+        assertNotNull(page.isDirty());
+        assertTrue(page.getLSN() > 0);
+        assertTrue(page.getLSN() <= Database.getLogFile().getFlushedLSN());
+
+        int records = Database.getLogFile().getTotalRecords();
+        bp.flushAllPages();
+        assertNull(page.isDirty());
+        assertEquals(records, Database.getLogFile().getTotalRecords());
+    }
+
+    /**
+     * A page rolled back to a committed image on abort keeps the LSN of the
+     * committed changes, so it is not written before their records.
+     */
+    @Test
+    public void abortKeepsCommittedLSN() throws Exception {
+        BufferPool bp = Database.getBufferPool();
+        Transaction t = new Transaction();
+        t.start();
+        bp.insertTuple(t.getId(), hf.getId(), Utility.getHeapTuple(7, 2));
+        t.commit();
+        TransactionId reader = new TransactionId();
+        long committed = bp.getPage(reader, p0, Permissions.READ_ONLY).getLSN();
+        bp.transactionComplete(reader);
+        assertTrue(committed > 0);
+
+        Transaction aborted = new Transaction();
+        aborted.start();
+        bp.insertTuple(aborted.getId(), hf.getId(), Utility.getHeapTuple(8, 2));
+        aborted.abort();
+
+        Page page = bp.getPage(reader, p0, Permissions.READ_ONLY);
+        bp.transactionComplete(reader);
+        assertTrue(page.getLSN() >= committed);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LogBufferTest.class);
+    }
+}
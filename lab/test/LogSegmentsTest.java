@@ -0,0 +1,141 @@
+package simpledb;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class LogSegmentsTest extends SimpleDbTestBase {
+    private static final int SEGMENT_SIZE = 64;
+
+    private File manifest;
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        manifest = File.createTempFile("wal", "");
+        manifest.delete();
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = manifest.getAbsoluteFile().getParentFile().listFiles();
+        for (File f : files) {
+            if (f.getName().startsWith(manifest.getName())) {
+                f.delete();
+            }
+        }
+    }
+
+    private static ByteBuffer bytes(int n, int seed) {
+        ByteBuffer b = ByteBuffer.allocate(n);
+        for (int i = 0; i < n; i++) {
+            b.put((byte) (seed + i));
+        }
+        b.flip();
+        return b;
+    }
+
+    /**
+     * Writes split across segments are read back as written.
+     */
+    @Test
+    public void writesSpanSegments() throws Exception {
+        LogSegments segments = new LogSegments(manifest, SEGMENT_SIZE);
+        long start = segments.clear();
+        segments.write(new ByteBuffer[] { bytes(100, 0), bytes(150, 7) }, start);
+        assertEquals(4, segments.getSegmentCount());
+
+        LogReader in = segments.reader(start + 250);
+        byte[] read = new byte[250];
+        in.readFully(read);
+        for (int i = 0; i < 100; i++) {
+            assertEquals((byte) i, read[i]);
+        }
+        for (int i = 0; i < 150; i++) {
+            assertEquals((byte) (7 + i), read[100 + i]);
+        }
+        assertEquals(-1, in.read());
+    }
+
+    /**
+     * Truncation moves the start in the manifest and recycles the segments
+     * before it as spares, without changing any offset.
+     */
+    @Test
+    public void truncateRecyclesSegments() throws Exception {
+        LogSegments segments = new LogSegments(manifest, SEGMENT_SIZE);
+        long start = segments.clear();
+        segments.write(new ByteBuffer[] { bytes(4 * SEGMENT_SIZE, 0) }, start);
+        segments.setCheckpoint(start + 3 * SEGMENT_SIZE);
+        segments.truncate(start + 3 * SEGMENT_SIZE + 10);
+        assertEquals(3, segments.getRecycled());
+        assertEquals(4, segments.getSegmentCount());
+
+        LogSegments reopened = new LogSegments(manifest, SEGMENT_SIZE);
+        assertEquals(start + 3 * SEGMENT_SIZE, reopened.getCheckpoint());
+        assertEquals(start + 3 * SEGMENT_SIZE + 10, reopened.getStart());
+        LogReader in = reopened.reader(start + 4 * SEGMENT_SIZE);
+        assertEquals((byte) (3 * SEGMENT_SIZE + 10), in.readByte());
+    }
+
+    /**
+     * Recovery finds the end of the log in preallocated and recycled
+     * segments, and appends continue from there.
+     */
+    @Test
+    public void recoveryFindsEndOfLog() throws Exception {
+        File file = File.createTempFile("segments", ".dat");
+        file.deleteOnExit();
+        file.delete();
+        HeapFile hf = Utility.createEmptyHeapFile(file.getAbsolutePath(), 2);
+        insert(hf, 1);
+        Database.getLogFile().logCheckpoint();
+        insert(hf, 2);
+
+        for (int value = 3; value <= 4; value++) {
+            Database.reset();
+            hf = Utility.openHeapFile(2, file);
+            Database.getLogFile().recover();
+            insert(hf, value);
+        }
+        Database.reset();
+        hf = Utility.openHeapFile(2, file);
+        Database.getLogFile().recover();
+        assertEquals(new HashSet<>(Arrays.asList(1, 2, 3, 4)), scan(hf));
+    }
+
+    private static void insert(HeapFile hf, int value) throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        Database.getBufferPool().insertTuple(t.getId(), hf.getId(), Utility.getHeapTuple(value, 2));
+        t.commit();
+    }
+
+    private static Set<Integer> scan(HeapFile hf) throws Exception {
+        TransactionId tid = new TransactionId();
+        HashSet<Integer> values = new HashSet<>();
+        DbFileIterator it = hf.iterator(tid);
+        it.open();
+        while (it.hasNext()) {
+            values.add(((IntField) it.next().getField(0)).getValue());
+        }
+        it.close();
+        Database.getBufferPool().transactionComplete(tid);
+        return values;
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LogSegmentsTest.class);
+    }
+}
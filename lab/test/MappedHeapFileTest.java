@@ -0,0 +1,116 @@
+package simpledb;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.util.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class MappedHeapFileTest extends SimpleDbTestBase {
+    private File f;
+    private MappedHeapFile mhf;
+    private TransactionId tid;
+    private ArrayList<ArrayList<Integer>> tuples;
+
+    /**
+     * Create a two page table and open it as a MappedHeapFile.
+     */
+    @Before
+    public void setUp() throws Exception {
+        tuples = new ArrayList<>();
+        f = SystemTestUtil.createRandomHeapFileUnopened(2, 700, 1 << 16, null, tuples);
+        mhf = new MappedHeapFile(f, Utility.getTupleDesc(2));
+        Database.getCatalog().addTable(mhf, UUID.randomUUID().toString());
+        tid = new TransactionId();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * Pages decoded from the mapping are the same as those read by HeapFile.
+     */
+    @Test
+    public void readPageMatchesHeapFile() throws Exception {
+        HeapFile hf = new HeapFile(f, Utility.getTupleDesc(2));
+        assertEquals(2, mhf.numPages());
+        for (int i = 0; i < mhf.numPages(); i++) {
+            HeapPageId pid = new HeapPageId(mhf.getId(), i);
+            assertArrayEquals(hf.readPage(pid).getPageData(), mhf.readPage(pid).getPageData());
+        }
+        hf.close();
+        SystemTestUtil.matchTuples(mhf, tuples);
+    }
+
+    /**
+     * A page appended by insertTuple can be read through the mapping.
+     */
+    @Test
+    public void remapsWhenFileGrows() throws Exception {
+        mhf.readPage(new HeapPageId(mhf.getId(), 0));
+        assertEquals(2, mhf.getMappedPages());
+
+        // fill the table up until a third page is appended
+        while (mhf.numPages() < 3) {
+            Database.getBufferPool().insertTuple(tid, mhf.getId(), Utility.getHeapTuple(7, 2));
+        }
+        assertEquals(3, mhf.getMappedPages());
+        Database.getBufferPool().flushAllPages();
+        HeapPage page = (HeapPage) mhf.readPage(new HeapPageId(mhf.getId(), 2));
+        Iterator<Tuple> it = page.iterator();
+        assertEquals(7, ((IntField) it.next().getField(0)).getValue());
+        assertFalse(it.hasNext());
+    }
+
+    /**
+     * Catalog.loadSchema opens tables marked mmap as MappedHeapFile.
+     */
+    @Test
+    public void loadSchemaOption() throws Exception {
+        File schema = File.createTempFile("catalog", ".txt");
+        schema.deleteOnExit();
+        FileWriter w = new FileWriter(schema);
+        w.write("mapped (a int, b int) mmap\n");
+        w.write("plain (a int, b int)\n");
+        w.close();
+        Database.getCatalog().loadSchema(schema.getAbsolutePath());
+
+        Catalog c = Database.getCatalog();
+        assertTrue(c.getDatabaseFile(c.getTableId("mapped")) instanceof MappedHeapFile);
+        assertFalse(c.getDatabaseFile(c.getTableId("plain")) instanceof MappedHeapFile);
+    }
+
+    /**
+     * An unknown storage option is an error naming the table and the option.
+     */
+    @Test
+    public void loadSchemaUnknownOption() throws Exception {
+        File schema = File.createTempFile("catalog", ".txt");
+        schema.deleteOnExit();
+        FileWriter w = new FileWriter(schema);
+        w.write("typo (a int, b int) mmpa\n");
+        w.close();
+        try {
+            Database.getCatalog().loadSchema(schema.getAbsolutePath());
+            fail("loaded a table with an unknown storage option");
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("typo") && e.getMessage().contains("mmpa"));
+        }
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(MappedHeapFileTest.class);
+    }
+}
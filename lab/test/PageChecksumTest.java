@@ -0,0 +1,147 @@
+package simpledb;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.util.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class PageChecksumTest extends SimpleDbTestBase {
+    private File file;
+    private HeapFile hf;
+    private HeapPageId p0;
+
+    @Before
+    public void setUp() throws Exception {
+        HeapPage.setChecksums(true);
+        super.setUp();
+        file = File.createTempFile("checksum", ".dat");
+        file.deleteOnExit();
+        file.delete();
+        hf = Utility.createEmptyHeapFile(file.getAbsolutePath(), 2);
+        p0 = new HeapPageId(hf.getId(), 0);
+    }
+
+    @After
+    public void tearDown() {
+        HeapPage.setChecksums(false);
+    }
+
+    private void insert(int from, int to) throws Exception {
+        for (int v = from; v < to; v++) {
+            Transaction t = new Transaction();
+            t.start();
+            Database.getBufferPool().insertTuple(t.getId(), hf.getId(), Utility.getHeapTuple(v, 2));
+            t.commit();
+        }
+    }
+
+    private Set<Integer> scan() throws Exception {
+        TransactionId tid = new TransactionId();
+        HashSet<Integer> values = new HashSet<>();
+        DbFileIterator it = hf.iterator(tid);
+        it.open();
+        while (it.hasNext()) {
+            values.add(((IntField) it.next().getField(0)).getValue());
+        }
+        it.close();
+        Database.getBufferPool().transactionComplete(tid);
+        return values;
+    }
+
+    /** Zeroes the second half of page 0 on disk, as a torn write would. */
+    private void tearPage() throws Exception {
+        int pageSize = BufferPool.getPageSize();
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.seek(pageSize / 2);
+            raf.write(new byte[pageSize / 2]);
+        }
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+    }
+
+    /**
+     * The checksum trailer takes the room of some slots, and pages written
+     * with it read back unchanged.
+     */
+    @Test
+    public void trailerRoundTrips() throws Exception {
+        TupleDesc td = Utility.getTupleDesc(2);
+        int pageSize = BufferPool.getPageSize();
+        int withTrailer = HeapPage.getNumTuples(td, pageSize);
+        HeapPage.setChecksums(false);
+        assertTrue(withTrailer < HeapPage.getNumTuples(td, pageSize));
+        HeapPage.setChecksums(true);
+
+        insert(0, 10);
+        Database.getBufferPool().flushAllPages();
+        HeapPage page = hf.readVerifiedPage(p0);
+        assertEquals(withTrailer - 10, page.getNumEmptySlots());
+        assertEquals(10, scan().size());
+    }
+
+    /**
+     * A torn page fails its checksum and is rebuilt from the full image
+     * and the deltas in the log, then written back.
+     */
+    @Test
+    public void tornPageRepairedFromLog() throws Exception {
+        insert(0, 300);
+        Database.getBufferPool().flushAllPages();
+        tearPage();
+        try {
+            hf.readVerifiedPage(p0);
+            fail("torn page passed its checksum");
+        } catch (PageCorruptedException expected) {
+        }
+
+        HashSet<Integer> all = new HashSet<>();
+        for (int v = 0; v < 300; v++) {
+            all.add(v);
+        }
+        assertEquals(all, scan());
+        // written back
+        hf.readVerifiedPage(p0);
+    }
+
+    /**
+     * A torn page whose last full image is no longer in the log is an
+     * error, rather than being read as data.
+     */
+    @Test
+    public void tornPageWithoutImageNotRead() throws Exception {
+        insert(0, 10);
+        Database.getBufferPool().flushAllPages();
+        // nothing is dirty or active, so the log starts at the checkpoint
+        Database.getLogFile().logCheckpoint();
+        tearPage();
+        try {
+            hf.readPage(p0);
+            fail("read a torn page that cannot be repaired");
+        } catch (UncheckedIOException e) {
+            assertTrue(e.getCause() instanceof PageCorruptedException);
+        }
+        TransactionId tid = new TransactionId();
+        try {
+            Database.getBufferPool().getPage(tid, p0, Permissions.READ_ONLY);
+            fail("read a torn page that cannot be repaired");
+        } catch (DbException e) {
+            assertTrue(e.getCause() instanceof PageCorruptedException);
+        } finally {
+            Database.getBufferPool().transactionComplete(tid);
+        }
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(PageChecksumTest.class);
+    }
+}
@@ -0,0 +1,91 @@
+package simpledb;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+import java.io.File;
+import java.util.*;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class ParallelRedoTest extends SimpleDbTestBase {
+    private File file;
+    private HeapFile hf;
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        file = File.createTempFile("redo", ".dat");
+        file.deleteOnExit();
+        file.delete();
+        hf = Utility.createEmptyHeapFile(file.getAbsolutePath(), 2);
+    }
+
+    private Transaction insert(int from, int to) throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        ArrayList<Tuple> tuples = new ArrayList<>();
+        for (int i = from; i < to; i++) {
+            tuples.add(Utility.getHeapTuple(i, 2));
+        }
+        Database.getBufferPool().insertTuples(t.getId(), hf.getId(), tuples);
+        return t;
+    }
+
+    private Set<Integer> scan() throws Exception {
+        TransactionId tid = new TransactionId();
+        HashSet<Integer> values = new HashSet<>();
+        DbFileIterator it = hf.iterator(tid);
+        it.open();
+        while (it.hasNext()) {
+            values.add(((IntField) it.next().getField(0)).getValue());
+        }
+        it.close();
+        Database.getBufferPool().transactionComplete(tid);
+        return values;
+    }
+
+    private void crash(int redoThreads) throws Exception {
+        Database.reset();
+        hf = Utility.openHeapFile(2, file);
+        Database.getLogFile().setRedoThreads(redoThreads);
+        Database.getLogFile().recover();
+    }
+
+    /**
+     * Many committed changes to a few pages are redone by writing each
+     * page once, split among threads, and a stolen change of a
+     * transaction that did not commit is still undone.
+     */
+    @Test
+    public void eachPageWrittenOnce() throws Exception {
+        HashSet<Integer> committed = new HashSet<>();
+        int value = 0;
+        for (int i = 0; i < 30; i++) {
+            insert(value, value + 40).commit();
+            for (int v = value; v < value + 40; v++) {
+                committed.add(v);
+            }
+            value += 40;
+        }
+        int pages = hf.numPages();
+        assertTrue(pages > 1);
+        insert(value, value + 5);
+        Database.getBufferPool().flushAllPages();
+
+        crash(4);
+        LogFile log = Database.getLogFile();
+        assertTrue(log.getRedoChanges() > 30);
+        assertTrue(log.getRedoPagesWritten() <= pages);
+        assertEquals(committed, scan());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(ParallelRedoTest.class);
+    }
+}
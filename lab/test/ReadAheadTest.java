@@ -0,0 +1,181 @@
+package simpledb;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+import java.io.File;
+import java.util.Iterator;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class ReadAheadTest extends SimpleDbTestBase {
+    /** tuples of two int fields on a page */
+    private static final int TUPLES_PER_PAGE = 504;
+
+    @After
+    public void tearDown() {
+        Database.getBufferPool().disableReadAhead();
+    }
+
+    private static File createTable(int pages) throws Exception {
+        return SystemTestUtil.createRandomHeapFileUnopened(2, pages * TUPLES_PER_PAGE,
+                1 << 16, null, null);
+    }
+
+    /** Waits until the prefetch threads have loaded no page for a while. */
+    private static void settle(ReadAhead ra) throws InterruptedException {
+        long last = -1;
+        while (ra.getPrefetchesIssued() != last) {
+            last = ra.getPrefetchesIssued();
+            Thread.sleep(30);
+        }
+    }
+
+    /** Waits until the prefetch threads have loaded n pages in all. */
+    private static void awaitIssued(ReadAhead ra, long n) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (ra.getPrefetchesIssued() < n) {
+            assertTrue("prefetches not issued in time", System.currentTimeMillis() < deadline);
+            Thread.sleep(5);
+        }
+    }
+
+    /**
+     * A sequential scan has the following pages loaded ahead of it, finds
+     * them in the pool, and each hit widens the window.
+     */
+    @Test
+    public void sequentialScanHitsAndGrowsWindow() throws Exception {
+        HeapFile hf = Utility.openHeapFile(2, createTable(30));
+        BufferPool bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        bp.enableReadAhead(8, 1);
+        ReadAhead ra = bp.getReadAhead();
+        assertEquals(ReadAhead.INITIAL_WINDOW, ra.getWindow(hf.getId()));
+
+        TransactionId tid = new TransactionId();
+        for (int p = 0; p < hf.numPages(); p++) {
+            bp.getPage(tid, new HeapPageId(hf.getId(), p), Permissions.READ_ONLY);
+            settle(ra);
+        }
+        bp.transactionComplete(tid);
+
+        assertTrue(ra.getPrefetchesIssued() > 0);
+        assertTrue(ra.getPrefetchHits() > 0);
+        assertEquals(0, ra.getWastedPrefetches());
+        assertTrue(ra.getWindow(hf.getId()) > ReadAhead.INITIAL_WINDOW);
+    }
+
+    /**
+     * Every prefetched page that leaves the pool unread, discarded or
+     * evicted, counts as wasted and halves the window.
+     */
+    @Test
+    public void unreadPrefetchesHalveWindow() throws Exception {
+        HeapFile a = Utility.openHeapFile(2, createTable(8));
+        HeapFile b = Utility.openHeapFile(2, createTable(40));
+        // a window of at most a quarter of the pool: 4 pages
+        BufferPool bp = Database.resetBufferPool(16);
+        bp.enableReadAhead(8, 1);
+        ReadAhead ra = bp.getReadAhead();
+
+        TransactionId tid = new TransactionId();
+        bp.getPage(tid, new HeapPageId(a.getId(), 0), Permissions.READ_ONLY);
+        bp.getPage(tid, new HeapPageId(a.getId(), 1), Permissions.READ_ONLY);
+        awaitIssued(ra, 4);
+        assertEquals(4, ra.getWindow(a.getId()));
+
+        bp.discardPage(new HeapPageId(a.getId(), 2));
+        assertEquals(1, ra.getWastedPrefetches());
+        assertEquals(2, ra.getWindow(a.getId()));
+
+        // read b backwards, which is not sequential, until the pages of a
+        // are evicted
+        for (int p = b.numPages() - 1; p >= 0; p--) {
+            bp.getPage(tid, new HeapPageId(b.getId(), p), Permissions.READ_ONLY);
+        }
+        bp.transactionComplete(tid);
+        assertEquals(4, ra.getPrefetchesIssued());
+        assertEquals(0, ra.getPrefetchHits());
+        assertEquals(4, ra.getWastedPrefetches());
+        assertEquals(1, ra.getWindow(a.getId()));
+    }
+
+    /** A HeapFile whose read-ahead read of one page stops until released. */
+    private static class StalledHeapFile extends HeapFile {
+        final int stalledPage;
+        final CountDownLatch reached = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+
+        StalledHeapFile(File f, int stalledPage) {
+            super(f, Utility.getTupleDesc(2));
+            this.stalledPage = stalledPage;
+        }
+
+        @Override
+        public Page readPage(PageId pid) {
+            Page page = super.readPage(pid);
+            if (pid.getPageNumber() == stalledPage
+                    && Thread.currentThread().getName().equals("simpledb-read-ahead")) {
+                reached.countDown();
+                try {
+                    release.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            return page;
+        }
+    }
+
+    /**
+     * A page that is changed, written out and discarded while a prefetch of
+     * it is in flight is not put back with the image the prefetch read.
+     */
+    @Test
+    public void discardDuringPrefetchNotStale() throws Exception {
+        StalledHeapFile hf = new StalledHeapFile(createTable(8), 2);
+        Database.getCatalog().addTable(hf, "stalled");
+        BufferPool bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        bp.enableReadAhead(4, 1);
+        ReadAhead ra = bp.getReadAhead();
+
+        TransactionId reader = new TransactionId();
+        bp.getPage(reader, new HeapPageId(hf.getId(), 0), Permissions.READ_ONLY);
+        bp.getPage(reader, new HeapPageId(hf.getId(), 1), Permissions.READ_ONLY);
+        bp.transactionComplete(reader);
+        assertTrue(hf.reached.await(5, TimeUnit.SECONDS));
+
+        // page 2 was read by the prefetch; delete a tuple of it and write
+        // it out before the prefetch puts its image in the pool
+        HeapPageId p2 = new HeapPageId(hf.getId(), 2);
+        Transaction t = new Transaction();
+        t.start();
+        HeapPage page = (HeapPage) bp.getPage(t.getId(), p2, Permissions.READ_WRITE);
+        Iterator<Tuple> it = page.iterator();
+        page.deleteTuple(it.next());
+        page.markDirty(true, t.getId());
+        int empty = page.getNumEmptySlots();
+        bp.flushAllPages();
+        bp.discardPage(p2);
+
+        hf.release.countDown();
+        // pages 3 to 5 follow page 2
+        awaitIssued(ra, 3);
+        assertEquals(3, ra.getPrefetchesIssued());
+        page = (HeapPage) bp.getPage(t.getId(), p2, Permissions.READ_ONLY);
+        assertEquals(empty, page.getNumEmptySlots());
+        t.commit();
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(ReadAheadTest.class);
+    }
+}
@@ -0,0 +1,139 @@
+package simpledb;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+import java.util.*;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class RecordLockingTest extends SimpleDbTestBase {
+    /** lock timeout, so that a request that should not block fails instead of hanging */
+    private static final int TIMEOUT = 200;
+
+    private BufferPool bp;
+    private HeapFile hf;
+    private HeapPageId p0;
+
+    /**
+     * Create an empty table, which has a single empty page, and switch the
+     * pool to record locks.
+     */
+    @Before
+    public void setUp() throws Exception {
+        hf = SystemTestUtil.createRandomHeapFile(2, 0, null, null);
+        p0 = new HeapPageId(hf.getId(), 0);
+        bp = Database.getBufferPool();
+        bp.setRecordLocking(true);
+        bp.setLockTimeout(TIMEOUT);
+    }
+
+    private Tuple insert(Transaction t, int value) throws Exception {
+        Tuple tup = Utility.getHeapTuple(value, 2);
+        bp.insertTuple(t.getId(), hf.getId(), tup);
+        return tup;
+    }
+
+    private Set<Integer> values(HeapPage page) {
+        HashSet<Integer> values = new HashSet<>();
+        Iterator<Tuple> it = page.iterator();
+        while (it.hasNext()) {
+            values.add(((IntField) it.next().getField(0)).getValue());
+        }
+        return values;
+    }
+
+    private Set<Integer> scan() throws Exception {
+        TransactionId tid = new TransactionId();
+        HashSet<Integer> values = new HashSet<>();
+        DbFileIterator it = hf.iterator(tid);
+        it.open();
+        while (it.hasNext()) {
+            values.add(((IntField) it.next().getField(0)).getValue());
+        }
+        it.close();
+        bp.transactionComplete(tid);
+        return values;
+    }
+
+    /**
+     * Two transactions insert into the same page without blocking each
+     * other. The disk only ever sees the committed records, and aborting
+     * one transaction keeps the other's record.
+     */
+    @Test
+    public void concurrentInsertsOnOnePage() throws Exception {
+        Transaction t1 = new Transaction();
+        Transaction t2 = new Transaction();
+        t1.start();
+        t2.start();
+        Tuple a = insert(t1, 1);
+        Tuple b = insert(t2, 2);
+        assertEquals(p0, a.getRecordId().getPageId());
+        assertEquals(p0, b.getRecordId().getPageId());
+        assertNotEquals(a.getRecordId(), b.getRecordId());
+        assertTrue(bp.holdsLock(t1.getId(), p0));
+        assertTrue(bp.holdsLock(t2.getId(), p0));
+        assertTrue(bp.isRecordLocked(a.getRecordId()));
+
+        t1.commit();
+        bp.flushAllPages();
+        assertEquals(Collections.singleton(1), values((HeapPage) hf.readPage(p0)));
+
+        t2.abort();
+        assertEquals(Collections.singleton(1), scan());
+    }
+
+    /**
+     * A slot freed by a delete that is not committed is not reused by
+     * another insert, so that the delete can be rolled back.
+     */
+    @Test
+    public void uncommittedDeleteKeepsSlot() throws Exception {
+        Transaction t1 = new Transaction();
+        t1.start();
+        Tuple a = insert(t1, 1);
+        t1.commit();
+
+        Transaction t2 = new Transaction();
+        Transaction t3 = new Transaction();
+        t2.start();
+        t3.start();
+        bp.deleteTuple(t2.getId(), a);
+        Tuple b = insert(t3, 2);
+        assertNotEquals(a.getRecordId(), b.getRecordId());
+
+        t2.abort();
+        t3.commit();
+        assertEquals(new HashSet<>(Arrays.asList(1, 2)), scan());
+    }
+
+    /**
+     * A reader waits for the records written by a transaction that has not
+     * committed, and times out here.
+     */
+    @Test
+    public void readerWaitsForWriter() throws Exception {
+        Transaction t1 = new Transaction();
+        t1.start();
+        insert(t1, 1);
+        try {
+            scan();
+            fail("expected the scan to time out waiting for the record lock");
+        } catch (TransactionAbortedException e) {
+            // expected
+        }
+        t1.commit();
+        assertEquals(Collections.singleton(1), scan());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(RecordLockingTest.class);
+    }
+}
@@ -0,0 +1,132 @@
+package simpledb;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+import java.util.*;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class SnapshotTest extends SimpleDbTestBase {
+    /** lock timeout, so that a request that should not block fails instead of hanging */
+    private static final int TIMEOUT = 200;
+
+    private BufferPool bp;
+    private HeapFile hf;
+    private HeapPageId p0;
+
+    /**
+     * Create a table holding the single committed row 1, and switch the
+     * pool to snapshot reads.
+     */
+    @Before
+    public void setUp() throws Exception {
+        hf = SystemTestUtil.createRandomHeapFile(2, 0, null, null);
+        p0 = new HeapPageId(hf.getId(), 0);
+        bp = Database.getBufferPool();
+        bp.setSnapshotReads(true);
+        bp.setLockTimeout(TIMEOUT);
+        Transaction t = new Transaction();
+        t.start();
+        insert(t, 1);
+        t.commit();
+    }
+
+    private void insert(Transaction t, int value) throws Exception {
+        bp.insertTuple(t.getId(), hf.getId(), Utility.getHeapTuple(value, 2));
+    }
+
+    private Set<Integer> scan(Transaction t) throws Exception {
+        HashSet<Integer> values = new HashSet<>();
+        DbFileIterator it = hf.iterator(t.getId());
+        it.open();
+        while (it.hasNext()) {
+            values.add(((IntField) it.next().getField(0)).getValue());
+        }
+        it.close();
+        return values;
+    }
+
+    private Transaction snapshot() {
+        Transaction t = new Transaction();
+        t.startSnapshot();
+        return t;
+    }
+
+    /**
+     * A snapshot neither waits for a writer nor sees its changes, not even
+     * after the writer commits; a later snapshot does. Versions are
+     * dropped once no snapshot needs them.
+     */
+    @Test
+    public void snapshotSeesCommittedState() throws Exception {
+        Transaction writer = new Transaction();
+        writer.start();
+        insert(writer, 2);
+
+        Transaction s1 = snapshot();
+        assertEquals(Collections.singleton(1), scan(s1));
+        assertFalse(bp.holdsLock(s1.getId(), p0));
+        writer.commit();
+        assertEquals(Collections.singleton(1), scan(s1));
+        assertEquals(1, bp.getVersionStore().getVersionCount());
+
+        Transaction s2 = snapshot();
+        assertEquals(new HashSet<>(Arrays.asList(1, 2)), scan(s2));
+        s1.commit();
+        s2.commit();
+        assertEquals(0, bp.getVersionStore().getVersionCount());
+        assertEquals(0, bp.getVersionStore().getSnapshotCount());
+    }
+
+    /**
+     * A writer does not wait for a snapshot that read the page, and a
+     * snapshot cannot write.
+     */
+    @Test
+    public void snapshotDoesNotBlockWriters() throws Exception {
+        Transaction s = snapshot();
+        assertEquals(Collections.singleton(1), scan(s));
+        Transaction writer = new Transaction();
+        writer.start();
+        insert(writer, 2);
+        writer.commit();
+        try {
+            insert(s, 3);
+            fail("expected a snapshot transaction to be read-only");
+        } catch (DbException e) {
+            // expected
+        }
+        s.commit();
+    }
+
+    /**
+     * A page stolen with uncommitted changes is read from the committed
+     * image kept when it was written out.
+     */
+    @Test
+    public void stolenPageKeepsCommittedImage() throws Exception {
+        Transaction writer = new Transaction();
+        writer.start();
+        insert(writer, 2);
+        bp.flushAllPages();
+        bp.discardPage(p0);
+
+        Transaction s = snapshot();
+        assertEquals(Collections.singleton(1), scan(s));
+        writer.abort();
+        assertEquals(Collections.singleton(1), scan(s));
+        s.commit();
+        assertEquals(Collections.singleton(1), scan(snapshot()));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(SnapshotTest.class);
+    }
+}
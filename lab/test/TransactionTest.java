@@ -4,6 +4,8 @@ import java.util.*;
 import org.junit.Before;
 import org.junit.Test;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 import junit.framework.JUnit4TestAdapter;
 
 public class TransactionTest extends TestUtil.CreateHeapFile {
@@ -112,6 +114,71 @@ public class TransactionTest extends TestUtil.CreateHeapFile {
     testTransactionComplete(false);
   }
 
+  /**
+   * Unit test for BufferPool.transactionComplete() on a transaction that
+   * only read pages: nothing is logged for them.
+   */
+  @Test public void readOnlyCommitLogsNothing() throws Exception {
+    bp.getPage(tid1, p0, Permissions.READ_ONLY);
+    bp.getPage(tid1, p1, Permissions.READ_ONLY);
+    int records = Database.getLogFile().getTotalRecords();
+    bp.transactionComplete(tid1, true);
+    assertEquals(records, Database.getLogFile().getTotalRecords());
+  }
+
+  /**
+   * Unit test for BufferPool.transactionComplete() on a transaction that
+   * read a page another transaction's commit left dirty: it is not logged
+   * again.
+   */
+  @Test public void readerOfDirtyPageLogsNothing() throws Exception {
+    HeapPage p = (HeapPage) bp.getPage(tid1, p2, Permissions.READ_WRITE);
+    p.insertTuple(Utility.getHeapTuple(new int[] { 6, 830 }));
+    p.markDirty(true, tid1);
+    bp.transactionComplete(tid1, true);
+
+    bp.getPage(tid2, p2, Permissions.READ_ONLY);
+    int records = Database.getLogFile().getTotalRecords();
+    bp.transactionComplete(tid2, true);
+    assertEquals(records, Database.getLogFile().getTotalRecords());
+  }
+
+  /**
+   * A transaction started read-only cannot write, and neither starting
+   * nor committing it writes a log record.
+   */
+  @Test public void readOnlyTransaction() throws Exception {
+    int records = Database.getLogFile().getTotalRecords();
+    Transaction t = new Transaction();
+    t.startReadOnly();
+    bp.getPage(t.getId(), p0, Permissions.READ_ONLY);
+    try {
+      bp.getPage(t.getId(), p1, Permissions.READ_WRITE);
+      fail("expected a read-only transaction to be refused a write lock");
+    } catch (DbException e) {
+      // expected
+    }
+    t.commit();
+    assertEquals(records, Database.getLogFile().getTotalRecords());
+    bp.getPage(tid1, p0, Permissions.READ_WRITE);
+  }
+
+  /**
+   * Unit test for BufferPool.transactionComplete() assuming abort: the
+   * cached page goes back to its contents before the transaction.
+   */
+  @Test public void abortRestoresCachedPage() throws Exception {
+    HeapPage p = (HeapPage) bp.getPage(tid1, p2, Permissions.READ_WRITE);
+    byte[] before = p.getPageData();
+
+    p.insertTuple(Utility.getHeapTuple(new int[] { 6, 830 }));
+    p.markDirty(true, tid1);
+    bp.transactionComplete(tid1, false);
+
+    Page cached = bp.getPage(tid2, p2, Permissions.READ_ONLY);
+    assertTrue(Arrays.equals(before, cached.getPageData()));
+  }
+
   /**
    * JUnit suite target
    */
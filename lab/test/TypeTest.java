@@ -0,0 +1,62 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import junit.framework.JUnit4TestAdapter;
+
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class TypeTest extends SimpleDbTestBase {
+
+    /** @return a buffer holding a string field at offset 8 */
+    private static ByteBuffer stringAt8(int length, String s) {
+        ByteBuffer buf = ByteBuffer.allocate(8 + Type.STRING_TYPE.getLen() + 8);
+        buf.putInt(8, length);
+        byte[] bytes = s.getBytes();
+        for (int i = 0; i < bytes.length; i++) {
+            buf.put(12 + i, bytes[i]);
+        }
+        return buf;
+    }
+
+    /**
+     * Unit test for Type.parse(ByteBuffer, int) of strings
+     */
+    @Test public void parseString() {
+        ByteBuffer buf = stringAt8(5, "hello");
+        buf.position(3);
+        assertEquals(new StringField("hello", Type.STRING_LEN), Type.STRING_TYPE.parse(buf, 8));
+        assertEquals(3, buf.position());
+
+        String longest = new String(new char[Type.STRING_LEN]).replace('\0', 'x');
+        assertEquals(new StringField(longest, Type.STRING_LEN),
+                Type.STRING_TYPE.parse(stringAt8(Type.STRING_LEN, longest), 8));
+    }
+
+    /**
+     * A string length that cannot be valid is reported as a damaged page.
+     */
+    @Test public void parseStringBadLength() {
+        for (int length : new int[] { -1, Type.STRING_LEN + 1, Integer.MAX_VALUE }) {
+            try {
+                Type.STRING_TYPE.parse(stringAt8(length, ""), 8);
+                fail("parsed a string of length " + length);
+            } catch (UncheckedIOException e) {
+                assertTrue(e.getCause() instanceof PageCorruptedException);
+            }
+        }
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(TypeTest.class);
+    }
+}
@@ -0,0 +1,120 @@
+package simpledb;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+import java.io.File;
+import java.util.*;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class UndoChainTest extends SimpleDbTestBase {
+    private File loserFile;
+    private File otherFile;
+    private HeapFile loser;
+    private HeapFile other;
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        loserFile = File.createTempFile("loser", ".dat");
+        loserFile.deleteOnExit();
+        loserFile.delete();
+        otherFile = File.createTempFile("other", ".dat");
+        otherFile.deleteOnExit();
+        otherFile.delete();
+        loser = Utility.createEmptyHeapFile(loserFile.getAbsolutePath(), 2);
+        other = Utility.createEmptyHeapFile(otherFile.getAbsolutePath(), 2);
+    }
+
+    private static void insert(TransactionId tid, HeapFile hf, int value) throws Exception {
+        Database.getBufferPool().insertTuple(tid, hf.getId(), Utility.getHeapTuple(value, 2));
+    }
+
+    /** Logs 100 committed single-insert transactions to the other table. */
+    private void commitOthers() throws Exception {
+        for (int i = 0; i < 100; i++) {
+            Transaction t = new Transaction();
+            t.start();
+            insert(t.getId(), other, i);
+            t.commit();
+        }
+    }
+
+    /**
+     * Starts a transaction that inserts two tuples into the loser table
+     * and has its page stolen after each, so it logs a BEGIN, an UPDATE
+     * and a DELTA record.
+     */
+    private Transaction startLoser() throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        insert(t.getId(), loser, 1);
+        Database.getBufferPool().flushAllPages();
+        insert(t.getId(), loser, 2);
+        Database.getBufferPool().flushAllPages();
+        return t;
+    }
+
+    private static Set<Integer> scan(HeapFile hf) throws Exception {
+        TransactionId tid = new TransactionId();
+        HashSet<Integer> values = new HashSet<>();
+        DbFileIterator it = hf.iterator(tid);
+        it.open();
+        while (it.hasNext()) {
+            values.add(((IntField) it.next().getField(0)).getValue());
+        }
+        it.close();
+        Database.getBufferPool().transactionComplete(tid);
+        return values;
+    }
+
+    private void crash() throws Exception {
+        Database.reset();
+        loser = Utility.openHeapFile(2, loserFile);
+        other = Utility.openHeapFile(2, otherFile);
+        Database.getLogFile().recover();
+    }
+
+    /**
+     * Abort reads only the aborting transaction's records, not those of
+     * the transactions that committed after it began.
+     */
+    @Test
+    public void abortReadsOnlyOwnRecords() throws Exception {
+        Transaction t = startLoser();
+        commitOthers();
+        t.abort();
+        assertEquals(3, Database.getLogFile().getUndoRecordsRead());
+        assertEquals(Collections.emptySet(), scan(loser));
+        assertEquals(100, scan(other).size());
+    }
+
+    /**
+     * Recovery undoes a loser along its chain, and a second recovery
+     * follows the CLRs of the first past the changes already undone.
+     */
+    @Test
+    public void recoveryFollowsCompensations() throws Exception {
+        startLoser();
+        commitOthers();
+
+        crash();
+        assertEquals(3, Database.getLogFile().getUndoRecordsRead());
+        assertEquals(Collections.emptySet(), scan(loser));
+
+        crash();
+        assertEquals(2, Database.getLogFile().getUndoRecordsRead());
+        assertEquals(Collections.emptySet(), scan(loser));
+        assertEquals(100, scan(other).size());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(UndoChainTest.class);
+    }
+}
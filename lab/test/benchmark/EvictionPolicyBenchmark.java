@@ -0,0 +1,142 @@
+package simpledb.benchmark;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.function.IntFunction;
+import java.util.function.Predicate;
+
+import simpledb.*;
+
+/**
+ * Replays synthetic page reference traces against every EvictionPolicy and
+ * prints the hit rate of each one, next to the random replacement the
+ * BufferPool used before.
+ * <p>
+ * Two traces are generated: a skewed (Zipf-like) OLTP trace, and the same
+ * trace interleaved with one-off sequential scans over a large cold table.
+ * <p>
+ * Usage: java simpledb.benchmark.EvictionPolicyBenchmark [poolPages]
+ */
+public class EvictionPolicyBenchmark {
+
+    private static final int HOT_TABLE_PAGES = 5000;
+    private static final int COLD_TABLE_PAGES = 20000;
+    private static final int HOT_TABLE = 1;
+    private static final int COLD_TABLE = 2;
+    private static final int REFERENCES = 500000;
+    private static final double ZIPF_EXPONENT = 0.9;
+    /** a scan of SCAN_LENGTH cold pages starts every SCAN_INTERVAL references */
+    private static final int SCAN_INTERVAL = 20000;
+    private static final int SCAN_LENGTH = 4000;
+
+    /** the replacement the BufferPool used before, for comparison */
+    private static class RandomEvictionPolicy implements EvictionPolicy {
+        private final ArrayList<PageId> resident = new ArrayList<>();
+        private final Random rand = new Random(0);
+
+        public void pageAdmitted(PageId pid) { resident.add(pid); }
+        public void pageAccessed(PageId pid) { }
+        public void pageRemoved(PageId pid) { resident.remove(pid); }
+
+        public PageId chooseVictim(Predicate<PageId> evictable) {
+            return resident.isEmpty() ? null : resident.get(rand.nextInt(resident.size()));
+        }
+
+        public List<PageId> coldestPages(int max) {
+            return resident.subList(0, Math.min(max, resident.size()));
+        }
+    }
+
+    private static PageId[] skewedTrace(Random rand, boolean withScans) {
+        double[] cdf = new double[HOT_TABLE_PAGES];
+        double sum = 0;
+        for (int i = 0; i < HOT_TABLE_PAGES; i++) {
+            sum += 1.0 / Math.pow(i + 1, ZIPF_EXPONENT);
+            cdf[i] = sum;
+        }
+        // scatter the popular pages over the table
+        int[] perm = new int[HOT_TABLE_PAGES];
+        for (int i = 0; i < perm.length; i++) {
+            int j = rand.nextInt(i + 1);
+            perm[i] = perm[j];
+            perm[j] = i;
+        }
+
+        PageId[] trace = new PageId[REFERENCES];
+        int scanPos = 0;
+        int scanLeft = 0;
+        for (int i = 0; i < REFERENCES; i++) {
+            if (withScans && i % SCAN_INTERVAL == 0) {
+                scanLeft = SCAN_LENGTH;
+            }
+            // while a scan runs, every other reference belongs to it
+            if (scanLeft > 0 && (i & 1) == 0) {
+                trace[i] = new HeapPageId(COLD_TABLE, scanPos);
+                scanPos = (scanPos + 1) % COLD_TABLE_PAGES;
+                scanLeft--;
+                continue;
+            }
+            double r = rand.nextDouble() * sum;
+            int lo = 0, hi = cdf.length - 1;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (cdf[mid] < r) lo = mid + 1; else hi = mid;
+            }
+            trace[i] = new HeapPageId(HOT_TABLE, perm[lo]);
+        }
+        return trace;
+    }
+
+    private static double hitRate(EvictionPolicy policy, int capacity, PageId[] trace) {
+        HashSet<PageId> resident = new HashSet<>();
+        long hits = 0;
+        for (PageId pid : trace) {
+            if (resident.contains(pid)) {
+                hits++;
+                policy.pageAccessed(pid);
+                continue;
+            }
+            if (resident.size() >= capacity) {
+                PageId victim = policy.chooseVictim(p -> true);
+                resident.remove(victim);
+                policy.pageRemoved(victim);
+            }
+            resident.add(pid);
+            policy.pageAdmitted(pid);
+        }
+        return (double) hits / trace.length;
+    }
+
+    public static void main(String[] args) {
+        int capacity = args.length > 0 ? Integer.parseInt(args[0]) : 500;
+
+        LinkedHashMap<String, IntFunction<EvictionPolicy>> policies = new LinkedHashMap<>();
+        policies.put("random", cap -> new RandomEvictionPolicy());
+        policies.put("CLOCK", ClockEvictionPolicy::new);
+        policies.put("LRU-2", LRUKEvictionPolicy::new);
+        policies.put("2Q", TwoQEvictionPolicy::new);
+
+        LinkedHashMap<String, PageId[]> traces = new LinkedHashMap<>();
+        traces.put("skewed", skewedTrace(new Random(42), false));
+        traces.put("skewed+scans", skewedTrace(new Random(42), true));
+
+        System.out.printf("pool of %d pages, %d references per trace%n", capacity, REFERENCES);
+        System.out.printf("%-8s", "policy");
+        for (String trace : traces.keySet()) {
+            System.out.printf("%16s", trace);
+        }
+        System.out.println();
+        for (Map.Entry<String, IntFunction<EvictionPolicy>> p : policies.entrySet()) {
+            System.out.printf("%-8s", p.getKey());
+            for (PageId[] trace : traces.values()) {
+                double rate = hitRate(p.getValue().apply(capacity), capacity, trace);
+                System.out.printf("%15.2f%%", rate * 100);
+            }
+            System.out.println();
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package simpledb.benchmark;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import simpledb.*;
+import simpledb.systemtest.SystemTestUtil;
+
+/**
+ * Runs an increasing number of threads that each commit small insert
+ * transactions as fast as they can, and prints the commit rate, the
+ * group commit batch sizes and the log bytes per commit of each run. With one fsync per commit the
+ * rate would stay flat; with group commit it grows with the number of
+ * committers as long as the disk's fsync latency dominates.
+ * <p>
+ * Usage: java simpledb.benchmark.GroupCommitBenchmark [max threads] [seconds]
+ * [max delay in us] [max batch]
+ */
+public class GroupCommitBenchmark {
+
+    private static void measure(int threads, long millis, long maxDelayMicros, int maxBatch) throws Exception {
+        Database.reset();
+        // record locks, so that the inserts do not serialize on the page lock
+        Database.getBufferPool().setRecordLocking(true);
+        HeapFile table = SystemTestUtil.createRandomHeapFile(1, 0, null, null);
+        GroupCommit gc = Database.getLogFile().getGroupCommit();
+        gc.setWindow(maxDelayMicros, maxBatch);
+        AtomicLong commits = new AtomicLong();
+        long stop = System.currentTimeMillis() + millis;
+        Thread[] workers = new Thread[threads];
+        for (int n = 0; n < threads; n++) {
+            final int value = n;
+            workers[n] = new Thread(() -> {
+                while (System.currentTimeMillis() < stop) {
+                    Transaction t = new Transaction();
+                    try {
+                        t.start();
+                        Tuple tup = new Tuple(SystemTestUtil.SINGLE_INT_DESCRIPTOR);
+                        tup.setField(0, new IntField(value));
+                        Database.getBufferPool().insertTuple(t.getId(), table.getId(), tup);
+                        t.commit();
+                        commits.incrementAndGet();
+                    } catch (TransactionAbortedException e) {
+                        try {
+                            t.transactionComplete(true);
+                        } catch (Exception ignored) {
+                            // the next attempt starts over
+                        }
+                    } catch (Exception e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            });
+            workers[n].start();
+        }
+        for (Thread w : workers) {
+            w.join();
+        }
+        System.out.printf("%3d threads %10.0f commits/s %8d forces %8.2f avg batch %5d max batch %8.0f log bytes/commit%n",
+                threads, commits.get() * 1000.0 / millis, gc.getBatches(), gc.getAverageBatchSize(),
+                gc.getMaxBatchSize(), (double) Database.getLogFile().getBytesAppended() / Math.max(1, commits.get()));
+        Database.getBufferPool().stopBackgroundThreads();
+    }
+
+    public static void main(String[] args) throws Exception {
+        int maxThreads = args.length > 0 ? Integer.parseInt(args[0]) : 16;
+        long millis = (args.length > 1 ? Long.parseLong(args[1]) : 3) * 1000;
+        long maxDelayMicros = args.length > 2 ? Long.parseLong(args[2]) : 0;
+        int maxBatch = args.length > 3 ? Integer.parseInt(args[3]) : 64;
+        System.out.printf("%d s per run, window %d us / %d commits%n", millis / 1000, maxDelayMicros, maxBatch);
+        for (int threads = 1; threads <= maxThreads; threads *= 2) {
+            measure(threads, millis, maxDelayMicros, maxBatch);
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package simpledb.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import simpledb.*;
+import simpledb.systemtest.SystemTestUtil;
+
+/**
+ * Measures page-read throughput of HeapFile.readPage, which reads through
+ * one long-lived FileChannel, against the previous implementation that
+ * opened a new RandomAccessFile for every page.
+ * <p>
+ * Each variant reads every page of the table a number of times after a
+ * warm-up round; the file stays in the OS page cache, so the numbers show
+ * the per-read syscall and allocation overhead rather than disk latency.
+ * <p>
+ * Usage: java simpledb.benchmark.HeapFileReadBenchmark [pages] [rounds]
+ */
+public class HeapFileReadBenchmark {
+
+    /** the old readPage: open, seek, read into a fresh array, parse */
+    private static Page legacyReadPage(File f, HeapPageId pid) throws IOException {
+        int pgSize = BufferPool.getPageSize();
+        byte[] data = new byte[pgSize];
+        RandomAccessFile raf = new RandomAccessFile(f, "r");
+        try {
+            raf.seek((long) pid.getPageNumber() * pgSize);
+            raf.read(data);
+        } finally {
+            // the old code never closed it; do so here to not run out of descriptors
+            raf.close();
+        }
+        return new HeapPage(pid, data);
+    }
+
+    private interface Reader {
+        Page read(HeapPageId pid) throws IOException;
+    }
+
+    private static double pagesPerSecond(Reader reader, int tableId, int pages, int rounds) throws IOException {
+        for (int p = 0; p < pages; p++) {
+            reader.read(new HeapPageId(tableId, p));
+        }
+        long start = System.nanoTime();
+        for (int r = 0; r < rounds; r++) {
+            for (int p = 0; p < pages; p++) {
+                reader.read(new HeapPageId(tableId, p));
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+        return (double) pages * rounds / (elapsed / 1e9);
+    }
+
+    public static void main(String[] args) throws Exception {
+        int pages = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, pages * 504, null, null);
+        File f = hf.getFile();
+        int tableId = hf.getId();
+        System.out.printf("%d pages of %d bytes, %d rounds%n", hf.numPages(), BufferPool.getPageSize(), rounds);
+
+        double legacy = pagesPerSecond(pid -> legacyReadPage(f, pid), tableId, hf.numPages(), rounds);
+        double channel = pagesPerSecond(pid -> hf.readPage(pid), tableId, hf.numPages(), rounds);
+        System.out.printf("RandomAccessFile per read: %12.0f pages/s%n", legacy);
+        System.out.printf("persistent FileChannel:    %12.0f pages/s%n", channel);
+        hf.close();
+    }
+}
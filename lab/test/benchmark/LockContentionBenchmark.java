@@ -0,0 +1,146 @@
+package simpledb.benchmark;
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import simpledb.*;
+import simpledb.systemtest.SystemTestUtil;
+
+/**
+ * Runs concurrent transactions against a small, hot table once with page
+ * locks and once with record locks, and prints the commit rate, the
+ * number of aborted attempts and the lock waits of each run.
+ * <p>
+ * Two workloads are measured:
+ * <ul>
+ * <li>hot inserts: every transaction inserts a row and deletes the row
+ * its thread inserted before, so all threads write different rows of the
+ * same page or two;</li>
+ * <li>increment: the read-delete-insert loop of
+ * simpledb.systemtest.TransactionTest on a single row, where every
+ * transaction conflicts with every other one and contention is decided by
+ * deadlock handling rather than lock granularity.</li>
+ * </ul>
+ * <p>
+ * Usage: java simpledb.benchmark.LockContentionBenchmark [threads] [seconds]
+ */
+public class LockContentionBenchmark {
+
+    /** rows each hot-insert thread keeps in the table */
+    private static final int ROWS_PER_THREAD = 4;
+
+    private interface Work {
+        /** runs one transaction's work; the caller commits or aborts it */
+        void run(Transaction t, ArrayDeque<Tuple> own) throws Exception;
+    }
+
+    private static class Result {
+        final AtomicLong commits = new AtomicLong();
+        final AtomicLong aborts = new AtomicLong();
+    }
+
+    private static void hotInsert(Transaction t, ArrayDeque<Tuple> own, int tableId, int value)
+            throws Exception {
+        Tuple tup = new Tuple(SystemTestUtil.SINGLE_INT_DESCRIPTOR);
+        tup.setField(0, new IntField(value));
+        Database.getBufferPool().insertTuple(t.getId(), tableId, tup);
+        if (own.size() >= ROWS_PER_THREAD) {
+            Database.getBufferPool().deleteTuple(t.getId(), own.peekFirst());
+        }
+        own.addLast(tup);
+    }
+
+    private static void increment(Transaction t, int tableId) throws Exception {
+        SeqScan ss1 = new SeqScan(t.getId(), tableId, "");
+        Query q1 = new Query(ss1, t.getId());
+        q1.start();
+        int i = ((IntField) q1.next().getField(0)).getValue();
+        q1.close();
+
+        Query q2 = new Query(new Delete(t.getId(), new SeqScan(t.getId(), tableId, "")), t.getId());
+        q2.start();
+        q2.next();
+        q2.close();
+
+        Tuple tup = new Tuple(SystemTestUtil.SINGLE_INT_DESCRIPTOR);
+        tup.setField(0, new IntField(i + 1));
+        TupleIterator ti = new TupleIterator(tup.getTupleDesc(), Collections.singleton(tup));
+        Query q3 = new Query(new Insert(t.getId(), ti, tableId), t.getId());
+        q3.start();
+        q3.next();
+        q3.close();
+    }
+
+    private static Result run(int threads, long millis, Work work) throws InterruptedException {
+        Result result = new Result();
+        long stop = System.currentTimeMillis() + millis;
+        Thread[] workers = new Thread[threads];
+        for (int n = 0; n < threads; n++) {
+            workers[n] = new Thread(() -> {
+                ArrayDeque<Tuple> own = new ArrayDeque<>();
+                while (System.currentTimeMillis() < stop) {
+                    Transaction t = new Transaction();
+                    ArrayDeque<Tuple> attempt = own.clone();
+                    try {
+                        t.start();
+                        work.run(t, attempt);
+                        t.commit();
+                        if (attempt.size() > ROWS_PER_THREAD) {
+                            attempt.pollFirst();
+                        }
+                        own = attempt;
+                        result.commits.incrementAndGet();
+                    } catch (TransactionAbortedException e) {
+                        result.aborts.incrementAndGet();
+                        try {
+                            t.transactionComplete(true);
+                        } catch (Exception ignored) {
+                            // the next attempt starts over
+                        }
+                    } catch (Exception e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            });
+            workers[n].start();
+        }
+        for (Thread w : workers) {
+            w.join();
+        }
+        return result;
+    }
+
+    private static void measure(String name, int threads, long millis, boolean recordLocking, boolean hot)
+            throws Exception {
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        BufferPool bp = Database.getBufferPool();
+        bp.setRecordLocking(recordLocking);
+        HashMap<Integer, Integer> columns = new HashMap<>();
+        columns.put(0, 0);
+        HeapFile table = SystemTestUtil.createRandomHeapFile(1, hot ? 0 : 1, columns, null);
+        int tableId = table.getId();
+        AtomicLong values = new AtomicLong();
+        Result r = run(threads, millis, hot
+                ? (t, own) -> hotInsert(t, own, tableId, (int) values.incrementAndGet())
+                : (t, own) -> increment(t, tableId));
+        LockStats.Counts locks = bp.getLockStats().snapshot().getTotal();
+        System.out.printf("%-12s %-7s %10.0f commits/s %8d aborts %8d lock waits %8d deadlock aborts%n",
+                name, recordLocking ? "record" : "page", r.commits.get() * 1000.0 / millis,
+                r.aborts.get(), locks.getWaits(), locks.getDeadlockAborts());
+        bp.stopBackgroundThreads();
+    }
+
+    public static void main(String[] args) throws Exception {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        long millis = (args.length > 1 ? Long.parseLong(args[1]) : 3) * 1000;
+        System.out.printf("%d threads, %d s per run%n", threads, millis / 1000);
+        for (boolean recordLocking : new boolean[] {false, true}) {
+            measure("hot inserts", threads, millis, recordLocking, true);
+        }
+        for (boolean recordLocking : new boolean[] {false, true}) {
+            measure("increment", threads, millis, recordLocking, false);
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package simpledb.benchmark;
+
+import java.io.IOException;
+import java.util.zip.CRC32C;
+
+import simpledb.*;
+import simpledb.systemtest.SystemTestUtil;
+
+/**
+ * Measures what page checksums cost per page: HeapFile.readPage, which
+ * checks the CRC32C trailer of every page it reads, and
+ * HeapPage.getPageData, which fills it in, each timed on a table without
+ * and on a table with checksums.
+ * <p>
+ * The file stays in the OS page cache, so reads cost a system call and a
+ * copy rather than disk latency; the difference between the two tables is
+ * the time taken by the CRC32C of a page, which is also timed on its own.
+ * <p>
+ * Usage: java simpledb.benchmark.PageChecksumBenchmark [pages] [rounds]
+ */
+public class PageChecksumBenchmark {
+
+    private interface PageOp {
+        void run(HeapPageId pid) throws IOException;
+    }
+
+    private static double nanosPerPage(PageOp op, int tableId, int pages, int rounds) throws IOException {
+        for (int p = 0; p < pages; p++) {
+            op.run(new HeapPageId(tableId, p));
+        }
+        long start = System.nanoTime();
+        for (int r = 0; r < rounds; r++) {
+            for (int p = 0; p < pages; p++) {
+                op.run(new HeapPageId(tableId, p));
+            }
+        }
+        return (double) (System.nanoTime() - start) / ((long) pages * rounds);
+    }
+
+    /** a table and its pages, as read into memory */
+    private static final class Table {
+        final boolean checksums;
+        final HeapFile hf;
+        final HeapPage[] cached;
+
+        Table(boolean checksums, int pages) throws Exception {
+            this.checksums = checksums;
+            HeapPage.setChecksums(checksums);
+            hf = SystemTestUtil.createRandomHeapFile(2, pages * 500, null, null);
+            cached = new HeapPage[hf.numPages()];
+            for (int p = 0; p < cached.length; p++) {
+                cached[p] = (HeapPage) hf.readPage(new HeapPageId(hf.getId(), p));
+            }
+        }
+
+        /** @return ns per page of readPage and of getPageData */
+        double[] measure(int rounds) throws IOException {
+            HeapPage.setChecksums(checksums);
+            double read = nanosPerPage(pid -> hf.readPage(pid), hf.getId(), cached.length, rounds);
+            double serialize = nanosPerPage(pid -> cached[pid.getPageNumber()].getPageData(), hf.getId(),
+                    cached.length, rounds);
+            return new double[] { read, serialize };
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int pages = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        System.out.printf("%d pages of %d bytes, %d rounds%n", pages, BufferPool.getPageSize(), rounds);
+
+        Table plain = new Table(false, pages);
+        Table summed = new Table(true, pages);
+        // alternated, so that neither gains from running later; the best
+        // of five leaves out rounds disturbed by GC
+        double[] bestPlain = { Double.MAX_VALUE, Double.MAX_VALUE };
+        double[] bestSummed = { Double.MAX_VALUE, Double.MAX_VALUE };
+        for (int i = 0; i < 5; i++) {
+            double[] p = plain.measure(rounds);
+            double[] s = summed.measure(rounds);
+            for (int j = 0; j < 2; j++) {
+                bestPlain[j] = Math.min(bestPlain[j], p[j]);
+                bestSummed[j] = Math.min(bestSummed[j], s[j]);
+            }
+        }
+        HeapPage.setChecksums(false);
+
+        byte[] page = plain.cached[0].getPageData();
+        CRC32C crc = new CRC32C();
+        long start = System.nanoTime();
+        for (int i = 0; i < pages * rounds; i++) {
+            crc.reset();
+            crc.update(page, 0, page.length);
+        }
+        double crcNanos = (double) (System.nanoTime() - start) / ((long) pages * rounds);
+
+        System.out.printf("without checksums: readPage %8.0f ns/page   getPageData %8.0f ns/page%n",
+                bestPlain[0], bestPlain[1]);
+        System.out.printf("with checksums:    readPage %8.0f ns/page   getPageData %8.0f ns/page%n",
+                bestSummed[0], bestSummed[1]);
+        System.out.printf("CRC32C of a page:  %8.0f ns (checksum %08x)%n", crcNanos, crc.getValue());
+        plain.hf.close();
+        summed.hf.close();
+    }
+}
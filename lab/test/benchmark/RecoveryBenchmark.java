@@ -0,0 +1,56 @@
+package simpledb.benchmark;
+
+import java.io.File;
+import java.util.ArrayList;
+
+import simpledb.*;
+
+/**
+ * Builds a log of many small committed insert transactions, then
+ * recovers from it with an increasing number of redo threads and prints
+ * how long each recovery took. Redo writes each page once however many
+ * records changed it, so the time is dominated by reading the log, and
+ * then by the page writes the threads share.
+ * <p>
+ * Usage: java simpledb.benchmark.RecoveryBenchmark [commits] [tuples per commit] [max threads]
+ */
+public class RecoveryBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int commits = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+        int perCommit = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+        int maxThreads = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+
+        File file = File.createTempFile("recovery", ".dat");
+        file.deleteOnExit();
+        file.delete();
+        Database.reset();
+        HeapFile table = Utility.createEmptyHeapFile(file.getAbsolutePath(), 2);
+        int value = 0;
+        for (int c = 0; c < commits; c++) {
+            Transaction t = new Transaction();
+            t.start();
+            ArrayList<Tuple> tuples = new ArrayList<>();
+            for (int i = 0; i < perCommit; i++) {
+                tuples.add(Utility.getHeapTuple(value++, 2));
+            }
+            Database.getBufferPool().insertTuples(t.getId(), table.getId(), tuples);
+            t.commit();
+        }
+        long logBytes = Database.getLogFile().getBytesAppended();
+        System.out.printf("%d commits, %d pages, %d log bytes%n", commits, table.numPages(), logBytes);
+
+        for (int threads = 1; threads <= maxThreads; threads *= 2) {
+            // recovery changes nothing recovery reads, so it can be repeated
+            Database.reset();
+            Utility.openHeapFile(2, file);
+            LogFile log = Database.getLogFile();
+            log.setRedoThreads(threads);
+            long start = System.nanoTime();
+            log.recover();
+            long millis = (System.nanoTime() - start) / 1000000;
+            System.out.printf("%3d threads %8d ms %8d pages written %10d changes%n",
+                    threads, millis, log.getRedoPagesWritten(), log.getRedoChanges());
+        }
+    }
+}
@@ -120,8 +120,10 @@ public class LogTest extends SimpleDbTestBase {
         // adds to the catalog.
         file1 = new File("simple1.db");
         file1.delete();
+        FreeSpaceMap.delete(file1);
         file2 = new File("simple2.db");
         file2.delete();
+        FreeSpaceMap.delete(file2);
         hf1 = Utility.createEmptyHeapFile(file1.getAbsolutePath(), 2);
         hf2 = Utility.createEmptyHeapFile(file2.getAbsolutePath(), 2);
     }